@@ -0,0 +1,211 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.benchmark;
+
+import com.kasukusakura.tcrs.network.packets.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Packets sent through the codec by the benchmarks.
+ * {@code size} is the length of the variable part: ticket, captcha data, or the bytes of all fastcodes of a batch.
+ * Packets without one ignore it.
+ */
+public enum BenchPacket {
+    KEEP_ALIVE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgKeepAlive.INSTANCE;
+        }
+    },
+    NEW_PROCESS_CODE_REQ {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgNewProcessCode.Req.INSTANCE;
+        }
+    },
+    NEW_PROCESS_CODE_RSP {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgNewProcessCode.Rsp.rsp(fastcode(random));
+        }
+    },
+    COMPLETE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgNewProcessCode.Complete.complete(fastcode(random), bytes(size, random));
+        }
+    },
+    STATUS_REQ {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgQueryProcessCodeStatus.Req.req(fastcode(random));
+        }
+    },
+    STATUS_RSP {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgQueryProcessCodeStatus.Rsp.rsp(fastcode(random), bytes(size, random));
+        }
+    },
+    STATUS_BATCH_REQ {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgQueryProcessCodeStatus.BatchReq.req(fastcodes(size, random));
+        }
+    },
+    STATUS_BATCH_RSP {
+        @Override
+        Packet create(int size, Random random) {
+            byte[][] fastcodes = fastcodes(size, random);
+            PkgQueryProcessCodeStatus.Rsp[] entries = new PkgQueryProcessCodeStatus.Rsp[fastcodes.length];
+            for (int i = 0; i < entries.length; i++) {
+                // Half of them completed with a short ticket
+                entries[i] = PkgQueryProcessCodeStatus.Rsp.rsp(fastcodes[i], i % 2 == 0 ? bytes(8, random) : null);
+            }
+            return PkgQueryProcessCodeStatus.BatchRsp.rsp(entries);
+        }
+    },
+    SUBSCRIBE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgQueryProcessCodeStatus.Subscribe.subscribe(fastcode(random));
+        }
+    },
+    LONG_POLL {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgQueryProcessCodeStatus.LongPoll.poll(fastcode(random), 30000);
+        }
+    },
+    INFO_UPDATE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Update.update(1, bytes(size, random), fastcode(random));
+        }
+    },
+    INFO_CONDITIONAL_UPDATE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.ConditionalUpdate.update(1, bytes(size, random), fastcode(random));
+        }
+    },
+    INFO_UPDATE_REQUIRED {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.UpdateRequired.required(fastcode(random));
+        }
+    },
+    INFO_UPDATE_REJECTED {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.UpdateRejected.rejected(fastcode(random));
+        }
+    },
+    INFO_REFRESH {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Refresh.refresh(fastcode(random));
+        }
+    },
+    INFO_BATCH_REFRESH {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.BatchRefresh.refresh(fastcodes(size, random));
+        }
+    },
+    INFO_QUERY {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Query.query(fastcode(random));
+        }
+    },
+    INFO_VERSIONED_QUERY {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.VersionedQuery.query(fastcode(random), random.nextInt());
+        }
+    },
+    INFO_VERSION {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Version.version(random.nextInt(), true, fastcode(random));
+        }
+    },
+    INFO_RESPONSE {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Response.response(1, bytes(size, random), fastcode(random));
+        }
+    },
+    /**
+     * {@link #INFO_UPDATE} with an url as captcha data, sent as {@link PkgProcessCodeInfo.UpdateDeflated}
+     */
+    INFO_UPDATE_DEFLATED(true) {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Update.update(1, url(size, random), fastcode(random));
+        }
+    },
+    /**
+     * {@link #INFO_RESPONSE} with an url as captcha data, sent as {@link PkgProcessCodeInfo.ResponseDeflated}
+     */
+    INFO_RESPONSE_DEFLATED(true) {
+        @Override
+        Packet create(int size, Random random) {
+            return PkgProcessCodeInfo.Response.response(1, url(size, random), fastcode(random));
+        }
+    };
+
+    final boolean deflated;
+
+    BenchPacket() {
+        this(false);
+    }
+
+    BenchPacket(boolean deflated) {
+        this.deflated = deflated;
+    }
+
+    abstract Packet create(int size, Random random);
+
+    private static byte[] fastcode(Random random) {
+        byte[] rsp = new byte[8];
+        for (int i = 0; i < rsp.length; i++) {
+            rsp[i] = (byte) ('0' + random.nextInt(10));
+        }
+        return rsp;
+    }
+
+    private static byte[][] fastcodes(int size, Random random) {
+        // fastcode and its int16 length
+        byte[][] rsp = new byte[Math.max(1, size / 10)][];
+        for (int i = 0; i < rsp.length; i++) {
+            rsp[i] = fastcode(random);
+        }
+        return rsp;
+    }
+
+    private static byte[] bytes(int size, Random random) {
+        byte[] rsp = new byte[size];
+        random.nextBytes(rsp);
+        return rsp;
+    }
+
+    private static byte[] url(int size, Random random) {
+        StringBuilder url = new StringBuilder("https://captcha.example/slider?aid=2033864629&protocol=https&accver=1&showtype=popup");
+        while (url.length() < size) {
+            url.append("&sess=").append(Long.toHexString(random.nextLong()));
+        }
+        url.setLength(size);
+        return url.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.benchmark;
+
+import com.kasukusakura.tcrs.network.PkgCodec;
+import com.kasukusakura.tcrs.network.packets.Packet;
+import com.kasukusakura.tcrs.network.packets.PkgKeepAlive;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the encoder and decoder of {@link PkgCodec}, per packet.
+ * <p>
+ * Packets travel through an {@link EmbeddedChannel} holding both handlers, no socket is involved.
+ * Run with {@code -prof gc} for the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PkgCodecBenchmark {
+    /**
+     * Packets per buffer of the batch benchmarks
+     */
+    static final int BATCH = 64;
+
+    @Param
+    public BenchPacket packet;
+
+    @Param({"16", "1024", "16384"})
+    public int size;
+
+    @Param({"v1", "v2"})
+    public String framing;
+
+    private EmbeddedChannel channel;
+    private Packet pkg;
+    // One encoded frame, and BATCH of them in one buffer
+    private ByteBuf frame;
+    private ByteBuf frames;
+
+    @Setup
+    public void setup() {
+        PkgCodec codec = new PkgCodec()
+                .setAggregateWrites(PkgCodec.DEFAULT_AGGREGATE_BYTES)
+                .setFramingV2(true);
+        if (packet.deflated) {
+            codec.setCompressionThreshold(PkgCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        }
+        channel = new EmbeddedChannel(codec.getEncoder(), codec.getDecoder());
+        if (framing.equals("v2")) {
+            // Our reply switches the encoder, fed back it switches the decoder as if the peer sent it
+            channel.writeAndFlush(PkgKeepAlive.Hello.reply(codec.getCapabilities(), true));
+            channel.writeInbound(readOutbound());
+            channel.releaseOutbound();
+            channel.releaseInbound();
+        }
+        channel.attr(PkgCodec.PEER_CAPABILITIES).set(codec.getCapabilities());
+
+        pkg = packet.create(size, new Random(size));
+        channel.writeAndFlush(pkg);
+        frame = readOutbound();
+        for (int i = 0; i < BATCH; i++) {
+            channel.write(pkg);
+        }
+        channel.flush();
+        frames = readOutbound();
+        channel.checkException();
+    }
+
+    /**
+     * All buffers written by the encoder, in one unpooled buffer
+     */
+    private ByteBuf readOutbound() {
+        ByteBuf rsp = Unpooled.buffer();
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            rsp.writeBytes(buf);
+            buf.release();
+        }
+        return rsp;
+    }
+
+    @TearDown
+    public void tearDown() {
+        frame.release();
+        frames.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void encode(Blackhole bh) {
+        channel.writeAndFlush(pkg);
+        drainOutbound(bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void encodeBatch(Blackhole bh) {
+        for (int i = 0; i < BATCH; i++) {
+            channel.write(pkg);
+        }
+        channel.flush();
+        drainOutbound(bh);
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) {
+        channel.writeInbound(frame.retainedDuplicate());
+        drainInbound(bh);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void decodeBatch(Blackhole bh) {
+        channel.writeInbound(frames.retainedDuplicate());
+        drainInbound(bh);
+    }
+
+    private void drainOutbound(Blackhole bh) {
+        ByteBuf buf;
+        while ((buf = channel.readOutbound()) != null) {
+            bh.consume(buf.readableBytes());
+            buf.release();
+        }
+    }
+
+    private void drainInbound(Blackhole bh) {
+        Object msg;
+        while ((msg = channel.readInbound()) != null) {
+            bh.consume(msg);
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
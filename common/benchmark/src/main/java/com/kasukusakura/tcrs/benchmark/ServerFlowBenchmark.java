@@ -0,0 +1,297 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.benchmark;
+
+import com.kasukusakura.tcrs.network.PkgCodec;
+import com.kasukusakura.tcrs.network.packets.*;
+import com.kasukusakura.tcrs.server.TCRSServerChannelInitializer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the whole captcha flow against {@link TCRSServerChannelInitializer} over {@link LocalChannel}s,
+ * so the cost of the server logic is measured without the network stack.
+ * <p>
+ * Each client owns a desktop and a resolver connection and repeats
+ * NewProcessCodeReq, ProcessCodeInfoUpdate, ProcessCodeInfoRefresh (desktop), ProcessCodeInfoQuery,
+ * ProcessCodeComplete (resolver) and QueryProcessCodeStatus (desktop), one request at a time.
+ * Requests the server does not answer are followed by a KeepAlive, their latency lasts until its echo.
+ * <p>
+ * Options: {@code --clients=16 --seconds=10 --warmup=3 --data-size=1024 --server-threads=<cpus> --client-threads=<cpus> --framing-v2}
+ */
+public class ServerFlowBenchmark {
+    enum Phase {
+        NEW_PROCESS_CODE,
+        UPDATE,
+        REFRESH,
+        QUERY,
+        COMPLETE,
+        STATUS,
+    }
+
+    private static volatile boolean running = true;
+    private static volatile boolean recording;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq == -1 ? arg.substring(2) : arg.substring(2, eq), eq == -1 ? "true" : arg.substring(eq + 1));
+        }
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        int dataSize = Integer.parseInt(options.getOrDefault("data-size", "1024"));
+        int serverThreads = Integer.parseInt(options.getOrDefault("server-threads", String.valueOf(cpus)));
+        int clientThreads = Integer.parseInt(options.getOrDefault("client-threads", String.valueOf(cpus)));
+        boolean framingV2 = Boolean.parseBoolean(options.getOrDefault("framing-v2", "false"));
+
+        EventLoopGroup serverGroup = new DefaultEventLoopGroup(serverThreads);
+        EventLoopGroup clientGroup = new DefaultEventLoopGroup(clientThreads);
+        try {
+            LocalAddress address = new LocalAddress("tcrs-server-flow");
+            Channel server = new ServerBootstrap()
+                    .group(serverGroup)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new TCRSServerChannelInitializer())
+                    .bind(address).sync().channel();
+
+            PkgCodec codec = new PkgCodec().setFramingV2(framingV2);
+            byte[] captchaData = new byte[dataSize];
+            new Random(dataSize).nextBytes(captchaData);
+            List<FlowClient> flowClients = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                FlowClient client = new FlowClient(codec, captchaData);
+                client.connect(clientGroup.next(), address);
+                flowClients.add(client);
+            }
+            System.out.println("Running " + clients + " clients, " + dataSize + " bytes captcha data, "
+                    + serverThreads + " server threads, " + clientThreads + " client threads, "
+                    + (framingV2 ? "v2" : "v1") + " framing");
+
+            TimeUnit.SECONDS.sleep(warmup);
+            recording = true;
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(seconds);
+            recording = false;
+            long elapsed = System.nanoTime() - start;
+            running = false;
+
+            for (FlowClient client : flowClients) {
+                client.close();
+            }
+            server.close().sync();
+            report(flowClients, elapsed);
+        } finally {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void report(List<FlowClient> clients, long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long flows = 0, errors = 0;
+        for (FlowClient client : clients) {
+            flows += client.flows;
+            errors += client.errors;
+        }
+        System.out.printf("%-18s %10s %12s %10s %10s %10s %10s %10s%n",
+                "phase", "ops", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (Phase phase : Phase.values()) {
+            int count = 0;
+            for (FlowClient client : clients) {
+                count += client.samples[phase.ordinal()].size;
+            }
+            long[] samples = new long[count];
+            int offset = 0;
+            for (FlowClient client : clients) {
+                Samples s = client.samples[phase.ordinal()];
+                System.arraycopy(s.values, 0, samples, offset, s.size);
+                offset += s.size;
+            }
+            Arrays.sort(samples);
+            System.out.printf("%-18s %10d %12.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    phase, count, count / elapsedSeconds,
+                    percentile(samples, 0.5), percentile(samples, 0.9), percentile(samples, 0.99),
+                    percentile(samples, 0.999), percentile(samples, 1));
+        }
+        System.out.printf("Completed flows: %d (%.1f/s), errors: %d%n", flows, flows / elapsedSeconds, errors);
+    }
+
+    /**
+     * @return the {@code p} percentile of sorted {@code samples}, in microseconds
+     */
+    private static double percentile(long[] samples, double p) {
+        if (samples.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p * samples.length) - 1;
+        return samples[Math.max(0, index)] / 1e3;
+    }
+
+    private static final class Samples {
+        long[] values = new long[1024];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * One desktop and one resolver connection, driven from a single event loop
+     */
+    private static final class FlowClient {
+        final PkgCodec codec;
+        final byte[] captchaData;
+        final Samples[] samples = new Samples[Phase.values().length];
+        // Written on the event loop, read after it stopped
+        volatile long flows, errors;
+
+        Channel desktop, resolver;
+        byte[] fastcode;
+        Phase phase;
+        long phaseStart;
+
+        FlowClient(PkgCodec codec, byte[] captchaData) {
+            this.codec = codec;
+            this.captchaData = captchaData;
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = new Samples();
+            }
+        }
+
+        void connect(EventLoop loop, LocalAddress address) throws InterruptedException {
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(loop)
+                    .channel(LocalChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline()
+                                    .addLast("encoder", codec.getEncoder())
+                                    .addLast("decoder", codec.getDecoder())
+                                    .addLast("processor", new ChannelInboundHandlerAdapter() {
+                                        @Override
+                                        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                            try {
+                                                received(ctx.channel(), msg);
+                                            } finally {
+                                                ReferenceCountUtil.release(msg);
+                                            }
+                                        }
+
+                                        @Override
+                                        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                            cause.printStackTrace(System.err);
+                                            ctx.close();
+                                        }
+                                    });
+                        }
+                    });
+            desktop = bootstrap.connect(address).sync().channel();
+            resolver = bootstrap.connect(address).sync().channel();
+            int capabilities = codec.getCapabilities();
+            if (capabilities != 0) {
+                desktop.writeAndFlush(PkgKeepAlive.Hello.hello(capabilities));
+                resolver.writeAndFlush(PkgKeepAlive.Hello.hello(capabilities));
+            }
+            loop.execute(() -> begin(Phase.NEW_PROCESS_CODE));
+        }
+
+        void close() throws InterruptedException {
+            desktop.close().sync();
+            resolver.close().sync();
+        }
+
+        private void begin(Phase phase) {
+            this.phase = phase;
+            phaseStart = System.nanoTime();
+            switch (phase) {
+                case NEW_PROCESS_CODE:
+                    desktop.writeAndFlush(PkgNewProcessCode.Req.INSTANCE);
+                    break;
+                case UPDATE:
+                    desktop.write(PkgProcessCodeInfo.Update.update(1, captchaData, fastcode));
+                    desktop.writeAndFlush(PkgKeepAlive.INSTANCE);
+                    break;
+                case REFRESH:
+                    desktop.write(PkgProcessCodeInfo.Refresh.refresh(fastcode));
+                    desktop.writeAndFlush(PkgKeepAlive.INSTANCE);
+                    break;
+                case QUERY:
+                    resolver.writeAndFlush(PkgProcessCodeInfo.Query.query(fastcode));
+                    break;
+                case COMPLETE:
+                    resolver.write(PkgNewProcessCode.Complete.complete(fastcode, fastcode));
+                    resolver.writeAndFlush(PkgKeepAlive.INSTANCE);
+                    break;
+                case STATUS:
+                    desktop.writeAndFlush(PkgQueryProcessCodeStatus.Req.req(fastcode));
+                    break;
+            }
+        }
+
+        private void received(Channel channel, Object msg) {
+            if (msg instanceof PkgKeepAlive.Hello) return;
+            if (!expected(channel, msg)) {
+                errors++;
+                System.err.println("Unexpected " + msg + " in phase " + phase);
+                channel.close();
+                return;
+            }
+            if (recording) {
+                samples[phase.ordinal()].add(System.nanoTime() - phaseStart);
+            }
+            if (phase == Phase.STATUS) {
+                flows++;
+                if (running) begin(Phase.NEW_PROCESS_CODE);
+            } else {
+                begin(Phase.values()[phase.ordinal() + 1]);
+            }
+        }
+
+        private boolean expected(Channel channel, Object msg) {
+            switch (phase) {
+                case NEW_PROCESS_CODE:
+                    if (channel != desktop || !(msg instanceof PkgNewProcessCode.Rsp)) return false;
+                    fastcode = ((PkgNewProcessCode.Rsp) msg).fastcode;
+                    return true;
+                case UPDATE:
+                case REFRESH:
+                    return channel == desktop && msg == PkgKeepAlive.INSTANCE;
+                case QUERY:
+                    return channel == resolver && msg instanceof PkgProcessCodeInfo.Response
+                            && Arrays.equals(((PkgProcessCodeInfo.Response) msg).captchaData, captchaData);
+                case COMPLETE:
+                    return channel == resolver && msg == PkgKeepAlive.INSTANCE;
+                case STATUS:
+                    return channel == desktop && msg instanceof PkgQueryProcessCodeStatus.Rsp
+                            && ((PkgQueryProcessCodeStatus.Rsp) msg).ticket != null;
+                default:
+                    return false;
+            }
+        }
+    }
+}
@@ -9,12 +9,13 @@
 
 package com.kasukusakura.tcrs.client;
 
+import com.kasukusakura.tcrs.network.Transport;
+import com.kasukusakura.tcrs.network.TransportOptions;
 import com.kasukusakura.tcrs.network.packets.PkgKeepAlive;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.ScheduledFuture;
 
 import java.net.SocketAddress;
@@ -23,7 +24,11 @@ import java.util.concurrent.TimeUnit;
 public abstract class AutoReconnectClientConnection extends ClientConnection {
     protected EventLoopGroup eventLoopGroup;
     protected boolean shutdownEventLoopGroupWhenDisconnect;
-    protected Class<? extends Channel> channelType = NioSocketChannel.class;
+    /**
+     * Channel type of the connection, {@code null} for the socket channel of the transport of {@link #eventLoopGroup}
+     */
+    protected Class<? extends Channel> channelType;
+    protected TransportOptions transportOptions = TransportOptions.fromSystemProperties();
     protected SocketAddress address;
 
 
@@ -43,11 +48,14 @@ public abstract class AutoReconnectClientConnection extends ClientConnection {
         }
         this.bindChannel = null;
         if (eventLoopGroup == null) {
-            eventLoopGroup = new NioEventLoopGroup();
+            eventLoopGroup = Transport.best().newEventLoopGroup(0);
             shutdownEventLoopGroupWhenDisconnect = true;
         }
-        basicBootstrap()
-                .channel(channelType)
+        Bootstrap bootstrap = Transport.of(eventLoopGroup).configure(basicBootstrap(), transportOptions);
+        if (channelType != null) {
+            bootstrap.channel(channelType);
+        }
+        bootstrap
                 .group(eventLoopGroup)
                 .connect(address)
                 .addListener(cf -> {
@@ -18,13 +18,20 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.ReferenceCountUtil;
 
+import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.TimeUnit;
 
 public abstract class ClientConnection {
-    protected PkgCodec codec = new PkgCodec();
+    protected PkgCodec codec = new PkgCodec()
+            .setCompressionThreshold(PkgCodec.DEFAULT_COMPRESSION_THRESHOLD)
+            .setChunkedTransfers(PkgCodec.DEFAULT_MAX_TRANSFER_BYTES)
+            .setPooledPackets(true)
+            .setFramingV2(true)
+            .addCapabilities(PkgKeepAlive.Hello.CAP_UPDATE_REJECTED);
     protected Channel bindChannel;
     protected Queue<Object> pendingPacketsToSend = new ConcurrentLinkedDeque<>();
     protected boolean disconnected;
@@ -75,6 +82,30 @@ public abstract class ClientConnection {
         sendPacket(PkgQueryProcessCodeStatus.Req.req(fastcode));
     }
 
+    /**
+     * Lets the server push the ticket of {@code fastcode} to {@link #onTickReceived} once it is available.
+     * The subscription ends with the connection.
+     */
+    public void subscribeTicket(byte[] fastcode) {
+        sendPacket(PkgQueryProcessCodeStatus.Subscribe.subscribe(fastcode));
+    }
+
+    /**
+     * Asks the server to hold the status response until the ticket arrives or {@code maxWaitMillis} elapsed
+     */
+    public void sendTicketLongPoll(byte[] fastcode, int maxWaitMillis) {
+        sendPacket(PkgQueryProcessCodeStatus.LongPoll.poll(fastcode, maxWaitMillis));
+    }
+
+    /**
+     * Queries the status of all {@code fastcodes} with as few frames as possible
+     */
+    public void sendTicketQueryRequests(Collection<byte[]> fastcodes) {
+        for (PkgQueryProcessCodeStatus.BatchReq req : PkgQueryProcessCodeStatus.BatchReq.batches(fastcodes)) {
+            sendPacket(req);
+        }
+    }
+
     public void completeTicket(byte[] fastcode, byte[] ticket) {
         sendPacket(PkgNewProcessCode.Complete.complete(fastcode, ticket));
     }
@@ -91,17 +122,70 @@ public abstract class ClientConnection {
         sendPacket(PkgProcessCodeInfo.Update.update(captchaType, cpatchaData, fastcode));
     }
 
+    /**
+     * Sends only the hash of {@code captchaData} when the server announced {@link PkgKeepAlive.Hello#CAP_CONDITIONAL_UPDATE},
+     * the full update otherwise. A server not storing the same data answers with {@link #onProcessCodeInfoUpdateRequired}.
+     */
+    public void sendProcessCodeInfoConditionalUpdate(int captchaType, byte[] captchaData, byte[] fastcode) {
+        Channel channel = bindChannel;
+        if (channel != null && (PkgCodec.getPeerCapabilities(channel) & PkgKeepAlive.Hello.CAP_CONDITIONAL_UPDATE) != 0) {
+            sendPacket(PkgProcessCodeInfo.ConditionalUpdate.update(captchaType, captchaData, fastcode));
+        } else {
+            sendProcessCodeInfoUpdate(captchaType, captchaData, fastcode);
+        }
+    }
+
     public void sendProcessCodeRefresh(byte[] fastcode) {
         sendPacket(PkgProcessCodeInfo.Refresh.refresh(fastcode));
     }
 
+    public void sendProcessCodeRefreshes(Collection<byte[]> fastcodes) {
+        for (PkgProcessCodeInfo.BatchRefresh refresh : PkgProcessCodeInfo.BatchRefresh.batches(fastcodes)) {
+            sendPacket(refresh);
+        }
+    }
+
     public void fetchProcessCodeInfo(byte[] fastcode) {
         sendPacket(PkgProcessCodeInfo.Query.query(fastcode));
     }
 
+    /**
+     * Fetches the captcha data of {@code fastcode} only if it changed since {@code knownVersion},
+     * as reported by {@link #onProcessCodeInfoVersion}. {@code 0} always fetches it.
+     * <p>
+     * Servers not announcing {@link PkgKeepAlive.Hello#CAP_VERSIONED_QUERY} always send the data
+     * without reporting a version.
+     */
+    public void fetchProcessCodeInfo(byte[] fastcode, int knownVersion) {
+        Channel channel = bindChannel;
+        if (channel != null && (PkgCodec.getPeerCapabilities(channel) & PkgKeepAlive.Hello.CAP_VERSIONED_QUERY) != 0) {
+            sendPacket(PkgProcessCodeInfo.VersionedQuery.query(fastcode, knownVersion));
+        } else {
+            fetchProcessCodeInfo(fastcode);
+        }
+    }
+
     protected void onReceivedProcessCodeInfo(PkgProcessCodeInfo.Response response) {
     }
 
+    /**
+     * Answer of a versioned fetch, {@link #onReceivedProcessCodeInfo} follows if {@code modified}
+     */
+    protected void onProcessCodeInfoVersion(byte[] fastcode, int version, boolean modified) {
+    }
+
+    /**
+     * Server asks for the full captcha data of {@code fastcode} after a conditional update
+     */
+    protected void onProcessCodeInfoUpdateRequired(byte[] fastcode) {
+    }
+
+    /**
+     * Server has no room for the captcha data of {@code fastcode}, the session keeps its previous data
+     */
+    protected void onProcessCodeInfoUpdateRejected(byte[] fastcode) {
+    }
+
 
     protected Bootstrap basicBootstrap() {
         return new Bootstrap()
@@ -145,10 +229,36 @@ public abstract class ClientConnection {
         if (msg instanceof PkgQueryProcessCodeStatus.Rsp) {
             PkgQueryProcessCodeStatus.Rsp rsp = (PkgQueryProcessCodeStatus.Rsp) msg;
             if (rsp.ticket != null) {
-                onTickReceived(rsp.ticket, rsp.fastcode);
+                if (rsp instanceof PkgQueryProcessCodeStatus.RspPooled) {
+                    // Arrays go back to the pool with the packet
+                    onTickReceived(rsp.ticket.clone(), rsp.fastcode.clone());
+                } else {
+                    onTickReceived(rsp.ticket, rsp.fastcode);
+                }
+            }
+            return;
+        }
+        if (msg instanceof PkgQueryProcessCodeStatus.BatchRsp) {
+            for (PkgQueryProcessCodeStatus.Rsp rsp : ((PkgQueryProcessCodeStatus.BatchRsp) msg).entries) {
+                if (rsp.ticket != null) {
+                    onTickReceived(rsp.ticket, rsp.fastcode);
+                }
             }
             return;
         }
+        if (msg instanceof PkgProcessCodeInfo.Version) {
+            PkgProcessCodeInfo.Version version = (PkgProcessCodeInfo.Version) msg;
+            onProcessCodeInfoVersion(version.fastcode, version.version, version.modified);
+            return;
+        }
+        if (msg instanceof PkgProcessCodeInfo.UpdateRequired) {
+            onProcessCodeInfoUpdateRequired(((PkgProcessCodeInfo.UpdateRequired) msg).fastcode);
+            return;
+        }
+        if (msg instanceof PkgProcessCodeInfo.UpdateRejected) {
+            onProcessCodeInfoUpdateRejected(((PkgProcessCodeInfo.UpdateRejected) msg).fastcode);
+            return;
+        }
         if (msg instanceof PkgProcessCodeInfo.Response) {
             onReceivedProcessCodeInfo((PkgProcessCodeInfo.Response) msg);
             return;
@@ -178,7 +288,11 @@ public abstract class ClientConnection {
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             if (msg instanceof Packet) {
-                handlePacket(ctx, (Packet) msg);
+                try {
+                    handlePacket(ctx, (Packet) msg);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
                 return;
             }
             super.channelRead(ctx, msg);
@@ -191,6 +305,10 @@ public abstract class ClientConnection {
 
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            int capabilities = codec.getCapabilities();
+            if (capabilities != 0) {
+                ctx.write(PkgKeepAlive.Hello.hello(capabilities));
+            }
             bindConnection(ctx.channel());
             ctx.fireChannelActive();
         }
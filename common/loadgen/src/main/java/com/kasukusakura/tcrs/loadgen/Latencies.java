@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Latencies in nanoseconds, recorded by a single thread
+ */
+final class Latencies {
+    private long[] values = new long[64];
+    private int size;
+
+    void add(long value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * @return all values of {@code latencies}, sorted
+     */
+    static long[] merge(Collection<Latencies> latencies) {
+        int count = 0;
+        for (Latencies l : latencies) {
+            count += l.size;
+        }
+        long[] rsp = new long[count];
+        int offset = 0;
+        for (Latencies l : latencies) {
+            System.arraycopy(l.values, 0, rsp, offset, l.size);
+            offset += l.size;
+        }
+        Arrays.sort(rsp);
+        return rsp;
+    }
+
+    /**
+     * @return the {@code p} percentile of sorted {@code values}, in milliseconds
+     */
+    static double percentile(long[] values, double p) {
+        if (values.length == 0) return Double.NaN;
+        int index = (int) Math.ceil(p * values.length) - 1;
+        return values[Math.max(0, index)] / 1e6;
+    }
+}
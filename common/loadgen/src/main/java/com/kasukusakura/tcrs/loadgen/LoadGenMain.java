@@ -0,0 +1,253 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import com.kasukusakura.tcrs.network.Transport;
+import com.kasukusakura.tcrs.network.TransportOptions;
+import com.kasukusakura.tcrs.server.SlabSessionStore;
+import com.kasukusakura.tcrs.server.TCRSServerChannelInitializer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates desktops and resolvers against a running server and reports where it saturates.
+ * <p>
+ * Options:
+ * <pre>
+ * --address=host:port     server to load, or --embedded to start one in process
+ * --desktops=1000         desktop connections, each showing captchas in a loop
+ * --resolvers=100         resolver connections, each solving one captcha at a time
+ * --rate=100              captchas per second started by all desktops together
+ * --solve-millis=50       time a resolver spends on a captcha
+ * --timeout-millis=10000  a captcha without ticket after that counts as timed out
+ * --data-size=1024        bytes of captcha data
+ * --threads=&lt;cpus&gt;        event loop threads of the load generator
+ * --seconds=30 --warmup=5
+ * --jmx=host:port         JMX agent of the server, for its memory usage
+ * --flush-consolidation=N flushes per read batch of the embedded server, 0 flushes each response
+ * --slab-budget-mb=N      keep the sessions of the embedded server in a slab store of that budget
+ * --matrix=N              repeat the run with 1, 2, 4 .. N event loop threads: those of the embedded
+ *                         server with --embedded, those of the load generator otherwise
+ * </pre>
+ */
+public class LoadGenMain {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(1);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq == -1 ? arg.substring(2) : arg.substring(2, eq), eq == -1 ? "true" : arg.substring(eq + 1));
+        }
+        boolean embedded = Boolean.parseBoolean(options.getOrDefault("embedded", "false"));
+        String address = options.get("address");
+        if (address == null && !embedded) {
+            System.err.println("java -jar txcaptcha-resolver-loadgen.jar --address=<host:port> [--desktops=1000] [--resolvers=100] [--rate=100] [--jmx=<host:port>] [--matrix=<threads>]");
+            System.exit(1);
+        }
+
+        LoadGenMain main = new LoadGenMain();
+        main.desktops = Integer.parseInt(options.getOrDefault("desktops", "1000"));
+        main.resolvers = Integer.parseInt(options.getOrDefault("resolvers", "100"));
+        main.rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        main.solveMillis = Integer.parseInt(options.getOrDefault("solve-millis", "50"));
+        main.timeoutMillis = Integer.parseInt(options.getOrDefault("timeout-millis", "10000"));
+        main.captchaData = new byte[Integer.parseInt(options.getOrDefault("data-size", "1024"))];
+        new Random(0).nextBytes(main.captchaData);
+        main.seconds = Integer.parseInt(options.getOrDefault("seconds", "30"));
+        main.warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        main.jmx = options.get("jmx");
+        if (options.containsKey("slab-budget-mb")) {
+            main.slabBudgetMB = Long.parseLong(options.get("slab-budget-mb"));
+        }
+        if (options.containsKey("flush-consolidation")) {
+            main.flushConsolidationLimit = Integer.parseInt(options.get("flush-consolidation"));
+        }
+        if (address != null) {
+            int split = address.lastIndexOf(':');
+            main.address = new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+        }
+        int threads = Integer.parseInt(options.getOrDefault("threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+        if (!options.containsKey("matrix")) {
+            main.run(threads, threads, embedded);
+            return;
+        }
+        int max = Integer.parseInt(options.get("matrix"));
+        List<Result> results = new ArrayList<>();
+        for (int t = 1; ; t = Math.min(t * 2, max)) {
+            results.add(embedded ? main.run(threads, t, true) : main.run(t, 0, false));
+            if (t == max) break;
+        }
+        System.out.println();
+        System.out.println("== Scaling of the " + (embedded ? "embedded server" : "load generator") + " event loop threads");
+        System.out.printf("%8s %12s %12s %12s %10s %10s %12s%n", "threads", "solved/s", "p50 ms", "p99 ms", "timeouts", "errors", "heap MB");
+        for (Result r : results) {
+            System.out.printf("%8d %12.1f %12.1f %12.1f %10d %10d %12s%n",
+                    r.threads, r.solvedPerSecond, r.solveP50, r.solveP99, r.timeouts, r.errors, megabytes(r.heapPeak));
+        }
+    }
+
+    int desktops, resolvers;
+    double rate;
+    int solveMillis, timeoutMillis;
+    byte[] captchaData;
+    int seconds, warmup;
+    String jmx;
+    SocketAddress address;
+    Integer flushConsolidationLimit;
+    long slabBudgetMB;
+
+    static final class Result {
+        int threads;
+        double solvedPerSecond;
+        double solveP50, solveP99;
+        long timeouts, errors;
+        long heapPeak;
+    }
+
+    /**
+     * @param serverThreads worker threads of the embedded server, unused otherwise
+     */
+    Result run(int clientThreads, int serverThreads, boolean embedded) throws Exception {
+        EventLoopGroup serverGroup = null;
+        Channel server = null;
+        SocketAddress target = address;
+        SlabSessionStore slabStore = embedded && slabBudgetMB > 0 ? new SlabSessionStore(slabBudgetMB * 1024 * 1024) : null;
+        if (embedded) {
+            Integer flushLimit = flushConsolidationLimit;
+            serverGroup = Transport.best().newEventLoopGroup(serverThreads);
+            server = Transport.best().configure(new ServerBootstrap(), TransportOptions.fromSystemProperties())
+                    .group(serverGroup)
+                    .childHandler(new TCRSServerChannelInitializer() {
+                        {
+                            if (flushLimit != null) flushConsolidationLimit = flushLimit;
+                            if (slabStore != null) sessionStore = slabStore;
+                        }
+                    })
+                    .bind("127.0.0.1", 0).sync().channel();
+            target = server.localAddress();
+        }
+        ServerMemoryProbe memory = jmx != null ? ServerMemoryProbe.connect(jmx) : embedded ? ServerMemoryProbe.local() : null;
+
+        EventLoopGroup group = Transport.best().newEventLoopGroup(clientThreads);
+        LoadRound round = new LoadRound(target, group, captchaData, (long) (desktops * 1e9 / rate), solveMillis, timeoutMillis);
+        System.out.println();
+        System.out.println("== " + desktops + " desktops, " + resolvers + " resolvers, " + rate + " captchas/s against " + target
+                + ", " + clientThreads + " load generator threads" + (embedded ? ", " + serverThreads + " server threads" : "")
+                + ", " + Transport.best() + " transport");
+
+        List<SimulatedDesktop> desktopConnections = new ArrayList<>(desktops);
+        List<SimulatedResolver> resolverConnections = new ArrayList<>(resolvers);
+        for (int i = 0; i < resolvers; i++) {
+            SimulatedResolver resolver = new SimulatedResolver(round);
+            resolver.start();
+            resolverConnections.add(resolver);
+        }
+        for (int i = 0; i < desktops; i++) {
+            SimulatedDesktop desktop = new SimulatedDesktop(round);
+            desktop.start();
+            desktopConnections.add(desktop);
+        }
+
+        TimeUnit.SECONDS.sleep(warmup);
+        round.recording = true;
+        long start = System.nanoTime();
+        long heapPeak = -1, directPeak = -1;
+        long lastSolved = 0;
+        for (int second = 1; second <= seconds; second++) {
+            TimeUnit.NANOSECONDS.sleep(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long solved = round.solved.sum();
+            StringBuilder line = new StringBuilder()
+                    .append(String.format("%4ds  solved/s %8d  timeouts %6d  errors %6d  pending %6d",
+                            second, solved - lastSolved, round.timeouts.sum(), round.errors.sum(), round.pending.size()));
+            lastSolved = solved;
+            if (memory != null) {
+                long heap = memory.heapUsed(), direct = memory.directUsed();
+                heapPeak = Math.max(heapPeak, heap);
+                directPeak = Math.max(directPeak, direct);
+                line.append("  heap MB ").append(megabytes(heap)).append("  direct MB ").append(megabytes(direct));
+            }
+            if (slabStore != null) {
+                line.append("  slab used MB ").append(megabytes(slabStore.slabs().usedBytes()))
+                        .append(" of ").append(megabytes(slabStore.slabs().reservedBytes()));
+            }
+            System.out.println(line);
+        }
+        round.recording = false;
+        long elapsed = System.nanoTime() - start;
+        round.running = false;
+
+        for (SimulatedDesktop desktop : desktopConnections) {
+            desktop.disconnect();
+        }
+        for (SimulatedResolver resolver : resolverConnections) {
+            resolver.disconnect();
+        }
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        if (memory != null) memory.close();
+        if (embedded) {
+            server.close().syncUninterruptibly();
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        }
+
+        List<Latencies> fastcode = new ArrayList<>(), solve = new ArrayList<>(), fetch = new ArrayList<>();
+        for (SimulatedDesktop desktop : desktopConnections) {
+            fastcode.add(desktop.fastcodeLatencies);
+            solve.add(desktop.solveLatencies);
+        }
+        for (SimulatedResolver resolver : resolverConnections) {
+            fetch.add(resolver.fetchLatencies);
+        }
+        long[] solveLatencies = Latencies.merge(solve);
+
+        Result result = new Result();
+        result.threads = embedded ? serverThreads : clientThreads;
+        result.solvedPerSecond = round.solved.sum() / (elapsed / 1e9);
+        result.solveP50 = Latencies.percentile(solveLatencies, 0.5);
+        result.solveP99 = Latencies.percentile(solveLatencies, 0.99);
+        result.timeouts = round.timeouts.sum();
+        result.errors = round.errors.sum();
+        result.heapPeak = heapPeak;
+
+        System.out.printf("started %d, solved %d (%.1f/s), timeouts %d, retried fetches %d, errors %d%n",
+                round.started.sum(), round.solved.sum(), result.solvedPerSecond, result.timeouts, round.retries.sum(), result.errors);
+        System.out.printf("%-10s %10s %10s %10s %10s %10s%n", "latency", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        printLatencies("fastcode", Latencies.merge(fastcode));
+        printLatencies("fetch", Latencies.merge(fetch));
+        printLatencies("solve", solveLatencies);
+        if (slabStore != null) {
+            System.out.println("slab store: " + slabStore.slabs());
+            slabStore.close();
+        }
+        if (memory != null) {
+            System.out.println("server heap peak MB " + megabytes(heapPeak) + ", direct peak MB " + megabytes(directPeak));
+        }
+        return result;
+    }
+
+    private static void printLatencies(String name, long[] values) {
+        System.out.printf("%-10s %10.2f %10.2f %10.2f %10.2f %10.2f%n", name,
+                Latencies.percentile(values, 0.5), Latencies.percentile(values, 0.9), Latencies.percentile(values, 0.99),
+                Latencies.percentile(values, 0.999), Latencies.percentile(values, 1));
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "-" : String.format("%.1f", bytes / 1048576.0);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import io.netty.channel.EventLoopGroup;
+
+import java.net.SocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * State shared by the simulated connections of one run
+ */
+final class LoadRound {
+    final SocketAddress address;
+    final EventLoopGroup group;
+    final byte[] captchaData;
+    /**
+     * Time between two captchas of the same desktop
+     */
+    final long desktopIntervalNanos;
+    final int solveMillis;
+    final int timeoutMillis;
+
+    /**
+     * Fastcodes waiting for a resolver, as a user would read them from the desktop
+     */
+    final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+
+    volatile boolean running = true;
+    /**
+     * Counters and latencies are only updated while set, warmup excluded
+     */
+    volatile boolean recording;
+
+    final LongAdder started = new LongAdder();
+    final LongAdder solved = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    LoadRound(SocketAddress address, EventLoopGroup group, byte[] captchaData, long desktopIntervalNanos, int solveMillis, int timeoutMillis) {
+        this.address = address;
+        this.group = group;
+        this.captchaData = captchaData;
+        this.desktopIntervalNanos = desktopIntervalNanos;
+        this.solveMillis = solveMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    static final class Pending {
+        final byte[] fastcode;
+        final long offeredAt;
+
+        Pending(byte[] fastcode, long offeredAt) {
+            this.fastcode = fastcode;
+            this.offeredAt = offeredAt;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+/**
+ * Memory used by the server JVM, read over JMX.
+ * Start ServerMain with {@code -Dcom.sun.management.jmxremote.port=<port> -Dcom.sun.management.jmxremote.authenticate=false -Dcom.sun.management.jmxremote.ssl=false}
+ */
+final class ServerMemoryProbe implements AutoCloseable {
+    private static final String DIRECT_POOL = "java.nio:type=BufferPool,name=direct";
+
+    private final JMXConnector connector;
+    private final MemoryMXBean memory;
+    private final MBeanServerConnection connection;
+
+    private ServerMemoryProbe(JMXConnector connector, MBeanServerConnection connection) throws IOException {
+        this.connector = connector;
+        this.connection = connection;
+        this.memory = ManagementFactory.newPlatformMXBeanProxy(connection, ManagementFactory.MEMORY_MXBEAN_NAME, MemoryMXBean.class);
+    }
+
+    /**
+     * @param hostPort {@code host:port} of the JMX agent of the server
+     */
+    static ServerMemoryProbe connect(String hostPort) throws IOException {
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + hostPort + "/jmxrmi");
+        JMXConnector connector = JMXConnectorFactory.connect(url);
+        return new ServerMemoryProbe(connector, connector.getMBeanServerConnection());
+    }
+
+    /**
+     * Probe of this JVM, for a server running in process
+     */
+    static ServerMemoryProbe local() throws IOException {
+        return new ServerMemoryProbe(null, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    long heapUsed() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return bytes of direct buffers known to the JDK, {@code -1} if unavailable.
+     * Netty allocating without cleaner is not accounted there.
+     */
+    long directUsed() {
+        try {
+            return ((Number) connection.getAttribute(new ObjectName(DIRECT_POOL), "MemoryUsed")).longValue();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (connector != null) connector.close();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import com.kasukusakura.tcrs.client.AutoReconnectClientConnection;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+
+/**
+ * A connection pinned to one event loop, reconnections included, so its state needs no synchronization
+ */
+abstract class SimulatedConnection extends AutoReconnectClientConnection {
+    protected final LoadRound round;
+    protected final EventLoop loop;
+    private boolean connected;
+
+    SimulatedConnection(LoadRound round) {
+        this.round = round;
+        this.loop = round.group.next();
+        this.eventLoopGroup = loop;
+    }
+
+    void start() {
+        connect(round.address);
+    }
+
+    @Override
+    protected void bindConnection(Channel channel) {
+        super.bindConnection(channel);
+        if (!connected) {
+            connected = true;
+            onConnected();
+        }
+    }
+
+    /**
+     * Called on {@link #loop} once the first connection is established
+     */
+    protected abstract void onConnected();
+
+    @Override
+    protected void logError(Throwable throwable, ChannelHandlerContext ctx) {
+        round.errors.increment();
+    }
+}
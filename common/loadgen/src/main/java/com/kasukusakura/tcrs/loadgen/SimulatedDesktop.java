@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A login solver showing captchas: asks for a fastcode, uploads the captcha data,
+ * subscribes to the ticket and starts the next captcha one interval after the previous one.
+ */
+final class SimulatedDesktop extends SimulatedConnection {
+    final Latencies fastcodeLatencies = new Latencies();
+    final Latencies solveLatencies = new Latencies();
+
+    private long started;
+    private boolean waitingFastcode;
+    private byte[] fastcode;
+    private ScheduledFuture<?> timeout;
+
+    SimulatedDesktop(LoadRound round) {
+        super(round);
+    }
+
+    @Override
+    protected void onConnected() {
+        // Spread the desktops over the interval
+        long delay = ThreadLocalRandom.current().nextLong(Math.max(1, round.desktopIntervalNanos));
+        loop.schedule(this::nextCaptcha, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void nextCaptcha() {
+        if (!round.running) return;
+        started = System.nanoTime();
+        waitingFastcode = true;
+        fastcode = null;
+        if (round.recording) round.started.increment();
+        timeout = loop.schedule(this::timedOut, round.timeoutMillis, TimeUnit.MILLISECONDS);
+        sendNewFastCodeReq();
+    }
+
+    @Override
+    protected void onFastCodeReceived(byte[] fastcode) {
+        if (!waitingFastcode) return;
+        waitingFastcode = false;
+        this.fastcode = fastcode;
+        if (round.recording) fastcodeLatencies.add(System.nanoTime() - started);
+
+        sendProcessCodeInfoUpdate(1, round.captchaData, fastcode);
+        subscribeTicket(fastcode);
+        round.pending.offer(new LoadRound.Pending(fastcode, System.nanoTime()));
+    }
+
+    @Override
+    protected void onTickReceived(byte[] ticket, byte[] fastcode) {
+        if (this.fastcode == null || !Arrays.equals(this.fastcode, fastcode)) return;
+        this.fastcode = null;
+        timeout.cancel(false);
+        if (round.recording) {
+            solveLatencies.add(System.nanoTime() - started);
+            round.solved.increment();
+        }
+        scheduleNext();
+    }
+
+    private void timedOut() {
+        waitingFastcode = false;
+        fastcode = null;
+        if (round.recording) round.timeouts.increment();
+        scheduleNext();
+    }
+
+    private void scheduleNext() {
+        long delay = started + round.desktopIntervalNanos - System.nanoTime();
+        if (delay <= 0) {
+            loop.execute(this::nextCaptcha);
+        } else {
+            loop.schedule(this::nextCaptcha, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+}
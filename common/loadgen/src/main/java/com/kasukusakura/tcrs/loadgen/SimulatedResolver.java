@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.loadgen;
+
+import com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A phone solving captchas one at a time: takes a pending fastcode, fetches its captcha data,
+ * spends the solve time and completes it with a ticket.
+ */
+final class SimulatedResolver extends SimulatedConnection {
+    /**
+     * Pause when no fastcode is pending, or the desktop did not upload the captcha data yet
+     */
+    private static final long IDLE_MILLIS = 5;
+
+    final Latencies fetchLatencies = new Latencies();
+
+    private LoadRound.Pending current;
+    private long fetchStarted;
+    private ScheduledFuture<?> timeout;
+
+    SimulatedResolver(LoadRound round) {
+        super(round);
+    }
+
+    @Override
+    protected void onConnected() {
+        takeNext();
+    }
+
+    private void takeNext() {
+        if (!round.running) return;
+        LoadRound.Pending next;
+        long now = System.nanoTime();
+        do {
+            next = round.pending.poll();
+            // Skip fastcodes their desktop already gave up on
+        } while (next != null && now - next.offeredAt > TimeUnit.MILLISECONDS.toNanos(round.timeoutMillis));
+        if (next == null) {
+            loop.schedule(this::takeNext, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        current = next;
+        fetchStarted = now;
+        timeout = loop.schedule(this::timedOut, round.timeoutMillis, TimeUnit.MILLISECONDS);
+        fetchProcessCodeInfo(next.fastcode);
+    }
+
+    @Override
+    protected void onReceivedProcessCodeInfo(PkgProcessCodeInfo.Response response) {
+        LoadRound.Pending pending = current;
+        if (pending == null || !Arrays.equals(pending.fastcode, response.fastcode)) return;
+        current = null;
+        timeout.cancel(false);
+        if (response.captchaData == null) {
+            // Update still on its way through the desktop connection
+            if (round.recording) round.retries.increment();
+            round.pending.offer(pending);
+            loop.schedule(this::takeNext, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (round.recording) fetchLatencies.add(System.nanoTime() - fetchStarted);
+
+        loop.schedule(() -> {
+            byte[] fastcode = pending.fastcode;
+            completeTicket(fastcode, ("ticket-" + new String(fastcode, StandardCharsets.ISO_8859_1)).getBytes(StandardCharsets.ISO_8859_1));
+            takeNext();
+        }, round.solveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void timedOut() {
+        current = null;
+        if (round.recording) round.timeouts.increment();
+        takeNext();
+    }
+}
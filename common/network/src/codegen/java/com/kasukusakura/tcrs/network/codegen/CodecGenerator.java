@@ -0,0 +1,436 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network.codegen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates {@code ProtocolCodecs} from the {@code defpkg}s of protocol.txt.
+ * <p>
+ * Usage: {@code CodecGenerator <protocol.txt> <codecs.txt> <output dir>}
+ * <p>
+ * codecs.txt binds packet classes to defpkgs, one per line:
+ * {@code <class in com.kasukusakura.tcrs.network.packets> = <defpkg> [retained|pooled]}.
+ * Byte arrays become {@code byte[]} fields, or retained {@code ByteBuf} slices with {@code retained}.
+ * {@code pooled} classes are taken from {@code newInstance()} and keep their arrays if the length matches.
+ * Length fields are implied by the array they prefix.
+ * <p>
+ * Only flat layouts are supported: int8, int16, int32, int64 and bool fields,
+ * byte arrays prefixed by an int8 or int16 length and a trailing {@code byte x[*]}.
+ */
+public class CodecGenerator {
+    static final String PACKAGE = "com.kasukusakura.tcrs.network.packets";
+    static final String CLASS_NAME = "ProtocolCodecs";
+
+    private static final Pattern DEFPKG = Pattern.compile("^defpkg\\s*\\[\\s*(\\d+)\\s*]\\s*(\\w+)\\s*\\{$");
+    private static final Pattern FIELD = Pattern.compile("^([\\w-]+)\\s+(\\w+)\\s*(?:\\[\\s*(\\w+|\\*)\\s*])?\\s*;$");
+    private static final Pattern BINDING = Pattern.compile("^([\\w.]+)\\s*=\\s*(\\w+)(?:\\s+(retained|pooled))?$");
+
+    static final class Field {
+        final String type;
+        final String name;
+        // null for scalars, "*" for the rest of the payload, the name of the length field otherwise
+        final String length;
+        boolean isLength;
+
+        Field(String type, String name, String length) {
+            this.type = type;
+            this.name = name;
+            this.length = length;
+        }
+
+        String javaName() {
+            StringBuilder sb = new StringBuilder();
+            boolean upper = false;
+            for (char c : name.toCharArray()) {
+                if (c == '_') {
+                    upper = true;
+                } else {
+                    sb.append(upper ? Character.toUpperCase(c) : c);
+                    upper = false;
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    static final class Defpkg {
+        final int pid;
+        final String name;
+        final List<Field> fields = new ArrayList<>();
+        // Why the layout cannot be generated, null if it can
+        String unsupported;
+
+        Defpkg(int pid, String name) {
+            this.pid = pid;
+            this.name = name;
+        }
+    }
+
+    static final class Binding {
+        final String type;
+        final Defpkg defpkg;
+        final boolean retained;
+        final boolean pooled;
+
+        Binding(String type, Defpkg defpkg, boolean retained, boolean pooled) {
+            this.type = type;
+            this.defpkg = defpkg;
+            this.retained = retained;
+            this.pooled = pooled;
+        }
+
+        String constantName() {
+            StringBuilder sb = new StringBuilder();
+            String name = defpkg.name;
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (i != 0 && Character.isUpperCase(c)) sb.append('_');
+                sb.append(Character.toUpperCase(c));
+            }
+            if (retained) sb.append("_RETAINED");
+            if (pooled) sb.append("_POOLED");
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: CodecGenerator <protocol.txt> <codecs.txt> <output dir>");
+            System.exit(1);
+        }
+        Map<String, Defpkg> defpkgs = parseSpec(Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8));
+        List<Binding> bindings = parseBindings(Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8), defpkgs);
+
+        Path output = Paths.get(args[2]).resolve(PACKAGE.replace('.', '/')).resolve(CLASS_NAME + ".java");
+        byte[] source = generate(bindings).getBytes(StandardCharsets.UTF_8);
+        if (Files.exists(output) && Arrays.equals(Files.readAllBytes(output), source)) return;
+        Files.createDirectories(output.getParent());
+        Files.write(output, source);
+    }
+
+    static Map<String, Defpkg> parseSpec(List<String> lines) {
+        Map<String, Defpkg> defpkgs = new LinkedHashMap<>();
+        Defpkg current = null;
+        int depth = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf("//");
+            if (comment != -1) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            if (current == null) {
+                Matcher matcher = DEFPKG.matcher(line);
+                if (matcher.matches()) {
+                    current = new Defpkg(Integer.parseInt(matcher.group(1)), matcher.group(2));
+                    if (defpkgs.containsKey(current.name)) {
+                        throw new IllegalArgumentException("Line " + (i + 1) + ": duplicated defpkg " + current.name);
+                    }
+                    defpkgs.put(current.name, current);
+                }
+                continue;
+            }
+            if (line.startsWith("}")) {
+                if (depth == 0) {
+                    current = null;
+                } else {
+                    depth--;
+                }
+                continue;
+            }
+            if (line.endsWith("{")) {
+                depth++;
+                if (current.unsupported == null) current.unsupported = "nested block: " + line;
+                continue;
+            }
+            if (depth != 0) continue;
+
+            Matcher matcher = FIELD.matcher(line);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": bad field: " + line);
+            }
+            current.fields.add(new Field(matcher.group(1), matcher.group(2), matcher.group(3)));
+        }
+        if (current != null) {
+            throw new IllegalArgumentException("defpkg " + current.name + " not closed");
+        }
+        for (Defpkg defpkg : defpkgs.values()) {
+            if (defpkg.unsupported == null) defpkg.unsupported = check(defpkg);
+        }
+        return defpkgs;
+    }
+
+    /**
+     * Marks length fields and checks the layout can be generated
+     *
+     * @return why it cannot, null if it can
+     */
+    private static String check(Defpkg defpkg) {
+        Map<String, Field> scalars = new HashMap<>();
+        for (int i = 0; i < defpkg.fields.size(); i++) {
+            Field field = defpkg.fields.get(i);
+            if (field.length == null) {
+                if (!Arrays.asList("int8", "int16", "int32", "int64", "bool").contains(field.type)) {
+                    return "unsupported type " + field.type + " of " + field.name;
+                }
+                scalars.put(field.name, field);
+                continue;
+            }
+            if (!field.type.equals("byte")) {
+                return "unsupported array type " + field.type + " of " + field.name;
+            }
+            if (field.length.equals("*")) {
+                if (i != defpkg.fields.size() - 1) return field.name + "[*] is not the last field";
+                continue;
+            }
+            Field length = scalars.remove(field.length);
+            if (length == null) {
+                return "length " + field.length + " of " + field.name + " is not a preceding field";
+            }
+            if (!length.type.equals("int8") && !length.type.equals("int16")) {
+                return "unsupported length type " + length.type + " of " + field.name;
+            }
+            if (defpkg.fields.indexOf(length) != i - 1) {
+                return "length " + field.length + " does not directly precede " + field.name;
+            }
+            length.isLength = true;
+        }
+        return null;
+    }
+
+    static List<Binding> parseBindings(List<String> lines, Map<String, Defpkg> defpkgs) {
+        List<Binding> bindings = new ArrayList<>();
+        Set<String> constants = new HashSet<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            Matcher matcher = BINDING.matcher(line);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": bad binding: " + line);
+            }
+            Defpkg defpkg = defpkgs.get(matcher.group(2));
+            if (defpkg == null) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": no defpkg " + matcher.group(2));
+            }
+            if (defpkg.unsupported != null) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": cannot generate " + defpkg.name + ", " + defpkg.unsupported);
+            }
+            Binding binding = new Binding(matcher.group(1), defpkg, "retained".equals(matcher.group(3)), "pooled".equals(matcher.group(3)));
+            if (!constants.add(binding.constantName())) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + defpkg.name + " already bound");
+            }
+            bindings.add(binding);
+        }
+        return bindings;
+    }
+
+    static String generate(List<Binding> bindings) {
+        StringBuilder out = new StringBuilder();
+        out.append("/*\n" +
+                " * Copyright 2021-2022 KasukuSakura Technologies and contributors.\n" +
+                " *\n" +
+                " * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.\n" +
+                " * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.\n" +
+                " *\n" +
+                " * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE\n" +
+                " */\n\n");
+        out.append("package ").append(PACKAGE).append(";\n\n");
+        out.append("import io.netty.buffer.ByteBuf;\n\n");
+        out.append("/**\n");
+        out.append(" * Codecs generated from protocol.txt by CodecGenerator, do not edit.\n");
+        out.append(" */\n");
+        out.append("final class ").append(CLASS_NAME).append(" {\n");
+        out.append("    private ").append(CLASS_NAME).append("() {\n");
+        out.append("    }\n");
+        for (Binding binding : bindings) {
+            out.append('\n');
+            generateCodec(out, binding);
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private static void generateCodec(StringBuilder out, Binding binding) {
+        String type = binding.type;
+        Defpkg defpkg = binding.defpkg;
+        boolean hasLengths = false;
+        for (Field field : defpkg.fields) {
+            hasLengths |= field.isLength;
+        }
+
+        out.append("    // defpkg [").append(defpkg.pid).append("] ").append(defpkg.name).append('\n');
+        out.append("    static final PacketCodec<").append(type).append("> ").append(binding.constantName())
+                .append(" = new PacketCodec<").append(type).append(">() {\n");
+
+        generateDecode(out, binding, "decode", false);
+        generateWrite(out, binding, "write", false);
+        generateSize(out, binding, "encodedSize", false);
+        if (hasLengths) {
+            generateDecode(out, binding, "decodeV2", true);
+            generateWrite(out, binding, "writeV2", true);
+            generateSize(out, binding, "encodedSizeV2", true);
+        }
+
+        out.append("        @Override\n");
+        out.append("        public boolean isInstance(Object msg) {\n");
+        out.append("            return msg instanceof ").append(type).append(";\n");
+        out.append("        }\n");
+        out.append("    };\n");
+    }
+
+    private static void generateDecode(StringBuilder out, Binding binding, String method, boolean v2) {
+        String type = binding.type;
+        out.append("        @Override\n");
+        out.append("        public ").append(type).append(' ').append(method).append("(int payloadlen, ByteBuf buf) {\n");
+        if (binding.pooled) {
+            out.append("            ").append(type).append(" rsp = ").append(type).append(".newInstance();\n");
+        } else {
+            out.append("            ").append(type).append(" rsp = new ").append(type).append("();\n");
+        }
+        List<Field> fields = binding.defpkg.fields;
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            if (field.isLength) continue;
+            String target = "rsp." + field.javaName();
+            if (field.length == null) {
+                out.append("            ").append(target).append(" = ").append(read(field.type)).append(";\n");
+                continue;
+            }
+            String length = field.length.equals("*") ? "buf.readableBytes()" : v2 ? "VarInt.readLength(buf, true)" : read(fields.get(i - 1).type);
+            if (binding.retained) {
+                out.append("            ").append(target).append(" = buf.readRetainedSlice(").append(length).append(");\n");
+            } else if (binding.pooled) {
+                out.append("            ").append(target).append(" = PooledPacket.array(").append(target).append(", ").append(length).append(");\n");
+                out.append("            buf.readBytes(").append(target).append(");\n");
+            } else {
+                out.append("            ").append(target).append(" = new byte[").append(length).append("];\n");
+                out.append("            buf.readBytes(").append(target).append(");\n");
+            }
+        }
+        out.append("            return rsp;\n");
+        out.append("        }\n\n");
+    }
+
+    private static void generateWrite(StringBuilder out, Binding binding, String method, boolean v2) {
+        out.append("        @Override\n");
+        out.append("        public void ").append(method).append('(').append(binding.type).append(" msg, ByteBuf buf) {\n");
+        List<Field> fields = binding.defpkg.fields;
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            if (field.isLength) continue;
+            String source = "msg." + field.javaName();
+            if (field.length == null) {
+                out.append("            buf.").append(write(field.type)).append('(').append(source).append(");\n");
+                continue;
+            }
+            if (!field.length.equals("*")) {
+                String length = length(binding, source);
+                if (v2) {
+                    out.append("            VarInt.write(buf, ").append(length).append(");\n");
+                } else {
+                    out.append("            buf.").append(write(fields.get(i - 1).type)).append('(').append(length).append(");\n");
+                }
+            }
+            if (binding.retained) {
+                out.append("            RefCountedPacket.write(buf, ").append(source).append(");\n");
+            } else {
+                out.append("            buf.writeBytes(").append(source).append(");\n");
+            }
+        }
+        out.append("        }\n\n");
+    }
+
+    private static void generateSize(StringBuilder out, Binding binding, String method, boolean v2) {
+        out.append("        @Override\n");
+        out.append("        public int ").append(method).append('(').append(binding.type).append(" msg) {\n");
+        int fixed = 0;
+        List<String> terms = new ArrayList<>();
+        for (Field field : binding.defpkg.fields) {
+            if (field.isLength) {
+                if (!v2) fixed += size(field.type);
+                continue;
+            }
+            if (field.length == null) {
+                fixed += size(field.type);
+                continue;
+            }
+            String length = length(binding, "msg." + field.javaName());
+            if (v2 && !field.length.equals("*")) {
+                terms.add("VarInt.size(" + length + ")");
+            }
+            terms.add(length);
+        }
+        if (fixed != 0 || terms.isEmpty()) terms.add(0, String.valueOf(fixed));
+        out.append("            return ").append(String.join(" + ", terms)).append(";\n");
+        out.append("        }\n\n");
+    }
+
+    private static String length(Binding binding, String source) {
+        return source + (binding.retained ? ".readableBytes()" : ".length");
+    }
+
+    private static String read(String type) {
+        switch (type) {
+            case "int8":
+                return "buf.readUnsignedByte()";
+            case "int16":
+                return "buf.readUnsignedShort()";
+            case "int32":
+                return "buf.readInt()";
+            case "int64":
+                return "buf.readLong()";
+            case "bool":
+                return "buf.readBoolean()";
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    private static String write(String type) {
+        switch (type) {
+            case "int8":
+                return "writeByte";
+            case "int16":
+                return "writeShort";
+            case "int32":
+                return "writeInt";
+            case "int64":
+                return "writeLong";
+            case "bool":
+                return "writeBoolean";
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+
+    private static int size(String type) {
+        switch (type) {
+            case "int8":
+            case "bool":
+                return 1;
+            case "int16":
+                return 2;
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                throw new IllegalArgumentException(type);
+        }
+    }
+}
@@ -11,123 +11,945 @@ package com.kasukusakura.tcrs.network;
 
 import com.kasukusakura.tcrs.network.packets.*;
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelOutboundHandlerAdapter;
-import io.netty.channel.ChannelPromise;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AttributeKey;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.PromiseNotifier;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 @SuppressWarnings("NullableProblems")
-class PkgDecoder extends ChannelInboundHandlerAdapter {
+class PkgDecoder extends ByteToMessageDecoder {
+    PkgCodec pkgCodec;
     PacketCodec<?>[] codecs;
+    int maxCumulationBytes;
+    int maxTransferBytes;
+    // Local capabilities, answered to the Hello of the peer
+    int capabilities;
+
+    // Whether inbound frames use the v2 framing
+    private boolean v2;
+    private boolean helloAnswered;
+    private boolean sentV2;
+
+    private Inflater inflater;
+    // Chunked transfers being reassembled and the bytes reserved by them
+    private final IntObjectMap<Reassembly> transfers = new IntObjectHashMap<>();
+    private long transferBytes;
+
+    private static final class Reassembly {
+        final int pid;
+        final ByteBuf payload;
+        // Framing of the first chunk, the payload is encoded with it
+        final boolean v2;
+
+        Reassembly(int pid, ByteBuf payload, boolean v2) {
+            this.pid = pid;
+            this.payload = payload;
+            this.v2 = v2;
+        }
+    }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        if (msg instanceof ByteBuf) {
-            ByteBuf buffer = (ByteBuf) msg;
-            while (buffer.isReadable(Integer.BYTES)) {
-                buffer.markReaderIndex();
-                int pid = buffer.readUnsignedShort();
-                int payloadlen = buffer.readUnsignedShort();
-                if (!buffer.isReadable(payloadlen)) {
-                    buffer.resetReaderIndex();
-                    return;
-                }
-                if (pid < 0) {
-                    throw new IOException("Bad packet: pid=" + pid);
-                }
-                if (pid < codecs.length) {
-                    ctx.fireChannelRead(codecs[pid].decode(payloadlen, buffer.readSlice(payloadlen)));
-                } else {
-                    throw new IOException("Bad packet: pid=" + pid);
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (in.isReadable(2)) {
+            int readerIndex = in.readerIndex();
+            int pid, payloadlen, headerlen;
+            if (v2) {
+                pid = in.getUnsignedByte(readerIndex);
+                // varint payloadlen, at most 3 bytes for 0xFFFF
+                payloadlen = 0;
+                headerlen = 1;
+                for (int shift = 0; ; shift += 7) {
+                    if (!in.isReadable(headerlen + 1)) return;
+                    byte b = in.getByte(readerIndex + headerlen++);
+                    payloadlen |= (b & 0x7F) << shift;
+                    if (b >= 0) break;
+                    if (shift == 14) {
+                        throw new CorruptedFrameException("Bad payloadlen: pid=" + pid);
+                    }
+                }
+                if (payloadlen > 0xFFFF) {
+                    throw new CorruptedFrameException("Bad payloadlen: pid=" + pid + ", payloadlen=" + payloadlen);
                 }
+            } else {
+                if (!in.isReadable(Integer.BYTES)) return;
+                pid = in.getUnsignedShort(readerIndex);
+                payloadlen = in.getUnsignedShort(readerIndex + 2);
+                headerlen = Integer.BYTES;
+            }
+            PacketCodec<?> codec = pid < codecs.length ? codecs[pid] : null;
+            if (codec == null) {
+                throw new IOException("Bad packet: pid=" + pid);
+            }
+            if (headerlen + payloadlen > maxCumulationBytes) {
+                throw new TooLongFrameException("Frame too large: pid=" + pid + ", payloadlen=" + payloadlen);
+            }
+            if (!in.isReadable(headerlen + payloadlen)) {
+                break;
             }
+            in.skipBytes(headerlen);
+            ByteBuf payload = in.readSlice(payloadlen);
+            Object pkg = v2 ? codec.decodeV2(payloadlen, payload) : codec.decode(payloadlen, payload);
+            if (pkg instanceof PkgChunkedTransfer.Chunk) {
+                pkg = reassemble(ctx, (PkgChunkedTransfer.Chunk) pkg);
+                if (pkg == null) continue;
+            }
+            out.add(postDecode(ctx, pkg));
+        }
+    }
+
+    private Object postDecode(ChannelHandlerContext ctx, Object pkg) throws Exception {
+        if (pkg instanceof PkgKeepAlive.Hello) {
+            hello(ctx, (PkgKeepAlive.Hello) pkg);
+        } else if (pkg instanceof PkgProcessCodeInfo.Deflated) {
+            return inflate(ctx, (PkgProcessCodeInfo.Deflated) pkg);
+        }
+        return pkg;
+    }
+
+    /**
+     * Records the capabilities of the peer and answers its Hello.
+     * <p>
+     * Switching to the v2 framing takes three Hellos: the first announces {@link PkgKeepAlive.Hello#CAP_FRAMING_V2},
+     * the reply announces it too and switches the frames of the replying side,
+     * a confirming reply switches the frames of the other side.
+     */
+    private void hello(ChannelHandlerContext ctx, PkgKeepAlive.Hello hello) throws Exception {
+        ctx.channel().attr(PkgCodec.PEER_CAPABILITIES).set(hello.capabilities);
+        boolean agreed = (capabilities & hello.capabilities & PkgKeepAlive.Hello.CAP_FRAMING_V2) != 0;
+        if (hello.isV2()) {
+            if (!agreed) {
+                throw new CorruptedFrameException("Peer switched to v2 framing without agreement");
+            }
+            v2 = true;
+        }
+        if (!hello.isReply()) {
+            // Answered once, peers replying to every Hello must not make both sides talk forever
+            if (helloAnswered) return;
+            helloAnswered = true;
+        } else if (!hello.isV2() || !agreed || sentV2) {
             return;
         }
-        super.channelRead(ctx, msg);
+        sentV2 |= agreed;
+        ctx.channel().writeAndFlush(PkgKeepAlive.Hello.reply(capabilities, agreed));
+    }
+
+    /**
+     * @return the transferred packet once its last chunk arrived, {@code null} before
+     */
+    private Object reassemble(ChannelHandlerContext ctx, PkgChunkedTransfer.Chunk chunk) {
+        try {
+            if (maxTransferBytes <= 0) {
+                throw new CorruptedFrameException("Chunked transfers not accepted");
+            }
+            Reassembly reassembly;
+            if (chunk.isFirst()) {
+                int pid = chunk.packetId;
+                PacketCodec<?> codec = pid < codecs.length ? codecs[pid] : null;
+                if (codec == null || codec == PkgChunkedTransfer.Chunk.CODEC) {
+                    throw new CorruptedFrameException("Bad chunked packet: pid=" + pid);
+                }
+                if (transfers.containsKey(chunk.transferId)) {
+                    throw new CorruptedFrameException("Duplicated transfer: " + chunk.transferId);
+                }
+                if (chunk.totalLength < 0 || transferBytes + chunk.totalLength > maxTransferBytes) {
+                    throw new TooLongFrameException("Transfer too large: pid=" + pid + ", length=" + chunk.totalLength + ", pending=" + transferBytes);
+                }
+                reassembly = new Reassembly(pid, ctx.alloc().buffer(chunk.totalLength, chunk.totalLength), v2);
+                transfers.put(chunk.transferId, reassembly);
+                transferBytes += chunk.totalLength;
+            } else {
+                reassembly = transfers.get(chunk.transferId);
+                if (reassembly == null) {
+                    throw new CorruptedFrameException("Unknown transfer: " + chunk.transferId);
+                }
+            }
+            ByteBuf payload = reassembly.payload;
+            if (chunk.data.readableBytes() > payload.writableBytes()) {
+                throw new CorruptedFrameException("Transfer " + chunk.transferId + " exceeds its announced length " + payload.maxCapacity());
+            }
+            payload.writeBytes(chunk.data, chunk.data.readerIndex(), chunk.data.readableBytes());
+            if (!chunk.isLast()) return null;
+
+            transfers.remove(chunk.transferId);
+            transferBytes -= payload.maxCapacity();
+            try {
+                if (payload.isWritable()) {
+                    throw new CorruptedFrameException("Transfer " + chunk.transferId + " ended before its announced length " + payload.maxCapacity());
+                }
+                PacketCodec<?> codec = codecs[reassembly.pid];
+                return reassembly.v2 ? codec.decodeV2(payload.readableBytes(), payload) : codec.decode(payload.readableBytes(), payload);
+            } finally {
+                payload.release();
+            }
+        } finally {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Rebuilds the plain v1 payload of {@code pkg} and decodes it with the codec of its plain pid
+     */
+    private Object inflate(ChannelHandlerContext ctx, PkgProcessCodeInfo.Deflated pkg) throws Exception {
+        int pid = pkgCodec.lookup(pkg instanceof PkgProcessCodeInfo.ResponseDeflated ? PkgProcessCodeInfo.Response.class : PkgProcessCodeInfo.Update.class).pid;
+        ByteBuf frame = null;
+        try {
+            int payloadlen = 4 + pkg.rawLength + pkg.fastcode.readableBytes();
+            if (payloadlen > 0xFFFF) {
+                throw new CorruptedFrameException("Inflated packet too large: pid=" + pid + ", payloadlen=" + payloadlen);
+            }
+            frame = ctx.alloc().heapBuffer(payloadlen, payloadlen);
+            frame.writeShort(pkg.captchaType);
+            frame.writeShort(pkg.rawLength);
+
+            if (inflater == null) {
+                inflater = new Inflater();
+            } else {
+                inflater.reset();
+            }
+            ByteBuf deflated = pkg.deflated;
+            if (deflated.hasArray()) {
+                inflater.setInput(deflated.array(), deflated.arrayOffset() + deflated.readerIndex(), deflated.readableBytes());
+            } else {
+                inflater.setInput(ByteBufUtil.getBytes(deflated));
+            }
+            int offset = frame.arrayOffset() + frame.writerIndex();
+            int inflated = 0;
+            try {
+                while (inflated < pkg.rawLength) {
+                    int n = inflater.inflate(frame.array(), offset + inflated, pkg.rawLength - inflated);
+                    // Finished early, or waiting for more input or a dictionary, nothing more will come
+                    if (n == 0 || inflater.finished() && inflated + n < pkg.rawLength) {
+                        throw new IOException("Deflated data shorter than its length: pid=" + pid);
+                    }
+                    inflated += n;
+                }
+                // The end of the stream may still follow the last byte
+                if (!inflater.finished() && inflater.inflate(new byte[1]) != 0) {
+                    throw new IOException("Deflated data longer than its length: pid=" + pid);
+                }
+            } catch (DataFormatException e) {
+                throw new CorruptedFrameException("Bad deflated data: pid=" + pid, e);
+            }
+            if (!inflater.finished() || inflater.getRemaining() != 0) {
+                throw new IOException("Deflated data does not end with its stream: pid=" + pid);
+            }
+            frame.writerIndex(frame.writerIndex() + inflated);
+            frame.writeBytes(pkg.fastcode, pkg.fastcode.readerIndex(), pkg.fastcode.readableBytes());
+
+            return codecs[pid].decode(payloadlen, frame);
+        } finally {
+            pkg.release();
+            if (frame != null) frame.release();
+        }
     }
 
     @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        super.exceptionCaught(ctx, cause);
+    protected void handlerRemoved0(ChannelHandlerContext ctx) throws Exception {
+        for (Reassembly reassembly : transfers.values()) {
+            reassembly.payload.release();
+        }
+        transfers.clear();
+        transferBytes = 0;
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
     }
 }
 
-class PkgEncoder extends ChannelOutboundHandlerAdapter {
-    PacketCodec<?>[] codecs;
+class PkgEncoder extends ChannelDuplexHandler {
+    PkgCodec pkgCodec;
+    int maxAggregateBytes;
+    int compressionThreshold;
+    int maxTransferBytes;
+
+    // Whether outbound frames use the v2 framing, set once a Hello with FLAG_V2 was encoded
+    private boolean v2;
+    private Deflater deflater;
+    // Packets too large for a frame, sent one chunk per turn on flush
+    private final Deque<ChunkedTransfer> transfers = new ArrayDeque<>();
+    private int nextTransferId;
+
+    private static final class ChunkedTransfer implements ChannelFutureListener {
+        final int id;
+        final int pid;
+        final ByteBuf payload;
+        final boolean v2;
+        final ChannelPromise promise;
+        boolean started;
+
+        ChunkedTransfer(int id, int pid, ByteBuf payload, boolean v2, ChannelPromise promise) {
+            this.id = id;
+            this.pid = pid;
+            this.payload = payload;
+            this.v2 = v2;
+            this.promise = promise;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess()) {
+                promise.tryFailure(future.cause());
+            }
+        }
+    }
+
+    // Frames written since the last flush, when aggregating
+    private ByteBuf aggregated;
+    private final List<ChannelPromise> aggregatedPromises = new ArrayList<>();
 
     @SuppressWarnings({"unchecked", "rawtypes"})
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        if (!(msg instanceof Packet)) {
+        if (compressionThreshold >= 0 && (PkgCodec.getPeerCapabilities(ctx.channel()) & PkgKeepAlive.Hello.CAP_DEFLATE) != 0) {
+            msg = deflate(ctx, msg);
+        }
+        PacketRegistration registration = msg instanceof Packet ? pkgCodec.lookup(msg.getClass()) : null;
+        if (registration == null) {
+            writeAggregated(ctx);
             ctx.write(msg, promise);
             return;
         }
 
-        Packet pkg = (Packet) msg;
-        for (int pid = 0, codecsLength = codecs.length; pid < codecsLength; pid++) {
-            PacketCodec codec = codecs[pid];
-            if (codec.isInstance(msg)) {
-                ByteBuf buf = null;
-                try {
-                    buf = ctx.alloc().ioBuffer();
-                    int payloadLenIndex;
-                    buf.writeShort(pid);
-
-                    payloadLenIndex = buf.writerIndex();
-                    try {
-                        buf.writeShort(0);
-                        codec.write(pkg, buf);
-                    } finally {
-                        ReferenceCountUtil.release(msg);
-                    }
+        PacketCodec codec = registration.codec;
+        ByteBuf buf = null;
+        try {
+            if (v2 && registration.pid > 0xFF) {
+                throw new EncoderException("pid " + registration.pid + " does not fit the v2 framing");
+            }
+            int size = v2 ? codec.encodedSizeV2((Packet) msg) : codec.encodedSize((Packet) msg);
+            if (size > 0xFFFF) {
+                if (maxTransferBytes <= 0 || size > maxTransferBytes || (PkgCodec.getPeerCapabilities(ctx.channel()) & PkgKeepAlive.Hello.CAP_CHUNKED) == 0) {
+                    throw new EncoderException("Packet too large: " + msg.getClass().getName() + ", payloadlen=" + size);
+                }
+                buf = ctx.alloc().buffer(size, size);
+                if (v2) {
+                    codec.writeV2((Packet) msg, buf);
+                } else {
+                    codec.write((Packet) msg, buf);
+                }
+                if (buf.readableBytes() != size) {
+                    throw new EncoderException("Codec of pid " + registration.pid + " wrote " + buf.readableBytes() + " bytes but announced " + size);
+                }
+                transfers.add(new ChunkedTransfer(nextTransferId++, registration.pid, buf, v2, promise));
+                buf = null;
+                return;
+            }
+            int frameSize = headerSize(size) + size;
 
-                    int writeIndex = buf.writerIndex();
-                    buf.writerIndex(payloadLenIndex);
-                    buf.writeShort(writeIndex - payloadLenIndex - 2);
-                    buf.writerIndex(writeIndex);
+            if (msg instanceof PkgProcessCodeInfo.ResponseBuf && isDirectPayload(((PkgProcessCodeInfo.ResponseBuf) msg).captchaData)) {
+                // The captcha data is sent from where it is stored, the frame wraps it instead of copying it.
+                // The fastcode may be the array of a pooled packet reused before the frame is sent, it is copied
+                // behind the header and sent from there.
+                writeAggregated(ctx);
+                PkgProcessCodeInfo.ResponseBuf response = (PkgProcessCodeInfo.ResponseBuf) msg;
+                int dataLength = response.captchaData.readableBytes();
+                buf = ctx.alloc().ioBuffer(frameSize - dataLength);
+                writeFrameHeader(registration, size, buf);
+                response.writeHeader(buf, v2);
+                int headerLength = buf.readableBytes();
+                buf.writeBytes(response.fastcode, response.fastcode.readerIndex(), response.fastcode.readableBytes());
+                CompositeByteBuf frame = ctx.alloc().compositeDirectBuffer(3);
+                frame.addComponents(true, buf.retainedSlice(buf.readerIndex(), headerLength), response.captchaData.retainedSlice(), buf.skipBytes(headerLength));
+                buf = null;
+                if (frame.readableBytes() != frameSize) {
+                    frame.release();
+                    throw new EncoderException("Codec of pid " + registration.pid + " announced " + size + " bytes, the payload has " + (frame.readableBytes() - headerSize(size)));
+                }
+                ctx.write(frame, promise);
+                return;
+            }
 
-                    ctx.write(buf, promise);
-                    buf = null;
-                } finally {
-                    if (buf != null) buf.release();
+            if (maxAggregateBytes > 0) {
+                if (aggregated != null && aggregated.maxWritableBytes() < frameSize) {
+                    writeAggregated(ctx);
+                }
+                if (aggregated == null) {
+                    aggregated = ctx.alloc().ioBuffer(frameSize, Math.max(frameSize, maxAggregateBytes));
+                }
+                int writerIndex = aggregated.writerIndex();
+                try {
+                    encode(registration, (Packet) msg, size, aggregated);
+                } catch (Throwable throwable) {
+                    aggregated.writerIndex(writerIndex);
+                    throw throwable;
+                }
+                if (!promise.isVoid()) {
+                    aggregatedPromises.add(promise);
                 }
                 return;
             }
+
+            buf = ctx.alloc().ioBuffer(frameSize, frameSize);
+            encode(registration, (Packet) msg, size, buf);
+            ctx.write(buf, promise);
+            buf = null;
+        } finally {
+            ReferenceCountUtil.release(msg);
+            if (buf != null) buf.release();
+        }
+    }
+
+    /**
+     * Writes one chunk of each pending transfer in turn until the channel stops being writable
+     */
+    private void writeChunks(ChannelHandlerContext ctx) {
+        PacketRegistration registration = pkgCodec.lookup(PkgChunkedTransfer.Chunk.class);
+        while (!transfers.isEmpty() && ctx.channel().isWritable()) {
+            ChunkedTransfer transfer = transfers.poll();
+            ByteBuf payload = transfer.payload;
+            int flags = transfer.started ? 0 : PkgChunkedTransfer.Chunk.FLAG_FIRST;
+            int len = Math.min(payload.readableBytes(), PkgCodec.CHUNK_SIZE);
+            if (len == payload.readableBytes()) {
+                flags |= PkgChunkedTransfer.Chunk.FLAG_LAST;
+            }
+            transfer.started = true;
+
+            PkgChunkedTransfer.Chunk chunk = PkgChunkedTransfer.Chunk.chunk(
+                    transfer.id, flags, transfer.pid, payload.capacity(), payload.readRetainedSlice(len)
+            );
+            ByteBuf buf = null;
+            try {
+                if (transfer.v2 != v2) {
+                    // The receiver decodes the payload with the framing of the first chunk
+                    throw new EncoderException("Framing changed before transfer " + transfer.id + " started");
+                }
+                int size = v2 ? PkgChunkedTransfer.Chunk.CODEC.encodedSizeV2(chunk) : PkgChunkedTransfer.Chunk.CODEC.encodedSize(chunk);
+                buf = ctx.alloc().ioBuffer(headerSize(size) + size, headerSize(size) + size);
+                encode(registration, chunk, size, buf);
+            } catch (Throwable throwable) {
+                if (buf != null) buf.release();
+                payload.release();
+                transfer.promise.tryFailure(throwable);
+                continue;
+            } finally {
+                chunk.release();
+            }
+
+            if (chunk.isLast()) {
+                payload.release();
+                ctx.write(buf).addListener(new PromiseNotifier<>(false, transfer.promise));
+            } else {
+                ctx.write(buf).addListener(transfer);
+                transfers.add(transfer);
+            }
+        }
+    }
+
+    private void discardTransfers() {
+        if (transfers.isEmpty()) return;
+        ClosedChannelException cause = new ClosedChannelException();
+        for (ChunkedTransfer transfer : transfers) {
+            transfer.payload.release();
+            transfer.promise.tryFailure(cause);
+        }
+        transfers.clear();
+    }
+
+    /**
+     * @return a {@link PkgProcessCodeInfo.Deflated} replacing {@code msg}, or {@code msg} itself
+     * if it carries no captcha data above the threshold or deflating does not make it smaller
+     */
+    private Object deflate(ChannelHandlerContext ctx, Object msg) {
+        PkgProcessCodeInfo.Deflated rsp;
+        int captchaType;
+        ByteBuf data, fastcode;
+        if (msg instanceof PkgProcessCodeInfo.Update) {
+            PkgProcessCodeInfo.Update update = (PkgProcessCodeInfo.Update) msg;
+            if (update.captchaData == null || update.captchaData.length < compressionThreshold) return msg;
+            rsp = new PkgProcessCodeInfo.UpdateDeflated();
+            captchaType = update.captchaType;
+            data = Unpooled.wrappedBuffer(update.captchaData);
+            fastcode = Unpooled.wrappedBuffer(update.fastcode);
+        } else if (msg instanceof PkgProcessCodeInfo.Response) {
+            PkgProcessCodeInfo.Response response = (PkgProcessCodeInfo.Response) msg;
+            if (response.captchaData == null || response.captchaData.length < compressionThreshold) return msg;
+            rsp = new PkgProcessCodeInfo.ResponseDeflated();
+            captchaType = response.captchaType;
+            data = Unpooled.wrappedBuffer(response.captchaData);
+            fastcode = Unpooled.wrappedBuffer(response.fastcode);
+        } else if (msg instanceof PkgProcessCodeInfo.UpdateBuf) {
+            PkgProcessCodeInfo.UpdateBuf update = (PkgProcessCodeInfo.UpdateBuf) msg;
+            if (update.captchaData == null || update.captchaData.readableBytes() < compressionThreshold) return msg;
+            rsp = new PkgProcessCodeInfo.UpdateDeflated();
+            captchaType = update.captchaType;
+            data = update.captchaData;
+            fastcode = update.fastcode.retainedDuplicate();
+        } else if (msg instanceof PkgProcessCodeInfo.ResponseBuf) {
+            PkgProcessCodeInfo.ResponseBuf response = (PkgProcessCodeInfo.ResponseBuf) msg;
+            if (response.captchaData == null || response.captchaData.readableBytes() < compressionThreshold) return msg;
+            // Stored off-heap and answered to every query, copying and deflating it each time costs more than it saves
+            if (response.captchaData.isDirect()) return msg;
+            rsp = new PkgProcessCodeInfo.ResponseDeflated();
+            captchaType = response.captchaType;
+            data = response.captchaData;
+            fastcode = response.fastcode.retainedDuplicate();
+        } else {
+            return msg;
+        }
+
+        int rawLength = data.readableBytes();
+        if (4 + rawLength + fastcode.readableBytes() > 0xFFFF) {
+            // The receiver inflates into a single frame, larger packets are sent chunked as they are
+            fastcode.release();
+            return msg;
+        }
+        // The deflated data must at least pay for the raw length it is sent with
+        int maxDeflated = rawLength - 2;
+        if (maxDeflated <= 0) {
+            fastcode.release();
+            return msg;
+        }
+        ByteBuf deflated = ctx.alloc().heapBuffer(maxDeflated, maxDeflated);
+        try {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            } else {
+                deflater.reset();
+            }
+            if (data.hasArray()) {
+                deflater.setInput(data.array(), data.arrayOffset() + data.readerIndex(), rawLength);
+            } else {
+                deflater.setInput(ByteBufUtil.getBytes(data));
+            }
+            deflater.finish();
+            int offset = deflated.arrayOffset();
+            int written = 0;
+            while (!deflater.finished() && written < maxDeflated) {
+                written += deflater.deflate(deflated.array(), offset + written, maxDeflated - written);
+            }
+            if (!deflater.finished()) {
+                // Incompressible, send it as is
+                deflated.release();
+                fastcode.release();
+                return msg;
+            }
+            deflated.writerIndex(written);
+        } catch (Throwable throwable) {
+            deflated.release();
+            fastcode.release();
+            ReferenceCountUtil.release(msg);
+            throw throwable;
+        }
+
+        rsp.captchaType = captchaType;
+        rsp.rawLength = rawLength;
+        rsp.deflated = deflated;
+        rsp.fastcode = fastcode;
+        ReferenceCountUtil.release(msg);
+        return rsp;
+    }
+
+    private int headerSize(int size) {
+        return v2 ? 1 + VarInt.size(size) : Integer.BYTES;
+    }
+
+    /**
+     * @return whether {@code captchaData} is worth sending without copying it into the frame
+     */
+    private static boolean isDirectPayload(ByteBuf captchaData) {
+        return captchaData != null && captchaData.isDirect() && captchaData.readableBytes() >= PkgCodec.DIRECT_PAYLOAD_BYTES;
+    }
+
+    private void writeFrameHeader(PacketRegistration registration, int size, ByteBuf buf) {
+        if (v2) {
+            buf.writeByte(registration.pid);
+            VarInt.write(buf, size);
+        } else {
+            buf.writeShort(registration.pid);
+            buf.writeShort(size);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void encode(PacketRegistration registration, Packet msg, int size, ByteBuf buf) {
+        PacketCodec codec = registration.codec;
+        int start = buf.writerIndex() + headerSize(size);
+        writeFrameHeader(registration, size, buf);
+        if (v2) {
+            codec.writeV2(msg, buf);
+        } else {
+            codec.write(msg, buf);
+        }
+
+        int written = buf.writerIndex() - start;
+        if (written != size) {
+            throw new EncoderException("Codec of pid " + registration.pid + " wrote " + written + " bytes but announced " + size);
+        }
+        if (msg instanceof PkgKeepAlive.Hello && ((PkgKeepAlive.Hello) msg).isV2()) {
+            v2 = true;
+        }
+    }
+
+    private void writeAggregated(ChannelHandlerContext ctx) {
+        ByteBuf buf = aggregated;
+        if (buf == null) return;
+        aggregated = null;
+
+        if (aggregatedPromises.isEmpty()) {
+            ctx.write(buf, ctx.voidPromise());
+        } else if (aggregatedPromises.size() == 1) {
+            ctx.write(buf, aggregatedPromises.get(0));
+        } else {
+            ChannelPromise[] promises = aggregatedPromises.toArray(new ChannelPromise[0]);
+            ctx.write(buf).addListener(new PromiseNotifier<>(promises));
+        }
+        aggregatedPromises.clear();
+    }
+
+    private void discardAggregated() {
+        if (aggregated != null) {
+            aggregated.release();
+            aggregated = null;
+        }
+        if (!aggregatedPromises.isEmpty()) {
+            ClosedChannelException cause = new ClosedChannelException();
+            for (ChannelPromise promise : aggregatedPromises) {
+                promise.tryFailure(cause);
+            }
+            aggregatedPromises.clear();
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        writeAggregated(ctx);
+        writeChunks(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (!transfers.isEmpty() && ctx.channel().isWritable()) {
+            writeChunks(ctx);
+            ctx.flush();
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        discardAggregated();
+        discardTransfers();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discardAggregated();
+        discardTransfers();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
         }
-        ctx.write(msg, promise);
+    }
+}
+
+final class PacketRegistration {
+    final int pid;
+    final PacketCodec<?> codec;
+
+    PacketRegistration(int pid, PacketCodec<?> codec) {
+        this.pid = pid;
+        this.codec = codec;
     }
 }
 
 public class PkgCodec {
-    PacketCodec<?>[] codecs;
+    /**
+     * Largest frame the v1 framing can carry: 2 bytes packet id, 2 bytes length, 0xFFFF bytes payload.
+     * v2 frames of the same payload are shorter.
+     */
+    public static final int MAX_FRAME_LENGTH = Integer.BYTES + 0xFFFF;
+
+    /**
+     * Default upper bound of a buffer collecting the frames written between two flushes
+     */
+    public static final int DEFAULT_AGGREGATE_BYTES = 64 * 1024;
+
+    /**
+     * Default smallest captcha data deflated for peers accepting it
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 128;
+
+    /**
+     * Default largest packet sent or received as chunked transfer
+     */
+    public static final int DEFAULT_MAX_TRANSFER_BYTES = 1024 * 1024;
+
+    /**
+     * Payload bytes of a chunked transfer sent per frame
+     */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Smallest direct captcha data of {@link PkgProcessCodeInfo.ResponseBuf} sent as it is, smaller data is copied into the frame
+     */
+    public static final int DIRECT_PAYLOAD_BYTES = 1024;
+
+    /**
+     * Capabilities the peer announced with {@link PkgKeepAlive.Hello}
+     */
+    public static final AttributeKey<Integer> PEER_CAPABILITIES = AttributeKey.valueOf(PkgCodec.class, "PEER_CAPABILITIES");
+
+    PacketCodec<?>[] codecs = new PacketCodec<?>[0];
+    int maxCumulationBytes = MAX_FRAME_LENGTH;
+    int maxAggregateBytes;
+    int compressionThreshold = -1;
+    int capabilities;
+    int maxTransferBytes;
+    boolean framingV2;
+
+    private final Map<Class<?>, PacketRegistration> registrations = new ConcurrentHashMap<>();
+    // Resolved lookups, including subclasses of registered types
+    private final Map<Class<?>, PacketRegistration> resolved = new ConcurrentHashMap<>();
 
     public PkgCodec() {
-        codecs = new PacketCodec[]{
-                PkgKeepAlive.CODEC,
-                PkgNewProcessCode.Req.CODEC,
-                PkgNewProcessCode.Rsp.CODEC,
-                PkgNewProcessCode.Complete.CODEC,
-                PkgQueryProcessCodeStatus.Req.CODEC,
-                PkgQueryProcessCodeStatus.Rsp.CODEC,
-                PkgProcessCodeInfo.Update.CODEC,
-                PkgProcessCodeInfo.Refresh.CODEC,
-                PkgProcessCodeInfo.Query.CODEC,
-                PkgProcessCodeInfo.Response.CODEC,
-        };
+        register(0, PkgKeepAlive.class, PkgKeepAlive.CODEC);
+        register(1, PkgNewProcessCode.Req.class, PkgNewProcessCode.Req.CODEC);
+        register(2, PkgNewProcessCode.Rsp.class, PkgNewProcessCode.Rsp.CODEC);
+        register(3, PkgNewProcessCode.Complete.class, PkgNewProcessCode.Complete.CODEC);
+        register(4, PkgQueryProcessCodeStatus.Req.class, PkgQueryProcessCodeStatus.Req.CODEC);
+        register(5, PkgQueryProcessCodeStatus.Rsp.class, PkgQueryProcessCodeStatus.Rsp.CODEC);
+        register(6, PkgProcessCodeInfo.Update.class, PkgProcessCodeInfo.Update.CODEC);
+        register(7, PkgProcessCodeInfo.Refresh.class, PkgProcessCodeInfo.Refresh.CODEC);
+        register(8, PkgProcessCodeInfo.Query.class, PkgProcessCodeInfo.Query.CODEC);
+        register(9, PkgProcessCodeInfo.Response.class, PkgProcessCodeInfo.Response.CODEC);
+        register(10, PkgQueryProcessCodeStatus.BatchReq.class, PkgQueryProcessCodeStatus.BatchReq.CODEC);
+        register(11, PkgQueryProcessCodeStatus.BatchRsp.class, PkgQueryProcessCodeStatus.BatchRsp.CODEC);
+        register(12, PkgProcessCodeInfo.BatchRefresh.class, PkgProcessCodeInfo.BatchRefresh.CODEC);
+        register(13, PkgQueryProcessCodeStatus.Subscribe.class, PkgQueryProcessCodeStatus.Subscribe.CODEC);
+        register(14, PkgQueryProcessCodeStatus.LongPoll.class, PkgQueryProcessCodeStatus.LongPoll.CODEC);
+        register(15, PkgProcessCodeInfo.UpdateDeflated.class, PkgProcessCodeInfo.UpdateDeflated.CODEC);
+        register(16, PkgProcessCodeInfo.ResponseDeflated.class, PkgProcessCodeInfo.ResponseDeflated.CODEC);
+        register(17, PkgProcessCodeInfo.ConditionalUpdate.class, PkgProcessCodeInfo.ConditionalUpdate.CODEC);
+        register(18, PkgProcessCodeInfo.UpdateRequired.class, PkgProcessCodeInfo.UpdateRequired.CODEC);
+        register(19, PkgProcessCodeInfo.VersionedQuery.class, PkgProcessCodeInfo.VersionedQuery.CODEC);
+        register(20, PkgProcessCodeInfo.Version.class, PkgProcessCodeInfo.Version.CODEC);
+
+        register(21, PkgChunkedTransfer.Chunk.class, PkgChunkedTransfer.Chunk.CODEC);
+        register(22, PkgProcessCodeInfo.UpdateRejected.class, PkgProcessCodeInfo.UpdateRejected.CODEC);
+
+        registerOutbound(0, PkgKeepAlive.Hello.class, PkgKeepAlive.Hello.CODEC);
+
+        registerOutbound(3, PkgNewProcessCode.CompleteBuf.class, PkgNewProcessCode.CompleteBuf.CODEC);
+        registerOutbound(5, PkgQueryProcessCodeStatus.RspBuf.class, PkgQueryProcessCodeStatus.RspBuf.CODEC);
+        registerOutbound(6, PkgProcessCodeInfo.UpdateBuf.class, PkgProcessCodeInfo.UpdateBuf.CODEC);
+        registerOutbound(9, PkgProcessCodeInfo.ResponseBuf.class, PkgProcessCodeInfo.ResponseBuf.CODEC);
+    }
+
+    /**
+     * Decodes packets carrying ticket or captcha data as {@link RefCountedPacket}s
+     * holding retained slices of the inbound frame instead of {@code byte[]} copies.
+     * <p>
+     * Handlers receiving them are responsible for releasing them.
+     */
+    public PkgCodec setRetainedPayloads(boolean retainedPayloads) {
+        if (retainedPayloads) {
+            register(3, PkgNewProcessCode.CompleteBuf.class, PkgNewProcessCode.CompleteBuf.CODEC);
+            register(5, PkgQueryProcessCodeStatus.RspBuf.class, PkgQueryProcessCodeStatus.RspBuf.CODEC);
+            register(6, PkgProcessCodeInfo.UpdateBuf.class, PkgProcessCodeInfo.UpdateBuf.CODEC);
+            register(9, PkgProcessCodeInfo.ResponseBuf.class, PkgProcessCodeInfo.ResponseBuf.CODEC);
+        } else {
+            register(3, PkgNewProcessCode.Complete.class, PkgNewProcessCode.Complete.CODEC);
+            register(5, PkgQueryProcessCodeStatus.Rsp.class, PkgQueryProcessCodeStatus.Rsp.CODEC);
+            register(6, PkgProcessCodeInfo.Update.class, PkgProcessCodeInfo.Update.CODEC);
+            register(9, PkgProcessCodeInfo.Response.class, PkgProcessCodeInfo.Response.CODEC);
+        }
+        return this;
+    }
+
+    /**
+     * Decodes the small packets of polling traffic (status queries and responses, refreshes, info queries)
+     * as pooled instances, recycled with their arrays once released.
+     * <p>
+     * Handlers receiving them must release them and copy the arrays they keep.
+     * Passing the arrays to an outbound packet is fine, the encoder is done with them when {@code write} returns on the event loop.
+     * Status responses decoded as {@link PkgQueryProcessCodeStatus.RspBuf} by {@link #setRetainedPayloads} stay so.
+     */
+    public PkgCodec setPooledPackets(boolean pooledPackets) {
+        if (pooledPackets) {
+            register(4, PkgQueryProcessCodeStatus.ReqPooled.class, PkgQueryProcessCodeStatus.ReqPooled.CODEC);
+            if (codecs[5] == PkgQueryProcessCodeStatus.Rsp.CODEC) {
+                register(5, PkgQueryProcessCodeStatus.RspPooled.class, PkgQueryProcessCodeStatus.RspPooled.CODEC);
+            }
+            register(7, PkgProcessCodeInfo.RefreshPooled.class, PkgProcessCodeInfo.RefreshPooled.CODEC);
+            register(8, PkgProcessCodeInfo.QueryPooled.class, PkgProcessCodeInfo.QueryPooled.CODEC);
+            register(19, PkgProcessCodeInfo.VersionedQueryPooled.class, PkgProcessCodeInfo.VersionedQueryPooled.CODEC);
+        } else {
+            register(4, PkgQueryProcessCodeStatus.Req.class, PkgQueryProcessCodeStatus.Req.CODEC);
+            if (codecs[5] == PkgQueryProcessCodeStatus.RspPooled.CODEC) {
+                register(5, PkgQueryProcessCodeStatus.Rsp.class, PkgQueryProcessCodeStatus.Rsp.CODEC);
+            }
+            register(7, PkgProcessCodeInfo.Refresh.class, PkgProcessCodeInfo.Refresh.CODEC);
+            register(8, PkgProcessCodeInfo.Query.class, PkgProcessCodeInfo.Query.CODEC);
+            register(19, PkgProcessCodeInfo.VersionedQuery.class, PkgProcessCodeInfo.VersionedQuery.CODEC);
+        }
+        return this;
+    }
+
+    /**
+     * Binds {@code type} (and its subclasses) to wire id {@code pid}.
+     * Inbound frames with {@code pid} are decoded by {@code codec}.
+     * <p>
+     * Must be called before any channel uses the handlers of this codec.
+     */
+    public <T extends Packet> PkgCodec register(int pid, Class<T> type, PacketCodec<T> codec) {
+        registerOutbound(pid, type, codec);
+        if (pid >= codecs.length) {
+            codecs = Arrays.copyOf(codecs, pid + 1);
+        }
+        codecs[pid] = codec;
+        return this;
+    }
+
+    /**
+     * Binds {@code type} to wire id {@code pid} for encoding only,
+     * frames with {@code pid} keep being decoded by the codec registered by {@link #register}.
+     */
+    public <T extends Packet> PkgCodec registerOutbound(int pid, Class<T> type, PacketCodec<T> codec) {
+        if (pid < 0 || pid > 0xFFFF) {
+            throw new IllegalArgumentException("pid out of range: " + pid);
+        }
+        registrations.put(type, new PacketRegistration(pid, codec));
+        resolved.clear();
+        return this;
+    }
+
+    PacketRegistration lookup(Class<?> type) {
+        PacketRegistration registration = resolved.get(type);
+        if (registration != null) return registration;
+
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            registration = registrations.get(c);
+            if (registration != null) {
+                resolved.put(type, registration);
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Limits bytes a channel may keep buffered while waiting for the rest of a frame.
+     * Frames announcing a larger size fail the channel with {@link TooLongFrameException}
+     * before anything of them is buffered.
+     */
+    public PkgCodec setMaxCumulationBytes(int maxCumulationBytes) {
+        if (maxCumulationBytes < Integer.BYTES) {
+            throw new IllegalArgumentException("maxCumulationBytes < " + Integer.BYTES);
+        }
+        this.maxCumulationBytes = maxCumulationBytes;
+        return this;
+    }
+
+    /**
+     * Packs all packets written between two flushes into one pooled buffer of up to {@code maxAggregateBytes},
+     * instead of allocating one buffer per packet. {@code 0} disables aggregation.
+     */
+    public PkgCodec setAggregateWrites(int maxAggregateBytes) {
+        if (maxAggregateBytes < 0) {
+            throw new IllegalArgumentException("maxAggregateBytes < 0");
+        }
+        this.maxAggregateBytes = maxAggregateBytes;
+        return this;
+    }
+
+    /**
+     * Deflates captcha data of at least {@code threshold} bytes sent to peers announcing
+     * {@link PkgKeepAlive.Hello#CAP_DEFLATE}, and announces it in {@link #getCapabilities()}.
+     * Direct captcha data of {@link PkgProcessCodeInfo.ResponseBuf}s is sent as it is.
+     * A negative threshold disables compression.
+     */
+    public PkgCodec setCompressionThreshold(int threshold) {
+        this.compressionThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sends packets larger than a frame as chunked transfers to peers announcing {@link PkgKeepAlive.Hello#CAP_CHUNKED},
+     * interleaved with other packets, and reassembles received ones.
+     * <p>
+     * {@code maxTransferBytes} limits the size of a sent packet and the bytes a channel may hold
+     * for transfers being received. {@code 0} disables chunked transfers.
+     */
+    public PkgCodec setChunkedTransfers(int maxTransferBytes) {
+        if (maxTransferBytes < 0) {
+            throw new IllegalArgumentException("maxTransferBytes < 0");
+        }
+        this.maxTransferBytes = maxTransferBytes;
+        return this;
+    }
+
+    /**
+     * Switches to the compact v2 framing with peers announcing {@link PkgKeepAlive.Hello#CAP_FRAMING_V2}:
+     * 1 byte packet id, varint length, varint length fields inside the payloads.
+     * <p>
+     * The switch is negotiated by the decoder, which answers the {@link PkgKeepAlive.Hello} of the peer.
+     * Packet ids above 255 cannot be sent once switched.
+     */
+    public PkgCodec setFramingV2(boolean framingV2) {
+        this.framingV2 = framingV2;
+        return this;
+    }
+
+    /**
+     * Announces features handled above the codec, such as {@link PkgKeepAlive.Hello#CAP_CONDITIONAL_UPDATE}
+     */
+    public PkgCodec addCapabilities(int capabilities) {
+        this.capabilities |= capabilities;
+        return this;
+    }
+
+    /**
+     * Capabilities to announce with {@link PkgKeepAlive.Hello}
+     */
+    public int getCapabilities() {
+        int capabilities = this.capabilities;
+        if (compressionThreshold >= 0) capabilities |= PkgKeepAlive.Hello.CAP_DEFLATE;
+        if (maxTransferBytes > 0) capabilities |= PkgKeepAlive.Hello.CAP_CHUNKED;
+        if (framingV2) capabilities |= PkgKeepAlive.Hello.CAP_FRAMING_V2;
+        return capabilities;
+    }
+
+    public static int getPeerCapabilities(Channel channel) {
+        Integer capabilities = channel.attr(PEER_CAPABILITIES).get();
+        return capabilities == null ? 0 : capabilities;
     }
 
     public ChannelInboundHandlerAdapter getDecoder() {
         PkgDecoder decoder = new PkgDecoder();
+        decoder.pkgCodec = this;
         decoder.codecs = codecs;
+        decoder.maxCumulationBytes = maxCumulationBytes;
+        decoder.maxTransferBytes = maxTransferBytes;
+        decoder.capabilities = getCapabilities();
         return decoder;
     }
 
-    public ChannelOutboundHandlerAdapter getEncoder() {
+    public ChannelDuplexHandler getEncoder() {
         PkgEncoder encoder = new PkgEncoder();
-        encoder.codecs = codecs;
+        encoder.pkgCodec = this;
+        encoder.maxAggregateBytes = maxAggregateBytes;
+        encoder.compressionThreshold = compressionThreshold;
+        encoder.maxTransferBytes = maxTransferBytes;
         return encoder;
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network;
+
+import io.netty.bootstrap.AbstractBootstrap;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.*;
+import io.netty.channel.epoll.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.util.Locale;
+
+/**
+ * Socket transports: io_uring and epoll on Linux, NIO everywhere.
+ * <p>
+ * io_uring comes from netty-incubator-transport-native-io_uring and is only used if that jar is on the classpath.
+ */
+public enum Transport {
+    IO_URING {
+        @Override
+        public boolean isAvailable() {
+            return IOUring.AVAILABLE;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return IOUring.newEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelType() {
+            return IOUring.SERVER_CHANNEL;
+        }
+
+        @Override
+        public Class<? extends Channel> channelType() {
+            return IOUring.CHANNEL;
+        }
+
+        @Override
+        ChannelOption<?> option(String name) {
+            return IOUring.option(name);
+        }
+    },
+    EPOLL {
+        @Override
+        public boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelType() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> channelType() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        ChannelOption<?> option(String name) {
+            switch (name) {
+                case "TCP_FASTOPEN":
+                    return ChannelOption.TCP_FASTOPEN;
+                case "TCP_FASTOPEN_CONNECT":
+                    return ChannelOption.TCP_FASTOPEN_CONNECT;
+                case "TCP_QUICKACK":
+                    return EpollChannelOption.TCP_QUICKACK;
+                case "SO_REUSEPORT":
+                    return EpollChannelOption.SO_REUSEPORT;
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        <B extends AbstractBootstrap<B, ?>> void configureCommon(B bootstrap, TransportOptions options) {
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, options.edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        }
+
+        @Override
+        void configureChildren(ServerBootstrap bootstrap, TransportOptions options) {
+            bootstrap.childOption(EpollChannelOption.EPOLL_MODE, options.edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        }
+    },
+    NIO {
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public EventLoopGroup newEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override
+        public Class<? extends ServerChannel> serverChannelType() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends Channel> channelType() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        ChannelOption<?> option(String name) {
+            return null;
+        }
+    };
+
+    /**
+     * Forces a transport: {@code io_uring}, {@code epoll} or {@code nio}
+     */
+    public static final String PROPERTY = "tcrs.transport";
+
+    private static volatile Transport best;
+
+    public abstract boolean isAvailable();
+
+    /**
+     * @param threads {@code 0} for Netty's default
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int threads);
+
+    public abstract Class<? extends ServerChannel> serverChannelType();
+
+    public abstract Class<? extends Channel> channelType();
+
+    /**
+     * @return the native option called {@code name}, {@code null} if this transport lacks it
+     */
+    abstract ChannelOption<?> option(String name);
+
+    /**
+     * @return whether several server channels of this transport can bind the same port
+     */
+    public boolean supportsReusePort() {
+        return option("SO_REUSEPORT") != null;
+    }
+
+    <B extends AbstractBootstrap<B, ?>> void configureCommon(B bootstrap, TransportOptions options) {
+    }
+
+    void configureChildren(ServerBootstrap bootstrap, TransportOptions options) {
+    }
+
+    /**
+     * Uses this transport for {@code bootstrap} and applies the {@code options} it supports
+     */
+    public ServerBootstrap configure(ServerBootstrap bootstrap, TransportOptions options) {
+        bootstrap.channel(serverChannelType());
+        if (options.tcpFastOpen > 0) {
+            setOption(bootstrap, "TCP_FASTOPEN", options.tcpFastOpen);
+        }
+        if (options.reusePort) {
+            setOption(bootstrap, "SO_REUSEPORT", true);
+        }
+        if (options.tcpQuickAck) {
+            ChannelOption<?> option = option("TCP_QUICKACK");
+            if (option != null) bootstrap.childOption(cast(option), true);
+        }
+        configureCommon(bootstrap, options);
+        configureChildren(bootstrap, options);
+        return bootstrap;
+    }
+
+    /**
+     * Uses this transport for {@code bootstrap} and applies the {@code options} it supports
+     */
+    public Bootstrap configure(Bootstrap bootstrap, TransportOptions options) {
+        bootstrap.channel(channelType());
+        if (options.tcpFastOpenConnect) {
+            setOption(bootstrap, "TCP_FASTOPEN_CONNECT", true);
+        }
+        if (options.tcpQuickAck) {
+            setOption(bootstrap, "TCP_QUICKACK", true);
+        }
+        configureCommon(bootstrap, options);
+        return bootstrap;
+    }
+
+    private void setOption(AbstractBootstrap<?, ?> bootstrap, String name, Object value) {
+        ChannelOption<?> option = option(name);
+        if (option != null) bootstrap.option(cast(option), value);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> ChannelOption<T> cast(ChannelOption<?> option) {
+        return (ChannelOption<T>) option;
+    }
+
+    /**
+     * @return the transport named by {@link #PROPERTY}, else the first available of io_uring, epoll and NIO
+     */
+    public static Transport best() {
+        Transport rsp = best;
+        if (rsp != null) return rsp;
+
+        String forced = System.getProperty(PROPERTY);
+        if (forced != null) {
+            rsp = valueOf(forced.trim().toUpperCase(Locale.ROOT));
+            if (!rsp.isAvailable()) {
+                throw new IllegalStateException("Transport " + forced + " is not available");
+            }
+        } else if (IO_URING.isAvailable()) {
+            rsp = IO_URING;
+        } else if (EPOLL.isAvailable()) {
+            rsp = EPOLL;
+        } else {
+            rsp = NIO;
+        }
+        return best = rsp;
+    }
+
+    /**
+     * @return the transport whose channels {@code group} (or the group of an event loop) runs,
+     * {@link #NIO} if it is none of them
+     */
+    public static Transport of(EventLoopGroup group) {
+        if (group instanceof EventLoop && ((EventLoop) group).parent() != null) {
+            group = ((EventLoop) group).parent();
+        }
+        if (group instanceof EpollEventLoopGroup) return EPOLL;
+        if (IOUring.GROUP != null && IOUring.GROUP.isInstance(group)) return IO_URING;
+        return NIO;
+    }
+
+    /**
+     * io_uring classes, looked up reflectively so the incubator jar stays optional
+     */
+    private static final class IOUring {
+        private static final String PACKAGE = "io.netty.incubator.channel.uring.";
+
+        static final boolean AVAILABLE;
+        static final Class<?> GROUP;
+        static final Class<? extends ServerChannel> SERVER_CHANNEL;
+        static final Class<? extends Channel> CHANNEL;
+        static final Class<?> OPTIONS;
+
+        static {
+            boolean available = false;
+            Class<?> group = null, options = null;
+            Class<? extends ServerChannel> serverChannel = null;
+            Class<? extends Channel> channel = null;
+            try {
+                ClassLoader loader = Transport.class.getClassLoader();
+                group = Class.forName(PACKAGE + "IOUringEventLoopGroup", false, loader);
+                serverChannel = Class.forName(PACKAGE + "IOUringServerSocketChannel", false, loader).asSubclass(ServerChannel.class);
+                channel = Class.forName(PACKAGE + "IOUringSocketChannel", false, loader).asSubclass(Channel.class);
+                options = Class.forName(PACKAGE + "IOUringChannelOption", false, loader);
+                available = (Boolean) Class.forName(PACKAGE + "IOUring", true, loader).getMethod("isAvailable").invoke(null);
+            } catch (ReflectiveOperationException | LinkageError ignored) {
+            }
+            AVAILABLE = available;
+            GROUP = group;
+            SERVER_CHANNEL = serverChannel;
+            CHANNEL = channel;
+            OPTIONS = options;
+        }
+
+        static EventLoopGroup newEventLoopGroup(int threads) {
+            if (!AVAILABLE) throw new IllegalStateException("io_uring is not available");
+            try {
+                return (EventLoopGroup) GROUP.getConstructor(int.class).newInstance(threads);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static ChannelOption<?> option(String name) {
+            if (OPTIONS == null) return null;
+            try {
+                return (ChannelOption<?>) OPTIONS.getField(name).get(null);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network;
+
+import java.util.Properties;
+
+/**
+ * Socket options of the native transports, ignored by transports lacking them
+ */
+public class TransportOptions {
+    int tcpFastOpen;
+    boolean tcpFastOpenConnect;
+    boolean tcpQuickAck;
+    boolean edgeTriggered = true;
+    boolean reusePort;
+
+    /**
+     * Accepts data in the SYN of clients, up to {@code queueLength} pending such connections. {@code 0} disables it.
+     */
+    public TransportOptions setTcpFastOpen(int queueLength) {
+        this.tcpFastOpen = queueLength;
+        return this;
+    }
+
+    /**
+     * Sends the first write of client connections in the SYN, if the server accepted it before
+     */
+    public TransportOptions setTcpFastOpenConnect(boolean tcpFastOpenConnect) {
+        this.tcpFastOpenConnect = tcpFastOpenConnect;
+        return this;
+    }
+
+    /**
+     * Acknowledges received segments at once instead of delaying the ACK
+     */
+    public TransportOptions setTcpQuickAck(boolean tcpQuickAck) {
+        this.tcpQuickAck = tcpQuickAck;
+        return this;
+    }
+
+    /**
+     * Edge-triggered (default) or level-triggered epoll
+     */
+    public TransportOptions setEdgeTriggered(boolean edgeTriggered) {
+        this.edgeTriggered = edgeTriggered;
+        return this;
+    }
+
+    /**
+     * Lets several server channels bind the same port, the kernel spreads the accepted connections over them.
+     * Only epoll and io_uring support it, see {@link Transport#supportsReusePort()}.
+     */
+    public TransportOptions setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Options from {@code tcrs.tcpFastOpen=<queue length>}, {@code tcrs.tcpFastOpenConnect}, {@code tcrs.tcpQuickAck},
+     * {@code tcrs.epollLevelTriggered} and {@code tcrs.reusePort} in {@code properties}
+     */
+    public static TransportOptions fromProperties(Properties properties) {
+        return new TransportOptions()
+                .setTcpFastOpen(Integer.parseInt(properties.getProperty("tcrs.tcpFastOpen", "0").trim()))
+                .setTcpFastOpenConnect(Boolean.parseBoolean(properties.getProperty("tcrs.tcpFastOpenConnect")))
+                .setTcpQuickAck(Boolean.parseBoolean(properties.getProperty("tcrs.tcpQuickAck")))
+                .setEdgeTriggered(!Boolean.parseBoolean(properties.getProperty("tcrs.epollLevelTriggered")))
+                .setReusePort(Boolean.parseBoolean(properties.getProperty("tcrs.reusePort")));
+    }
+
+    /**
+     * {@link #fromProperties(Properties)} of the system properties
+     */
+    public static TransportOptions fromSystemProperties() {
+        return fromProperties(System.getProperties());
+    }
+}
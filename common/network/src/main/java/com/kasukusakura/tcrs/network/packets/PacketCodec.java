@@ -16,5 +16,26 @@ public interface PacketCodec<T extends Packet> {
 
     public void write(T msg, ByteBuf buf);
 
+    /**
+     * Exact number of bytes {@link #write} will produce for {@code msg}
+     */
+    public int encodedSize(T msg);
+
     public boolean isInstance(Object msg);
+
+    /**
+     * Decodes a payload received with the v2 framing, where length fields are {@link VarInt}s.
+     * Packets without length fields share the v1 layout.
+     */
+    public default T decodeV2(int payloadlen, ByteBuf buf) {
+        return decode(payloadlen, buf);
+    }
+
+    public default void writeV2(T msg, ByteBuf buf) {
+        write(msg, buf);
+    }
+
+    public default int encodedSizeV2(T msg) {
+        return encodedSize(msg);
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network.packets;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Objects;
+
+public class PkgChunkedTransfer {
+    /**
+     * Part of a packet whose payload exceeds the frame length.
+     * The first chunk of a transfer announces the packet id and the payload length.
+     * <p>
+     * The codec splits and reassembles them, handlers never receive this type.
+     */
+    public static class Chunk extends RefCountedPacket {
+        public static final int FLAG_FIRST = 0x1;
+        public static final int FLAG_LAST = 0x2;
+
+        public int transferId;
+        public int flags;
+        public int packetId;
+        public int totalLength;
+        public ByteBuf data;
+
+        public static Chunk chunk(int transferId, int flags, int packetId, int totalLength, ByteBuf data) {
+            Chunk rsp = new Chunk();
+            rsp.transferId = transferId;
+            rsp.flags = flags;
+            rsp.packetId = packetId;
+            rsp.totalLength = totalLength;
+            rsp.data = data;
+            return rsp;
+        }
+
+        public boolean isFirst() {
+            return (flags & FLAG_FIRST) != 0;
+        }
+
+        public boolean isLast() {
+            return (flags & FLAG_LAST) != 0;
+        }
+
+        public static final PacketCodec<Chunk> CODEC = new PacketCodec<Chunk>() {
+            @Override
+            public Chunk decode(int payloadlen, ByteBuf buf) {
+                Chunk rsp = new Chunk();
+                rsp.transferId = buf.readInt();
+                rsp.flags = buf.readUnsignedByte();
+                if (rsp.isFirst()) {
+                    rsp.packetId = buf.readUnsignedShort();
+                    rsp.totalLength = buf.readInt();
+                }
+                rsp.data = buf.readRetainedSlice(buf.readableBytes());
+                return rsp;
+            }
+
+            @Override
+            public void write(Chunk msg, ByteBuf buf) {
+                buf.writeInt(msg.transferId);
+                buf.writeByte(msg.flags);
+                if (msg.isFirst()) {
+                    buf.writeShort(msg.packetId);
+                    buf.writeInt(msg.totalLength);
+                }
+                RefCountedPacket.write(buf, msg.data);
+            }
+
+            @Override
+            public int encodedSize(Chunk msg) {
+                return 5 + (msg.isFirst() ? 6 : 0) + msg.data.readableBytes();
+            }
+
+            @Override
+            public Chunk decodeV2(int payloadlen, ByteBuf buf) {
+                Chunk rsp = new Chunk();
+                rsp.transferId = VarInt.read(buf);
+                rsp.flags = buf.readUnsignedByte();
+                if (rsp.isFirst()) {
+                    rsp.packetId = buf.readUnsignedByte();
+                    rsp.totalLength = VarInt.readLength(buf, true);
+                }
+                rsp.data = buf.readRetainedSlice(buf.readableBytes());
+                return rsp;
+            }
+
+            @Override
+            public void writeV2(Chunk msg, ByteBuf buf) {
+                VarInt.write(buf, msg.transferId);
+                buf.writeByte(msg.flags);
+                if (msg.isFirst()) {
+                    buf.writeByte(msg.packetId);
+                    VarInt.write(buf, msg.totalLength);
+                }
+                RefCountedPacket.write(buf, msg.data);
+            }
+
+            @Override
+            public int encodedSizeV2(Chunk msg) {
+                return VarInt.size(msg.transferId) + 1
+                        + (msg.isFirst() ? 1 + VarInt.size(msg.totalLength) : 0)
+                        + msg.data.readableBytes();
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof Chunk;
+            }
+        };
+
+        @Override
+        protected void deallocate() {
+            release(data);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Chunk)) return false;
+            Chunk chunk = (Chunk) o;
+            return transferId == chunk.transferId && flags == chunk.flags && packetId == chunk.packetId && totalLength == chunk.totalLength && Objects.equals(data, chunk.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(transferId, flags, packetId, totalLength, data);
+        }
+    }
+}
@@ -19,6 +19,9 @@ public class PkgKeepAlive implements Packet {
     public static final PacketCodec<PkgKeepAlive> CODEC = new PacketCodec<PkgKeepAlive>() {
         @Override
         public PkgKeepAlive decode(int payloadlen, ByteBuf buf) {
+            if (payloadlen >= Integer.BYTES) {
+                return Hello.CODEC.decode(payloadlen, buf);
+            }
             return INSTANCE;
         }
 
@@ -26,9 +29,122 @@ public class PkgKeepAlive implements Packet {
         public void write(PkgKeepAlive msg, ByteBuf buf) {
         }
 
+        @Override
+        public int encodedSize(PkgKeepAlive msg) {
+            return 0;
+        }
+
         @Override
         public boolean isInstance(Object msg) {
             return msg == INSTANCE;
         }
     };
+
+    /**
+     * KeepAlive announcing the capabilities of the sender.
+     * <p>
+     * Peers not knowing it ignore the payload and answer with a plain {@link #INSTANCE},
+     * which leaves the connection without capabilities.
+     */
+    public static class Hello extends PkgKeepAlive {
+        /**
+         * Sender inflates {@link PkgProcessCodeInfo.UpdateDeflated} and {@link PkgProcessCodeInfo.ResponseDeflated}
+         */
+        public static final int CAP_DEFLATE = 1;
+        /**
+         * Sender handles {@link PkgProcessCodeInfo.ConditionalUpdate}
+         */
+        public static final int CAP_CONDITIONAL_UPDATE = 1 << 1;
+        /**
+         * Sender handles {@link PkgProcessCodeInfo.VersionedQuery}
+         */
+        public static final int CAP_VERSIONED_QUERY = 1 << 2;
+        /**
+         * Sender reassembles {@link PkgChunkedTransfer.Chunk}s
+         */
+        public static final int CAP_CHUNKED = 1 << 3;
+        /**
+         * Sender switches to the compact v2 framing once both sides agreed on it
+         */
+        public static final int CAP_FRAMING_V2 = 1 << 4;
+        /**
+         * Sender handles {@link PkgProcessCodeInfo.UpdateRejected}
+         */
+        public static final int CAP_UPDATE_REJECTED = 1 << 5;
+
+        /**
+         * This Hello answers the one of the peer
+         */
+        public static final int FLAG_REPLY = 0x1;
+        /**
+         * Frames sent after this Hello use the v2 framing
+         */
+        public static final int FLAG_V2 = 0x2;
+
+        public int capabilities;
+        public int flags;
+
+        public static Hello hello(int capabilities) {
+            return hello(capabilities, 0);
+        }
+
+        public static Hello reply(int capabilities, boolean v2) {
+            return hello(capabilities, FLAG_REPLY | (v2 ? FLAG_V2 : 0));
+        }
+
+        public static Hello hello(int capabilities, int flags) {
+            Hello rsp = new Hello();
+            rsp.capabilities = capabilities;
+            rsp.flags = flags;
+            return rsp;
+        }
+
+        public boolean isReply() {
+            return (flags & FLAG_REPLY) != 0;
+        }
+
+        public boolean isV2() {
+            return (flags & FLAG_V2) != 0;
+        }
+
+        public static final PacketCodec<Hello> CODEC = new PacketCodec<Hello>() {
+            @Override
+            public Hello decode(int payloadlen, ByteBuf buf) {
+                // Newer revisions may append fields
+                int capabilities = buf.readInt();
+                return hello(capabilities, buf.isReadable() ? buf.readUnsignedByte() : 0);
+            }
+
+            @Override
+            public void write(Hello msg, ByteBuf buf) {
+                buf.writeInt(msg.capabilities);
+                if (msg.flags != 0) {
+                    buf.writeByte(msg.flags);
+                }
+            }
+
+            @Override
+            public int encodedSize(Hello msg) {
+                return Integer.BYTES + (msg.flags != 0 ? 1 : 0);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof Hello;
+            }
+        };
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Hello)) return false;
+            Hello hello = (Hello) o;
+            return capabilities == hello.capabilities && flags == hello.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * capabilities + flags;
+        }
+    }
 }
@@ -12,6 +12,7 @@ package com.kasukusakura.tcrs.network.packets;
 import io.netty.buffer.ByteBuf;
 
 import java.util.Arrays;
+import java.util.Objects;
 
 public class PkgNewProcessCode {
     public static class Req implements Packet {
@@ -29,6 +30,11 @@ public class PkgNewProcessCode {
             public void write(Req msg, ByteBuf buf) {
             }
 
+            @Override
+            public int encodedSize(Req msg) {
+                return 0;
+            }
+
             @Override
             public boolean isInstance(Object msg) {
                 return msg == INSTANCE;
@@ -38,25 +44,7 @@ public class PkgNewProcessCode {
 
     public static class Rsp implements Packet {
         public byte[] fastcode;
-        public static final PacketCodec<Rsp> CODEC = new PacketCodec<Rsp>() {
-            @Override
-            public Rsp decode(int payloadlen, ByteBuf buf) {
-                Rsp rsp = new Rsp();
-                rsp.fastcode = new byte[payloadlen];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
-            }
-
-            @Override
-            public void write(Rsp msg, ByteBuf buf) {
-                buf.writeBytes(msg.fastcode);
-            }
-
-            @Override
-            public boolean isInstance(Object msg) {
-                return msg instanceof Rsp;
-            }
-        };
+        public static final PacketCodec<Rsp> CODEC = ProtocolCodecs.NEW_PROCESS_CODE_RESP;
 
         public static Rsp rsp(byte[] fastcode) {
             Rsp rsp = new Rsp();
@@ -81,33 +69,7 @@ public class PkgNewProcessCode {
     public static class Complete implements Packet {
         public byte[] ticket;
         public byte[] fastcode;
-        public static final PacketCodec<Complete> CODEC = new PacketCodec<Complete>() {
-            @Override
-            public Complete decode(int payloadlen, ByteBuf buf) {
-                Complete rsp = new Complete();
-
-                int len = buf.readUnsignedShort();
-                rsp.ticket = new byte[len];
-                buf.readBytes(rsp.ticket);
-
-                rsp.fastcode = new byte[buf.readableBytes()];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
-            }
-
-            @Override
-            public void write(Complete msg, ByteBuf buf) {
-                buf.writeShort(msg.ticket.length);
-                buf.writeBytes(msg.ticket);
-
-                buf.writeBytes(msg.fastcode);
-            }
-
-            @Override
-            public boolean isInstance(Object msg) {
-                return msg instanceof Complete;
-            }
-        };
+        public static final PacketCodec<Complete> CODEC = ProtocolCodecs.PROCESS_CODE_COMPLETE;
 
         public static Complete complete(byte[] fastcode, byte[] ticket) {
             Complete rsp = new Complete();
@@ -131,4 +93,36 @@ public class PkgNewProcessCode {
             return result;
         }
     }
+
+    public static class CompleteBuf extends RefCountedPacket {
+        public ByteBuf ticket;
+        public ByteBuf fastcode;
+        public static final PacketCodec<CompleteBuf> CODEC = ProtocolCodecs.PROCESS_CODE_COMPLETE_RETAINED;
+
+        public static CompleteBuf complete(ByteBuf fastcode, ByteBuf ticket) {
+            CompleteBuf rsp = new CompleteBuf();
+            rsp.fastcode = fastcode;
+            rsp.ticket = ticket;
+            return rsp;
+        }
+
+        @Override
+        protected void deallocate() {
+            release(ticket);
+            release(fastcode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CompleteBuf)) return false;
+            CompleteBuf complete = (CompleteBuf) o;
+            return Objects.equals(ticket, complete.ticket) && Objects.equals(fastcode, complete.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ticket, fastcode);
+        }
+    }
 }
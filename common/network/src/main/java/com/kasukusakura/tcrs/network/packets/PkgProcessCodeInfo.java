@@ -10,8 +10,12 @@
 package com.kasukusakura.tcrs.network.packets;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.Recycler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
 
 public class PkgProcessCodeInfo {
@@ -31,28 +35,32 @@ public class PkgProcessCodeInfo {
         public static final PacketCodec<Update> CODEC = new PacketCodec<Update>() {
             @Override
             public Update decode(int payloadlen, ByteBuf buf) {
-                Update rsp = new Update();
-                rsp.captchaType = buf.readUnsignedShort();
-                int len = buf.readUnsignedShort();
-                if (len != 0) {
-                    rsp.captchaData = new byte[len];
-                    buf.readBytes(rsp.captchaData);
-                }
-                rsp.fastcode = new byte[buf.readableBytes()];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
+                return readPayload(buf, false);
             }
 
             @Override
             public void write(Update msg, ByteBuf buf) {
-                buf.writeShort(msg.captchaType);
-                if (msg.captchaData == null) {
-                    buf.writeShort(0);
-                } else {
-                    buf.writeShort(msg.captchaData.length)
-                            .writeBytes(msg.captchaData);
-                }
-                buf.writeBytes(msg.fastcode);
+                writePayload(buf, msg.captchaType, msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public int encodedSize(Update msg) {
+                return payloadSize(msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public Update decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(Update msg, ByteBuf buf) {
+                writePayload(buf, msg.captchaType, msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public int encodedSizeV2(Update msg) {
+                return payloadSize(msg.captchaData, msg.fastcode, true);
             }
 
             @Override
@@ -61,6 +69,34 @@ public class PkgProcessCodeInfo {
             }
         };
 
+        private static Update readPayload(ByteBuf buf, boolean v2) {
+            Update rsp = new Update();
+            rsp.captchaType = buf.readUnsignedShort();
+            int len = readCaptchaDataLength(buf, v2);
+            if (len != 0) {
+                rsp.captchaData = new byte[len];
+                buf.readBytes(rsp.captchaData);
+            }
+            rsp.fastcode = new byte[buf.readableBytes()];
+            buf.readBytes(rsp.fastcode);
+            return rsp;
+        }
+
+        private static void writePayload(ByteBuf buf, int captchaType, byte[] captchaData, byte[] fastcode, boolean v2) {
+            buf.writeShort(captchaType);
+            if (captchaData == null) {
+                writeCaptchaDataLength(buf, 0, v2);
+            } else {
+                writeCaptchaDataLength(buf, captchaData.length, v2);
+                buf.writeBytes(captchaData);
+            }
+            buf.writeBytes(fastcode);
+        }
+
+        private static int payloadSize(byte[] captchaData, byte[] fastcode, boolean v2) {
+            return 2 + captchaDataSize(captchaData == null ? 0 : captchaData.length, v2) + fastcode.length;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -78,34 +114,132 @@ public class PkgProcessCodeInfo {
         }
     }
 
-    public static class Refresh implements Packet {
+    /**
+     * Refreshes the session when the server stores captcha data of the same type and {@link #hash},
+     * answered with {@link UpdateRequired} otherwise.
+     */
+    public static class ConditionalUpdate implements Packet {
+        public int captchaType;
+        public long hash;
         public byte[] fastcode;
 
-        public static Refresh refresh(byte[] fastcode) {
-            Refresh rsp = new Refresh();
+        public static ConditionalUpdate update(int type, byte[] data, byte[] fastcode) {
+            ConditionalUpdate rsp = new ConditionalUpdate();
             rsp.fastcode = fastcode;
+            rsp.captchaType = type;
+            rsp.hash = hash(data);
             return rsp;
         }
 
-        public static final PacketCodec<Refresh> CODEC = new PacketCodec<Refresh>() {
-            @Override
-            public Refresh decode(int payloadlen, ByteBuf buf) {
-                Refresh rsp = new Refresh();
-                rsp.fastcode = new byte[buf.readableBytes()];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
+        private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        /**
+         * 64-bit FNV-1a of captcha data, {@code null} hashes like empty data
+         */
+        public static long hash(byte[] data) {
+            long hash = FNV_OFFSET_BASIS;
+            if (data != null) {
+                for (byte b : data) {
+                    hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+                }
             }
+            return hash;
+        }
 
-            @Override
-            public void write(Refresh msg, ByteBuf buf) {
-                buf.writeBytes(msg.fastcode);
+        public static long hash(ByteBuf data) {
+            long hash = FNV_OFFSET_BASIS;
+            if (data != null) {
+                for (int i = data.readerIndex(), end = data.writerIndex(); i < end; i++) {
+                    hash = (hash ^ (data.getByte(i) & 0xFF)) * FNV_PRIME;
+                }
             }
+            return hash;
+        }
 
-            @Override
-            public boolean isInstance(Object msg) {
-                return msg instanceof Refresh;
-            }
-        };
+        public static final PacketCodec<ConditionalUpdate> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_CONDITIONAL_UPDATE;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ConditionalUpdate)) return false;
+            ConditionalUpdate update = (ConditionalUpdate) o;
+            return captchaType == update.captchaType && hash == update.hash && Arrays.equals(fastcode, update.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(captchaType, hash);
+            result = 31 * result + Arrays.hashCode(fastcode);
+            return result;
+        }
+    }
+
+    /**
+     * Server does not store the captcha data announced by a {@link ConditionalUpdate}, the client should send an {@link Update}
+     */
+    public static class UpdateRequired implements Packet {
+        public byte[] fastcode;
+
+        public static UpdateRequired required(byte[] fastcode) {
+            UpdateRequired rsp = new UpdateRequired();
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        public static final PacketCodec<UpdateRequired> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_UPDATE_REQUIRED;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UpdateRequired)) return false;
+            return Arrays.equals(fastcode, ((UpdateRequired) o).fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(fastcode);
+        }
+    }
+
+    /**
+     * Answers {@link Update} when the server has no room for the captcha data, only sent to peers announcing
+     * {@link PkgKeepAlive.Hello#CAP_UPDATE_REJECTED}
+     */
+    public static class UpdateRejected implements Packet {
+        public byte[] fastcode;
+
+        public static UpdateRejected rejected(byte[] fastcode) {
+            UpdateRejected rsp = new UpdateRejected();
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        public static final PacketCodec<UpdateRejected> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_UPDATE_REJECTED;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UpdateRejected)) return false;
+            return Arrays.equals(fastcode, ((UpdateRejected) o).fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(fastcode);
+        }
+    }
+
+    public static class Refresh implements Packet {
+        public byte[] fastcode;
+
+        public static Refresh refresh(byte[] fastcode) {
+            Refresh rsp = new Refresh();
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        public static final PacketCodec<Refresh> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_REFRESH;
 
         @Override
         public boolean equals(Object o) {
@@ -121,35 +255,113 @@ public class PkgProcessCodeInfo {
         }
     }
 
-    public static class Query implements Packet {
-        public byte[] fastcode;
+    /**
+     * {@link Refresh} decoded by codecs with pooled packets, releasing it returns it to the pool.
+     * Its fastcode array is reused by the next packet, handlers must copy it to keep it.
+     */
+    public static final class RefreshPooled extends Refresh implements PooledReferenceCounted<RefreshPooled> {
+        private static final Recycler<RefreshPooled> RECYCLER = PooledPacket.recycler(RefreshPooled::new);
 
-        public static Query query(byte[] fastcode) {
-            Query rsp = new Query();
-            rsp.fastcode = fastcode;
+        public static final PacketCodec<RefreshPooled> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_REFRESH_POOLED;
+
+        private final PooledPacket<RefreshPooled> ref;
+
+        private RefreshPooled(Recycler.Handle<RefreshPooled> handle) {
+            ref = new PooledPacket<>(this, handle);
+        }
+
+        static RefreshPooled newInstance() {
+            return PooledPacket.take(RECYCLER);
+        }
+
+        @Override
+        public PooledPacket<RefreshPooled> pooledRef() {
+            return ref;
+        }
+    }
+
+    public static class BatchRefresh implements Packet {
+        public byte[][] fastcodes;
+
+        public static BatchRefresh refresh(byte[][] fastcodes) {
+            BatchRefresh rsp = new BatchRefresh();
+            rsp.fastcodes = fastcodes;
+            return rsp;
+        }
+
+        /**
+         * Splits {@code fastcodes} into as few refreshes as the frame size allows
+         */
+        public static List<BatchRefresh> batches(Collection<byte[]> fastcodes) {
+            List<BatchRefresh> rsp = new ArrayList<>();
+            for (byte[][] batch : PkgQueryProcessCodeStatus.partition(fastcodes)) {
+                rsp.add(refresh(batch));
+            }
             return rsp;
         }
 
-        public static final PacketCodec<Query> CODEC = new PacketCodec<Query>() {
+        public static final PacketCodec<BatchRefresh> CODEC = new PacketCodec<BatchRefresh>() {
+            @Override
+            public BatchRefresh decode(int payloadlen, ByteBuf buf) {
+                return refresh(PkgQueryProcessCodeStatus.readFastcodes(buf, false));
+            }
+
+            @Override
+            public void write(BatchRefresh msg, ByteBuf buf) {
+                PkgQueryProcessCodeStatus.writeFastcodes(buf, msg.fastcodes, false);
+            }
+
+            @Override
+            public int encodedSize(BatchRefresh msg) {
+                return PkgQueryProcessCodeStatus.fastcodesSize(msg.fastcodes, false);
+            }
+
             @Override
-            public Query decode(int payloadlen, ByteBuf buf) {
-                Query rsp = new Query();
-                rsp.fastcode = new byte[buf.readableBytes()];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
+            public BatchRefresh decodeV2(int payloadlen, ByteBuf buf) {
+                return refresh(PkgQueryProcessCodeStatus.readFastcodes(buf, true));
             }
 
             @Override
-            public void write(Query msg, ByteBuf buf) {
-                buf.writeBytes(msg.fastcode);
+            public void writeV2(BatchRefresh msg, ByteBuf buf) {
+                PkgQueryProcessCodeStatus.writeFastcodes(buf, msg.fastcodes, true);
+            }
+
+            @Override
+            public int encodedSizeV2(BatchRefresh msg) {
+                return PkgQueryProcessCodeStatus.fastcodesSize(msg.fastcodes, true);
             }
 
             @Override
             public boolean isInstance(Object msg) {
-                return msg instanceof Query;
+                return msg instanceof BatchRefresh;
             }
         };
 
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BatchRefresh)) return false;
+            BatchRefresh refresh = (BatchRefresh) o;
+            return Arrays.deepEquals(fastcodes, refresh.fastcodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(fastcodes);
+        }
+    }
+
+    public static class Query implements Packet {
+        public byte[] fastcode;
+
+        public static Query query(byte[] fastcode) {
+            Query rsp = new Query();
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        public static final PacketCodec<Query> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_QUERY;
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -164,6 +376,127 @@ public class PkgProcessCodeInfo {
         }
     }
 
+    /**
+     * {@link Query} decoded by codecs with pooled packets, releasing it returns it to the pool.
+     * Its fastcode array is reused by the next packet, handlers must copy it to keep it.
+     */
+    public static final class QueryPooled extends Query implements PooledReferenceCounted<QueryPooled> {
+        private static final Recycler<QueryPooled> RECYCLER = PooledPacket.recycler(QueryPooled::new);
+
+        public static final PacketCodec<QueryPooled> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_QUERY_POOLED;
+
+        private final PooledPacket<QueryPooled> ref;
+
+        private QueryPooled(Recycler.Handle<QueryPooled> handle) {
+            ref = new PooledPacket<>(this, handle);
+        }
+
+        static QueryPooled newInstance() {
+            return PooledPacket.take(RECYCLER);
+        }
+
+        @Override
+        public PooledPacket<QueryPooled> pooledRef() {
+            return ref;
+        }
+    }
+
+    /**
+     * {@link Query} answered with a {@link Version}, followed by a {@link Response} only if
+     * the captcha data changed since {@link #version}.
+     */
+    public static class VersionedQuery implements Packet {
+        /**
+         * Last version the sender saw, {@code 0} if none
+         */
+        public int version;
+        public byte[] fastcode;
+
+        public static VersionedQuery query(byte[] fastcode, int version) {
+            VersionedQuery rsp = new VersionedQuery();
+            rsp.fastcode = fastcode;
+            rsp.version = version;
+            return rsp;
+        }
+
+        public static final PacketCodec<VersionedQuery> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_VERSIONED_QUERY;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof VersionedQuery)) return false;
+            VersionedQuery query = (VersionedQuery) o;
+            return version == query.version && Arrays.equals(fastcode, query.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version + Arrays.hashCode(fastcode);
+        }
+    }
+
+    /**
+     * {@link VersionedQuery} decoded by codecs with pooled packets, releasing it returns it to the pool.
+     * Its fastcode array is reused by the next packet, handlers must copy it to keep it.
+     */
+    public static final class VersionedQueryPooled extends VersionedQuery implements PooledReferenceCounted<VersionedQueryPooled> {
+        private static final Recycler<VersionedQueryPooled> RECYCLER = PooledPacket.recycler(VersionedQueryPooled::new);
+
+        public static final PacketCodec<VersionedQueryPooled> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_VERSIONED_QUERY_POOLED;
+
+        private final PooledPacket<VersionedQueryPooled> ref;
+
+        private VersionedQueryPooled(Recycler.Handle<VersionedQueryPooled> handle) {
+            ref = new PooledPacket<>(this, handle);
+        }
+
+        static VersionedQueryPooled newInstance() {
+            return PooledPacket.take(RECYCLER);
+        }
+
+        @Override
+        public PooledPacket<VersionedQueryPooled> pooledRef() {
+            return ref;
+        }
+    }
+
+    public static class Version implements Packet {
+        /**
+         * Current version of the captcha data, {@code 0} if the session has none
+         */
+        public int version;
+        /**
+         * A {@link Response} of the same fastcode follows
+         */
+        public boolean modified;
+        public byte[] fastcode;
+
+        public static Version version(int version, boolean modified, byte[] fastcode) {
+            Version rsp = new Version();
+            rsp.version = version;
+            rsp.modified = modified;
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        public static final PacketCodec<Version> CODEC = ProtocolCodecs.PROCESS_CODE_INFO_VERSION;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Version)) return false;
+            Version version = (Version) o;
+            return this.version == version.version && modified == version.modified && Arrays.equals(fastcode, version.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(version, modified);
+            result = 31 * result + Arrays.hashCode(fastcode);
+            return result;
+        }
+    }
+
     public static class Response implements Packet {
 
         public int captchaType;
@@ -181,21 +514,32 @@ public class PkgProcessCodeInfo {
         public static final PacketCodec<Response> CODEC = new PacketCodec<Response>() {
             @Override
             public Response decode(int payloadlen, ByteBuf buf) {
-                Update update = Update.CODEC.decode(payloadlen, buf);
-                Response rsp = new Response();
-                rsp.fastcode = update.fastcode;
-                rsp.captchaData = update.captchaData;
-                rsp.captchaType = update.captchaType;
-                return rsp;
+                return readPayload(buf, false);
             }
 
             @Override
             public void write(Response msg, ByteBuf buf) {
-                Update update = new Update();
-                update.captchaData = msg.captchaData;
-                update.captchaType = msg.captchaType;
-                update.fastcode = msg.fastcode;
-                Update.CODEC.write(update, buf);
+                Update.writePayload(buf, msg.captchaType, msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public int encodedSize(Response msg) {
+                return Update.payloadSize(msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public Response decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(Response msg, ByteBuf buf) {
+                Update.writePayload(buf, msg.captchaType, msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public int encodedSizeV2(Response msg) {
+                return Update.payloadSize(msg.captchaData, msg.fastcode, true);
             }
 
             @Override
@@ -204,6 +548,19 @@ public class PkgProcessCodeInfo {
             }
         };
 
+        private static Response readPayload(ByteBuf buf, boolean v2) {
+            Response rsp = new Response();
+            rsp.captchaType = buf.readUnsignedShort();
+            int len = readCaptchaDataLength(buf, v2);
+            if (len != 0) {
+                rsp.captchaData = new byte[len];
+                buf.readBytes(rsp.captchaData);
+            }
+            rsp.fastcode = new byte[buf.readableBytes()];
+            buf.readBytes(rsp.fastcode);
+            return rsp;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -221,4 +578,344 @@ public class PkgProcessCodeInfo {
         }
     }
 
+    public static class UpdateBuf extends RefCountedPacket {
+        public int captchaType;
+        public ByteBuf captchaData;
+        public ByteBuf fastcode;
+
+        public static UpdateBuf update(int type, ByteBuf data, ByteBuf fastcode) {
+            UpdateBuf rsp = new UpdateBuf();
+            rsp.fastcode = fastcode;
+            rsp.captchaType = type;
+            rsp.captchaData = data;
+            return rsp;
+        }
+
+        public static final PacketCodec<UpdateBuf> CODEC = new PacketCodec<UpdateBuf>() {
+            @Override
+            public UpdateBuf decode(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, false);
+            }
+
+            @Override
+            public void write(UpdateBuf msg, ByteBuf buf) {
+                writeBuf(buf, msg.captchaType, msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public int encodedSize(UpdateBuf msg) {
+                return bufSize(msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public UpdateBuf decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(UpdateBuf msg, ByteBuf buf) {
+                writeBuf(buf, msg.captchaType, msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public int encodedSizeV2(UpdateBuf msg) {
+                return bufSize(msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof UpdateBuf;
+            }
+        };
+
+        private static UpdateBuf readPayload(ByteBuf buf, boolean v2) {
+            UpdateBuf rsp = new UpdateBuf();
+            rsp.captchaType = buf.readUnsignedShort();
+            rsp.captchaData = readCaptchaData(buf, v2);
+            rsp.fastcode = buf.readRetainedSlice(buf.readableBytes());
+            return rsp;
+        }
+
+        @Override
+        protected void deallocate() {
+            release(captchaData);
+            release(fastcode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof UpdateBuf)) return false;
+            UpdateBuf update = (UpdateBuf) o;
+            return captchaType == update.captchaType && Objects.equals(captchaData, update.captchaData) && Objects.equals(fastcode, update.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(captchaType, captchaData, fastcode);
+        }
+    }
+
+    public static class ResponseBuf extends RefCountedPacket {
+        public int captchaType;
+        public ByteBuf captchaData;
+        public ByteBuf fastcode;
+
+        public static ResponseBuf response(int type, ByteBuf data, ByteBuf fastcode) {
+            ResponseBuf rsp = new ResponseBuf();
+            rsp.fastcode = fastcode;
+            rsp.captchaType = type;
+            rsp.captchaData = data;
+            return rsp;
+        }
+
+        /**
+         * Writes the part of the payload in front of {@link #captchaData}, for encoders sending
+         * the captcha data and {@link #fastcode} as they are
+         */
+        public void writeHeader(ByteBuf buf, boolean v2) {
+            buf.writeShort(captchaType);
+            writeCaptchaDataLength(buf, captchaData == null ? 0 : captchaData.readableBytes(), v2);
+        }
+
+        public static final PacketCodec<ResponseBuf> CODEC = new PacketCodec<ResponseBuf>() {
+            @Override
+            public ResponseBuf decode(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, false);
+            }
+
+            @Override
+            public void write(ResponseBuf msg, ByteBuf buf) {
+                writeBuf(buf, msg.captchaType, msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public int encodedSize(ResponseBuf msg) {
+                return bufSize(msg.captchaData, msg.fastcode, false);
+            }
+
+            @Override
+            public ResponseBuf decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(ResponseBuf msg, ByteBuf buf) {
+                writeBuf(buf, msg.captchaType, msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public int encodedSizeV2(ResponseBuf msg) {
+                return bufSize(msg.captchaData, msg.fastcode, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof ResponseBuf;
+            }
+        };
+
+        private static ResponseBuf readPayload(ByteBuf buf, boolean v2) {
+            ResponseBuf rsp = new ResponseBuf();
+            rsp.captchaType = buf.readUnsignedShort();
+            rsp.captchaData = readCaptchaData(buf, v2);
+            rsp.fastcode = buf.readRetainedSlice(buf.readableBytes());
+            return rsp;
+        }
+
+        @Override
+        protected void deallocate() {
+            release(captchaData);
+            release(fastcode);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ResponseBuf)) return false;
+            ResponseBuf response = (ResponseBuf) o;
+            return captchaType == response.captchaType && Objects.equals(captchaData, response.captchaData) && Objects.equals(fastcode, response.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(captchaType, captchaData, fastcode);
+        }
+    }
+
+    /**
+     * {@link Update} or {@link Response} with deflated captcha data,
+     * only sent to peers announcing {@link PkgKeepAlive.Hello#CAP_DEFLATE}.
+     * <p>
+     * The decoder inflates them back, handlers never receive this type.
+     */
+    public abstract static class Deflated extends RefCountedPacket {
+        public int captchaType;
+        public int rawLength;
+        public ByteBuf deflated;
+        public ByteBuf fastcode;
+
+        @Override
+        protected void deallocate() {
+            release(deflated);
+            release(fastcode);
+        }
+
+        static <T extends Deflated> T read(T rsp, ByteBuf buf, boolean v2) {
+            rsp.captchaType = buf.readUnsignedShort();
+            rsp.rawLength = VarInt.readLength(buf, v2);
+            rsp.deflated = buf.readRetainedSlice(VarInt.readLength(buf, v2));
+            rsp.fastcode = buf.readRetainedSlice(buf.readableBytes());
+            return rsp;
+        }
+
+        void write(ByteBuf buf, boolean v2) {
+            buf.writeShort(captchaType);
+            VarInt.writeLength(buf, rawLength, v2);
+            VarInt.writeLength(buf, deflated.readableBytes(), v2);
+            RefCountedPacket.write(buf, deflated);
+            RefCountedPacket.write(buf, fastcode);
+        }
+
+        int encodedSize(boolean v2) {
+            return 2 + VarInt.lengthSize(rawLength, v2) + VarInt.lengthSize(deflated.readableBytes(), v2)
+                    + deflated.readableBytes() + fastcode.readableBytes();
+        }
+    }
+
+    public static class UpdateDeflated extends Deflated {
+        public static final PacketCodec<UpdateDeflated> CODEC = new PacketCodec<UpdateDeflated>() {
+            @Override
+            public UpdateDeflated decode(int payloadlen, ByteBuf buf) {
+                return read(new UpdateDeflated(), buf, false);
+            }
+
+            @Override
+            public void write(UpdateDeflated msg, ByteBuf buf) {
+                msg.write(buf, false);
+            }
+
+            @Override
+            public int encodedSize(UpdateDeflated msg) {
+                return msg.encodedSize(false);
+            }
+
+            @Override
+            public UpdateDeflated decodeV2(int payloadlen, ByteBuf buf) {
+                return read(new UpdateDeflated(), buf, true);
+            }
+
+            @Override
+            public void writeV2(UpdateDeflated msg, ByteBuf buf) {
+                msg.write(buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(UpdateDeflated msg) {
+                return msg.encodedSize(true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof UpdateDeflated;
+            }
+        };
+    }
+
+    public static class ResponseDeflated extends Deflated {
+        public static final PacketCodec<ResponseDeflated> CODEC = new PacketCodec<ResponseDeflated>() {
+            @Override
+            public ResponseDeflated decode(int payloadlen, ByteBuf buf) {
+                return read(new ResponseDeflated(), buf, false);
+            }
+
+            @Override
+            public void write(ResponseDeflated msg, ByteBuf buf) {
+                msg.write(buf, false);
+            }
+
+            @Override
+            public int encodedSize(ResponseDeflated msg) {
+                return msg.encodedSize(false);
+            }
+
+            @Override
+            public ResponseDeflated decodeV2(int payloadlen, ByteBuf buf) {
+                return read(new ResponseDeflated(), buf, true);
+            }
+
+            @Override
+            public void writeV2(ResponseDeflated msg, ByteBuf buf) {
+                msg.write(buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(ResponseDeflated msg) {
+                return msg.encodedSize(true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof ResponseDeflated;
+            }
+        };
+    }
+
+    /**
+     * Largest captcha_data_len written as plain int16 in v1, longer data escapes to an int32 length.
+     * Only payloads sent as chunked transfers can hold that much.
+     */
+    private static final int MAX_SHORT_CAPTCHA_DATA_LENGTH = 0xFFFE;
+
+    private static int readCaptchaDataLength(ByteBuf buf, boolean v2) {
+        if (v2) return VarInt.readLength(buf, true);
+        int len = buf.readUnsignedShort();
+        if (len > MAX_SHORT_CAPTCHA_DATA_LENGTH) {
+            len = buf.readInt();
+            if (len < 0) {
+                throw new IndexOutOfBoundsException("captcha_data_len < 0");
+            }
+        }
+        return len;
+    }
+
+    private static void writeCaptchaDataLength(ByteBuf buf, int len, boolean v2) {
+        if (v2) {
+            VarInt.write(buf, len);
+        } else if (len > MAX_SHORT_CAPTCHA_DATA_LENGTH) {
+            buf.writeShort(0xFFFF);
+            buf.writeInt(len);
+        } else {
+            buf.writeShort(len);
+        }
+    }
+
+    /**
+     * Encoded size of captcha_data_len and captcha_data
+     */
+    private static int captchaDataSize(int len, boolean v2) {
+        if (v2) return VarInt.size(len) + len;
+        return (len > MAX_SHORT_CAPTCHA_DATA_LENGTH ? 6 : 2) + len;
+    }
+
+    private static ByteBuf readCaptchaData(ByteBuf buf, boolean v2) {
+        int len = readCaptchaDataLength(buf, v2);
+        if (len == 0) return null;
+        return buf.readRetainedSlice(len);
+    }
+
+    private static int bufSize(ByteBuf captchaData, ByteBuf fastcode, boolean v2) {
+        return 2 + captchaDataSize(captchaData == null ? 0 : captchaData.readableBytes(), v2) + fastcode.readableBytes();
+    }
+
+    private static void writeBuf(ByteBuf buf, int captchaType, ByteBuf captchaData, ByteBuf fastcode, boolean v2) {
+        buf.writeShort(captchaType);
+        if (captchaData == null) {
+            writeCaptchaDataLength(buf, 0, v2);
+        } else {
+            writeCaptchaDataLength(buf, captchaData.readableBytes(), v2);
+            RefCountedPacket.write(buf, captchaData);
+        }
+        RefCountedPacket.write(buf, fastcode);
+    }
 }
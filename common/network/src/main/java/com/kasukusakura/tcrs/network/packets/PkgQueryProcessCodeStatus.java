@@ -10,32 +10,20 @@
 package com.kasukusakura.tcrs.network.packets;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.util.Recycler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
 
 public class PkgQueryProcessCodeStatus {
     public static class Req implements Packet {
         public byte[] fastcode;
 
-        public static final PacketCodec<Req> CODEC = new PacketCodec<Req>() {
-            @Override
-            public Req decode(int payloadlen, ByteBuf buf) {
-                Req rsp = new Req();
-                rsp.fastcode = new byte[payloadlen];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
-            }
-
-            @Override
-            public void write(Req msg, ByteBuf buf) {
-                buf.writeBytes(msg.fastcode);
-            }
-
-            @Override
-            public boolean isInstance(Object msg) {
-                return msg instanceof Req;
-            }
-        };
+        public static final PacketCodec<Req> CODEC = ProtocolCodecs.QUERY_PROCESS_CODE_STATUS;
 
         public static Req req(byte[] fastcode) {
             Req req = new Req();
@@ -57,33 +45,63 @@ public class PkgQueryProcessCodeStatus {
         }
     }
 
+    /**
+     * {@link Req} decoded by codecs with pooled packets, releasing it returns it to the pool.
+     * Its fastcode array is reused by the next packet, handlers must copy it to keep it.
+     */
+    public static final class ReqPooled extends Req implements PooledReferenceCounted<ReqPooled> {
+        private static final Recycler<ReqPooled> RECYCLER = PooledPacket.recycler(ReqPooled::new);
+
+        public static final PacketCodec<ReqPooled> CODEC = ProtocolCodecs.QUERY_PROCESS_CODE_STATUS_POOLED;
+
+        private final PooledPacket<ReqPooled> ref;
+
+        private ReqPooled(Recycler.Handle<ReqPooled> handle) {
+            ref = new PooledPacket<>(this, handle);
+        }
+
+        static ReqPooled newInstance() {
+            return PooledPacket.take(RECYCLER);
+        }
+
+        @Override
+        public PooledPacket<ReqPooled> pooledRef() {
+            return ref;
+        }
+    }
+
     public static class Rsp implements Packet {
         public byte[] fastcode;
         public byte[] ticket;
         public static final PacketCodec<Rsp> CODEC = new PacketCodec<Rsp>() {
             @Override
             public Rsp decode(int payloadlen, ByteBuf buf) {
-                Rsp rsp = new Rsp();
-                if (buf.readBoolean()) {
-                    rsp.ticket = new byte[buf.readUnsignedShort()];
-                    buf.readBytes(rsp.ticket);
-                }
-                rsp.fastcode = new byte[buf.readableBytes()];
-                buf.readBytes(rsp.fastcode);
-                return rsp;
+                return readPayload(new Rsp(), buf, false);
             }
 
             @Override
             public void write(Rsp msg, ByteBuf buf) {
-                byte[] ticket = msg.ticket;
-                if (ticket == null) {
-                    buf.writeBoolean(false);
-                } else {
-                    buf.writeBoolean(true);
-                    buf.writeShort(ticket.length);
-                    buf.writeBytes(ticket);
-                }
-                buf.writeBytes(msg.fastcode);
+                writePayload(msg, buf, false);
+            }
+
+            @Override
+            public int encodedSize(Rsp msg) {
+                return payloadSize(msg, false);
+            }
+
+            @Override
+            public Rsp decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(new Rsp(), buf, true);
+            }
+
+            @Override
+            public void writeV2(Rsp msg, ByteBuf buf) {
+                writePayload(msg, buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(Rsp msg) {
+                return payloadSize(msg, true);
             }
 
             @Override
@@ -92,6 +110,34 @@ public class PkgQueryProcessCodeStatus {
             }
         };
 
+        private static <T extends Rsp> T readPayload(T rsp, ByteBuf buf, boolean v2) {
+            if (buf.readBoolean()) {
+                rsp.ticket = PooledPacket.array(rsp.ticket, VarInt.readLength(buf, v2));
+                buf.readBytes(rsp.ticket);
+            } else {
+                rsp.ticket = null;
+            }
+            rsp.fastcode = PooledPacket.array(rsp.fastcode, buf.readableBytes());
+            buf.readBytes(rsp.fastcode);
+            return rsp;
+        }
+
+        private static void writePayload(Rsp msg, ByteBuf buf, boolean v2) {
+            byte[] ticket = msg.ticket;
+            if (ticket == null) {
+                buf.writeBoolean(false);
+            } else {
+                buf.writeBoolean(true);
+                VarInt.writeLength(buf, ticket.length, v2);
+                buf.writeBytes(ticket);
+            }
+            buf.writeBytes(msg.fastcode);
+        }
+
+        private static int payloadSize(Rsp msg, boolean v2) {
+            return 1 + (msg.ticket == null ? 0 : VarInt.lengthSize(msg.ticket.length, v2) + msg.ticket.length) + msg.fastcode.length;
+        }
+
         public static Rsp rsp(byte[] fastcode, byte[] ticket) {
             Rsp rsp = new Rsp();
             rsp.fastcode = fastcode;
@@ -114,4 +160,457 @@ public class PkgQueryProcessCodeStatus {
             return result;
         }
     }
+
+    /**
+     * {@link Rsp} decoded by codecs with pooled packets, releasing it returns it to the pool.
+     * Its fastcode and ticket arrays are reused by the next packet, handlers must copy them to keep them.
+     */
+    public static final class RspPooled extends Rsp implements PooledReferenceCounted<RspPooled> {
+        private static final Recycler<RspPooled> RECYCLER = PooledPacket.recycler(RspPooled::new);
+
+        public static final PacketCodec<RspPooled> CODEC = new PacketCodec<RspPooled>() {
+            @Override
+            public RspPooled decode(int payloadlen, ByteBuf buf) {
+                return Rsp.readPayload(newInstance(), buf, false);
+            }
+
+            @Override
+            public void write(RspPooled msg, ByteBuf buf) {
+                Rsp.writePayload(msg, buf, false);
+            }
+
+            @Override
+            public int encodedSize(RspPooled msg) {
+                return Rsp.payloadSize(msg, false);
+            }
+
+            @Override
+            public RspPooled decodeV2(int payloadlen, ByteBuf buf) {
+                return Rsp.readPayload(newInstance(), buf, true);
+            }
+
+            @Override
+            public void writeV2(RspPooled msg, ByteBuf buf) {
+                Rsp.writePayload(msg, buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(RspPooled msg) {
+                return Rsp.payloadSize(msg, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof RspPooled;
+            }
+        };
+
+        private final PooledPacket<RspPooled> ref;
+
+        private RspPooled(Recycler.Handle<RspPooled> handle) {
+            ref = new PooledPacket<>(this, handle);
+        }
+
+        static RspPooled newInstance() {
+            return PooledPacket.take(RECYCLER);
+        }
+
+        @Override
+        public PooledPacket<RspPooled> pooledRef() {
+            return ref;
+        }
+    }
+
+    public static class RspBuf extends RefCountedPacket {
+        public ByteBuf fastcode;
+        public ByteBuf ticket;
+        public static final PacketCodec<RspBuf> CODEC = new PacketCodec<RspBuf>() {
+            @Override
+            public RspBuf decode(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, false);
+            }
+
+            @Override
+            public void write(RspBuf msg, ByteBuf buf) {
+                writePayload(msg, buf, false);
+            }
+
+            @Override
+            public int encodedSize(RspBuf msg) {
+                return payloadSize(msg, false);
+            }
+
+            @Override
+            public RspBuf decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(RspBuf msg, ByteBuf buf) {
+                writePayload(msg, buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(RspBuf msg) {
+                return payloadSize(msg, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof RspBuf;
+            }
+        };
+
+        private static RspBuf readPayload(ByteBuf buf, boolean v2) {
+            RspBuf rsp = new RspBuf();
+            if (buf.readBoolean()) {
+                rsp.ticket = buf.readRetainedSlice(VarInt.readLength(buf, v2));
+            }
+            rsp.fastcode = buf.readRetainedSlice(buf.readableBytes());
+            return rsp;
+        }
+
+        private static void writePayload(RspBuf msg, ByteBuf buf, boolean v2) {
+            ByteBuf ticket = msg.ticket;
+            if (ticket == null) {
+                buf.writeBoolean(false);
+            } else {
+                buf.writeBoolean(true);
+                VarInt.writeLength(buf, ticket.readableBytes(), v2);
+                RefCountedPacket.write(buf, ticket);
+            }
+            RefCountedPacket.write(buf, msg.fastcode);
+        }
+
+        private static int payloadSize(RspBuf msg, boolean v2) {
+            return 1 + (msg.ticket == null ? 0 : VarInt.lengthSize(msg.ticket.readableBytes(), v2) + msg.ticket.readableBytes()) + msg.fastcode.readableBytes();
+        }
+
+        public static RspBuf rsp(ByteBuf fastcode, ByteBuf ticket) {
+            RspBuf rsp = new RspBuf();
+            rsp.fastcode = fastcode;
+            rsp.ticket = ticket;
+            return rsp;
+        }
+
+        @Override
+        protected void deallocate() {
+            release(fastcode);
+            release(ticket);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof RspBuf)) return false;
+            RspBuf rsp = (RspBuf) o;
+            return Objects.equals(fastcode, rsp.fastcode) && Objects.equals(ticket, rsp.ticket);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fastcode, ticket);
+        }
+    }
+
+    /**
+     * Asks the server to push {@link Rsp} once the ticket of {@link #fastcode} arrives
+     */
+    public static class Subscribe implements Packet {
+        public byte[] fastcode;
+
+        public static final PacketCodec<Subscribe> CODEC = ProtocolCodecs.SUBSCRIBE_PROCESS_CODE;
+
+        public static Subscribe subscribe(byte[] fastcode) {
+            Subscribe rsp = new Subscribe();
+            rsp.fastcode = fastcode;
+            return rsp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Subscribe)) return false;
+            Subscribe subscribe = (Subscribe) o;
+            return Arrays.equals(fastcode, subscribe.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(fastcode);
+        }
+    }
+
+    /**
+     * {@link Req} the server may hold for up to {@link #maxWaitMillis} until the ticket arrives
+     */
+    public static class LongPoll implements Packet {
+        public int maxWaitMillis;
+        public byte[] fastcode;
+
+        public static final PacketCodec<LongPoll> CODEC = ProtocolCodecs.QUERY_PROCESS_CODE_STATUS_LONG_POLL;
+
+        public static LongPoll poll(byte[] fastcode, int maxWaitMillis) {
+            LongPoll rsp = new LongPoll();
+            rsp.fastcode = fastcode;
+            rsp.maxWaitMillis = maxWaitMillis;
+            return rsp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LongPoll)) return false;
+            LongPoll poll = (LongPoll) o;
+            return maxWaitMillis == poll.maxWaitMillis && Arrays.equals(fastcode, poll.fastcode);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Objects.hash(maxWaitMillis);
+            result = 31 * result + Arrays.hashCode(fastcode);
+            return result;
+        }
+    }
+
+    public static class BatchReq implements Packet {
+        public byte[][] fastcodes;
+
+        public static final PacketCodec<BatchReq> CODEC = new PacketCodec<BatchReq>() {
+            @Override
+            public BatchReq decode(int payloadlen, ByteBuf buf) {
+                return req(readFastcodes(buf, false));
+            }
+
+            @Override
+            public void write(BatchReq msg, ByteBuf buf) {
+                writeFastcodes(buf, msg.fastcodes, false);
+            }
+
+            @Override
+            public int encodedSize(BatchReq msg) {
+                return fastcodesSize(msg.fastcodes, false);
+            }
+
+            @Override
+            public BatchReq decodeV2(int payloadlen, ByteBuf buf) {
+                return req(readFastcodes(buf, true));
+            }
+
+            @Override
+            public void writeV2(BatchReq msg, ByteBuf buf) {
+                writeFastcodes(buf, msg.fastcodes, true);
+            }
+
+            @Override
+            public int encodedSizeV2(BatchReq msg) {
+                return fastcodesSize(msg.fastcodes, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof BatchReq;
+            }
+        };
+
+        public static BatchReq req(byte[][] fastcodes) {
+            BatchReq req = new BatchReq();
+            req.fastcodes = fastcodes;
+            return req;
+        }
+
+        /**
+         * Splits {@code fastcodes} into as few requests as the frame size allows
+         */
+        public static List<BatchReq> batches(Collection<byte[]> fastcodes) {
+            List<BatchReq> rsp = new ArrayList<>();
+            for (byte[][] batch : partition(fastcodes)) {
+                rsp.add(req(batch));
+            }
+            return rsp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BatchReq)) return false;
+            BatchReq req = (BatchReq) o;
+            return Arrays.deepEquals(fastcodes, req.fastcodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(fastcodes);
+        }
+    }
+
+    public static class BatchRsp implements Packet {
+        public Rsp[] entries;
+
+        public static final PacketCodec<BatchRsp> CODEC = new PacketCodec<BatchRsp>() {
+            @Override
+            public BatchRsp decode(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, false);
+            }
+
+            @Override
+            public void write(BatchRsp msg, ByteBuf buf) {
+                writePayload(msg, buf, false);
+            }
+
+            @Override
+            public int encodedSize(BatchRsp msg) {
+                return payloadSize(msg, false);
+            }
+
+            @Override
+            public BatchRsp decodeV2(int payloadlen, ByteBuf buf) {
+                return readPayload(buf, true);
+            }
+
+            @Override
+            public void writeV2(BatchRsp msg, ByteBuf buf) {
+                writePayload(msg, buf, true);
+            }
+
+            @Override
+            public int encodedSizeV2(BatchRsp msg) {
+                return payloadSize(msg, true);
+            }
+
+            @Override
+            public boolean isInstance(Object msg) {
+                return msg instanceof BatchRsp;
+            }
+        };
+
+        private static BatchRsp readPayload(ByteBuf buf, boolean v2) {
+            BatchRsp rsp = new BatchRsp();
+            int count = readCount(buf, v2 ? 2 : 3, v2);
+            rsp.entries = new Rsp[count];
+            for (int i = 0; i < count; i++) {
+                Rsp entry = new Rsp();
+                if (buf.readBoolean()) {
+                    entry.ticket = new byte[VarInt.readLength(buf, v2)];
+                    buf.readBytes(entry.ticket);
+                }
+                entry.fastcode = new byte[VarInt.readLength(buf, v2)];
+                buf.readBytes(entry.fastcode);
+                rsp.entries[i] = entry;
+            }
+            return rsp;
+        }
+
+        private static void writePayload(BatchRsp msg, ByteBuf buf, boolean v2) {
+            VarInt.writeLength(buf, msg.entries.length, v2);
+            for (Rsp entry : msg.entries) {
+                if (entry.ticket == null) {
+                    buf.writeBoolean(false);
+                } else {
+                    buf.writeBoolean(true);
+                    VarInt.writeLength(buf, entry.ticket.length, v2);
+                    buf.writeBytes(entry.ticket);
+                }
+                VarInt.writeLength(buf, entry.fastcode.length, v2);
+                buf.writeBytes(entry.fastcode);
+            }
+        }
+
+        private static int payloadSize(BatchRsp msg, boolean v2) {
+            int size = VarInt.lengthSize(msg.entries.length, v2);
+            for (Rsp entry : msg.entries) {
+                size += entrySize(entry, v2);
+            }
+            return size;
+        }
+
+        /**
+         * Encoded size of {@code entry} in the v1 layout, which is never smaller than in v2
+         */
+        public static int entrySize(Rsp entry) {
+            return entrySize(entry, false);
+        }
+
+        private static int entrySize(Rsp entry, boolean v2) {
+            return 1 + (entry.ticket == null ? 0 : VarInt.lengthSize(entry.ticket.length, v2) + entry.ticket.length)
+                    + VarInt.lengthSize(entry.fastcode.length, v2) + entry.fastcode.length;
+        }
+
+        public static BatchRsp rsp(Rsp[] entries) {
+            BatchRsp rsp = new BatchRsp();
+            rsp.entries = entries;
+            return rsp;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BatchRsp)) return false;
+            BatchRsp rsp = (BatchRsp) o;
+            return Arrays.equals(entries, rsp.entries);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(entries);
+        }
+    }
+
+    /**
+     * Max payload of one batch frame
+     */
+    public static final int MAX_BATCH_PAYLOAD = 0xFFFF;
+
+    static int readCount(ByteBuf buf, int minEntrySize, boolean v2) {
+        int count = VarInt.readLength(buf, v2);
+        if (count > buf.readableBytes() / minEntrySize) {
+            throw new CorruptedFrameException("Batch of " + count + " entries in " + buf.readableBytes() + " bytes");
+        }
+        return count;
+    }
+
+    static byte[][] readFastcodes(ByteBuf buf, boolean v2) {
+        int count = readCount(buf, v2 ? 1 : 2, v2);
+        byte[][] fastcodes = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            fastcodes[i] = new byte[VarInt.readLength(buf, v2)];
+            buf.readBytes(fastcodes[i]);
+        }
+        return fastcodes;
+    }
+
+    static void writeFastcodes(ByteBuf buf, byte[][] fastcodes, boolean v2) {
+        VarInt.writeLength(buf, fastcodes.length, v2);
+        for (byte[] fastcode : fastcodes) {
+            VarInt.writeLength(buf, fastcode.length, v2);
+            buf.writeBytes(fastcode);
+        }
+    }
+
+    static int fastcodesSize(byte[][] fastcodes, boolean v2) {
+        int size = VarInt.lengthSize(fastcodes.length, v2);
+        for (byte[] fastcode : fastcodes) {
+            size += VarInt.lengthSize(fastcode.length, v2) + fastcode.length;
+        }
+        return size;
+    }
+
+    static List<byte[][]> partition(Collection<byte[]> fastcodes) {
+        List<byte[][]> rsp = new ArrayList<>();
+        List<byte[]> batch = new ArrayList<>();
+        int size = 2;
+        for (byte[] fastcode : fastcodes) {
+            if (size + 2 + fastcode.length > MAX_BATCH_PAYLOAD || batch.size() == 0xFFFF) {
+                rsp.add(batch.toArray(new byte[0][]));
+                batch.clear();
+                size = 2;
+            }
+            batch.add(fastcode);
+            size += 2 + fastcode.length;
+        }
+        if (!batch.isEmpty()) {
+            rsp.add(batch.toArray(new byte[0][]));
+        }
+        return rsp;
+    }
 }
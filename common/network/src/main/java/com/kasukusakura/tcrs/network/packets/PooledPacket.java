@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network.packets;
+
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.Recycler;
+
+import java.util.function.Function;
+
+/**
+ * Reference count of a packet taken from a {@link Recycler}, releasing the last reference recycles the packet.
+ * Pooled packets implement {@link io.netty.util.ReferenceCounted} by delegating to it.
+ */
+final class PooledPacket<T> extends AbstractReferenceCounted {
+    private final T packet;
+    private final Recycler.Handle<T> handle;
+
+    PooledPacket(T packet, Recycler.Handle<T> handle) {
+        this.packet = packet;
+        this.handle = handle;
+    }
+
+    static <T> Recycler<T> recycler(Function<Recycler.Handle<T>, T> factory) {
+        return new Recycler<T>() {
+            @Override
+            protected T newObject(Handle<T> handle) {
+                return factory.apply(handle);
+            }
+        };
+    }
+
+    /**
+     * @return a packet from {@code recycler} holding one reference
+     */
+    static <T extends PooledReferenceCounted<T>> T take(Recycler<T> recycler) {
+        T packet = recycler.get();
+        packet.pooledRef().setRefCnt(1);
+        return packet;
+    }
+
+    @Override
+    protected void deallocate() {
+        handle.recycle(packet);
+    }
+
+    @Override
+    public PooledPacket<T> touch(Object hint) {
+        return this;
+    }
+
+    /**
+     * @return {@code reuse} if it has {@code length} bytes, a new array otherwise
+     */
+    static byte[] array(byte[] reuse, int length) {
+        return reuse != null && reuse.length == length ? reuse : new byte[length];
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.network.packets;
+
+import io.netty.util.ReferenceCounted;
+
+/**
+ * {@link ReferenceCounted} of pooled packets, delegating to their {@link PooledPacket}
+ */
+interface PooledReferenceCounted<T extends PooledReferenceCounted<T>> extends ReferenceCounted {
+    PooledPacket<T> pooledRef();
+
+    @SuppressWarnings("unchecked")
+    default T self() {
+        return (T) this;
+    }
+
+    @Override
+    default int refCnt() {
+        return pooledRef().refCnt();
+    }
+
+    @Override
+    default T retain() {
+        pooledRef().retain();
+        return self();
+    }
+
+    @Override
+    default T retain(int increment) {
+        pooledRef().retain(increment);
+        return self();
+    }
+
+    @Override
+    default T touch() {
+        return self();
+    }
+
+    @Override
+    default T touch(Object hint) {
+        return self();
+    }
+
+    @Override
+    default boolean release() {
+        return pooledRef().release();
+    }
+
+    @Override
+    default boolean release(int decrement) {
+        return pooledRef().release(decrement);
+    }
+}
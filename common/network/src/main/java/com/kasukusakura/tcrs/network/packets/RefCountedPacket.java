@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.network.packets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+
+/**
+ * Base of packets whose payloads are {@link ByteBuf}s, usually retained slices of the inbound frame.
+ * <p>
+ * Releasing the packet releases its payloads. The encoder releases packets after writing them,
+ * the receiving handler must release decoded ones.
+ */
+public abstract class RefCountedPacket extends AbstractReferenceCounted implements Packet {
+    @Override
+    public RefCountedPacket touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    public RefCountedPacket retain() {
+        super.retain();
+        return this;
+    }
+
+    static void release(ByteBuf buf) {
+        if (buf != null) buf.release();
+    }
+
+    static void write(ByteBuf buf, ByteBuf content) {
+        buf.writeBytes(content, content.readerIndex(), content.readableBytes());
+    }
+}
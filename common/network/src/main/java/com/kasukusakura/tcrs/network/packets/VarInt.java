@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+package com.kasukusakura.tcrs.network.packets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Unsigned LEB128 integers, the length fields of the v2 framing
+ */
+public final class VarInt {
+    private VarInt() {
+    }
+
+    public static int read(ByteBuf buf) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.readByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new CorruptedFrameException("varint too long");
+    }
+
+    public static void write(ByteBuf buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    public static int size(int value) {
+        if ((value & ~0x7F) == 0) return 1;
+        if ((value & ~0x3FFF) == 0) return 2;
+        if ((value & ~0x1FFFFF) == 0) return 3;
+        if ((value & ~0xFFFFFFF) == 0) return 4;
+        return 5;
+    }
+
+    /**
+     * Reads a length field, int16 in v1 and varint in v2
+     */
+    static int readLength(ByteBuf buf, boolean v2) {
+        if (!v2) return buf.readUnsignedShort();
+        int len = read(buf);
+        if (len < 0) {
+            throw new CorruptedFrameException("Negative length: " + len);
+        }
+        return len;
+    }
+
+    static void writeLength(ByteBuf buf, int len, boolean v2) {
+        if (v2) {
+            write(buf, len);
+        } else {
+            buf.writeShort(len);
+        }
+    }
+
+    static int lengthSize(int len, boolean v2) {
+        return v2 ? size(len) : 2;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+import com.kasukusakura.tcrs.client.AutoReconnectClientConnection;
+import com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo;
+import com.kasukusakura.tcrs.server.HashRing;
+import com.kasukusakura.tcrs.server.ServerMain;
+import io.netty.channel.Channel;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a cluster of three server processes on localhost and talks to the sessions of one node through the others
+ */
+public class TestCluster {
+    static final int NODES = 3;
+    static final int CLIENT_PORT = 12451, LINK_PORT = 12461;
+    static final String TOKEN = "test-cluster-token";
+
+    public static void main(String[] args) throws Throwable {
+        ringBalance();
+
+        List<String> links = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            links.add("127.0.0.1:" + (LINK_PORT + i));
+        }
+        List<Process> processes = new ArrayList<>();
+        // Started and linked to the other two nodes
+        CountDownLatch ready = new CountDownLatch(NODES * NODES);
+        try {
+            for (int i = 0; i < NODES; i++) {
+                Process process = new ProcessBuilder(
+                        System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                        "-cp", System.getProperty("java.class.path"),
+                        "-Dtcrs.clusterNodes=" + String.join(",", links),
+                        "-Dtcrs.clusterNode=" + i,
+                        "-Dtcrs.clusterToken=" + TOKEN,
+                        "-Dio.netty.leakDetection.level=" + System.getProperty("io.netty.leakDetection.level", "simple"),
+                        ServerMain.class.getName(), String.valueOf(CLIENT_PORT + i), "127.0.0.1"
+                ).redirectErrorStream(true).start();
+                processes.add(process);
+                String prefix = "NODE" + i + ": ";
+                Thread output = new Thread(() -> {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (line.startsWith("Server started") || line.contains("Cluster link to node")) {
+                                ready.countDown();
+                            }
+                            System.out.println(prefix + line);
+                        }
+                    } catch (Exception ignored) {
+                    }
+                }, "node-" + i + "-output");
+                output.setDaemon(true);
+                output.start();
+            }
+            if (!ready.await(30, TimeUnit.SECONDS)) {
+                throw new AssertionError("Cluster did not start");
+            }
+            forwarding();
+            wrongToken();
+            lostOwner(links, processes.get(2));
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    static void ringBalance() {
+        List<String> nodes = Arrays.asList("10.0.0.1:12461", "10.0.0.2:12461", "10.0.0.3:12461");
+        HashRing ring = new HashRing(nodes, 160);
+        int[] owned = new int[nodes.size()];
+        Random random = new Random(0);
+        byte[] fastcode = new byte[8];
+        for (int i = 0; i < 300_000; i++) {
+            for (int j = 0; j < fastcode.length; j++) {
+                fastcode[j] = (byte) ('0' + random.nextInt(10));
+            }
+            owned[ring.owner(fastcode)]++;
+        }
+        System.out.println("Ring balance: " + Arrays.toString(owned));
+        for (int count : owned) {
+            if (count < 80_000 || count > 120_000) throw new AssertionError("Unbalanced ring: " + Arrays.toString(owned));
+        }
+        // Adding a node only moves the codes it takes over
+        List<String> grown = new ArrayList<>(nodes);
+        grown.add("10.0.0.4:12461");
+        HashRing grownRing = new HashRing(grown, 160);
+        for (int i = 0; i < 10_000; i++) {
+            for (int j = 0; j < fastcode.length; j++) {
+                fastcode[j] = (byte) ('0' + random.nextInt(10));
+            }
+            int owner = grownRing.owner(fastcode);
+            if (owner != 3 && owner != ring.owner(fastcode)) throw new AssertionError("Code moved between remaining nodes");
+        }
+    }
+
+    static class Client extends AutoReconnectClientConnection {
+        final String name;
+        volatile byte[] fastcode;
+        volatile CountDownLatch fastcodeLatch = new CountDownLatch(1);
+        volatile CountDownLatch infoLatch = new CountDownLatch(1);
+        volatile PkgProcessCodeInfo.Response info;
+        final Map<String, String> tickets = new HashMap<>();
+        volatile CountDownLatch ticketLatch = new CountDownLatch(1);
+        volatile int connections;
+
+        Client(String name, int node) {
+            this.name = name;
+            connect(new InetSocketAddress("127.0.0.1", CLIENT_PORT + node));
+        }
+
+        @Override
+        protected void bindConnection(Channel channel) {
+            connections++;
+            super.bindConnection(channel);
+        }
+
+        @Override
+        protected void onFastCodeReceived(byte[] fastcode) {
+            this.fastcode = fastcode;
+            fastcodeLatch.countDown();
+        }
+
+        @Override
+        protected void onReceivedProcessCodeInfo(PkgProcessCodeInfo.Response response) {
+            info = response;
+            infoLatch.countDown();
+        }
+
+        @Override
+        protected void onTickReceived(byte[] ticket, byte[] fastcode) {
+            System.out.println(name + ": ticket of " + new String(fastcode) + ": " + new String(ticket));
+            synchronized (tickets) {
+                tickets.put(new String(fastcode), new String(ticket));
+            }
+            ticketLatch.countDown();
+        }
+
+        byte[] allocate() throws InterruptedException {
+            fastcodeLatch = new CountDownLatch(1);
+            sendNewFastCodeReq();
+            await(fastcodeLatch, "fast process code");
+            System.out.println(name + ": allocated " + new String(fastcode));
+            return fastcode;
+        }
+
+        void await(CountDownLatch latch, String what) throws InterruptedException {
+            if (!latch.await(10, TimeUnit.SECONDS)) throw new AssertionError(name + ": no " + what);
+        }
+    }
+
+    static void forwarding() throws Throwable {
+        Client desktop = new Client("DESKTOP@0", 0);
+        Client resolver = new Client("RESOLVER@1", 1);
+        Client waiter = new Client("WAITER@2", 2);
+        Client other = new Client("DESKTOP@1", 1);
+        try {
+            byte[] code = desktop.allocate();
+            byte[] otherCode = other.allocate();
+
+            // Larger than a frame, chunked on both hops
+            byte[] data = new byte[300 * 1024];
+            new Random(1).nextBytes(data);
+            desktop.sendProcessCodeInfoUpdate(2, data, code);
+            Thread.sleep(500L);
+            resolver.fetchProcessCodeInfo(code);
+            resolver.await(resolver.infoLatch, "captcha data");
+            if (resolver.info.captchaType != 2 || !Arrays.equals(resolver.info.captchaData, data)) {
+                throw new AssertionError("Forwarded captcha data differs");
+            }
+            System.out.println("RESOLVER@1: fetched " + resolver.info.captchaData.length + " bytes of captcha data through node 1");
+
+            waiter.subscribeTicket(code);
+            Thread.sleep(500L);
+            resolver.completeTicket(code, "ClusterTicket".getBytes());
+            waiter.await(waiter.ticketLatch, "pushed ticket");
+
+            other.completeTicket(otherCode, "OtherTicket".getBytes());
+            Thread.sleep(500L);
+            // Split between the owners of both codes, the unknown one is answered by its owner
+            waiter.ticketLatch = new CountDownLatch(2);
+            waiter.sendTicketQueryRequests(Arrays.asList(code, otherCode, "00000000".getBytes()));
+            waiter.await(waiter.ticketLatch, "batch answers");
+            synchronized (waiter.tickets) {
+                if (!"ClusterTicket".equals(waiter.tickets.get(new String(code))) || !"OtherTicket".equals(waiter.tickets.get(new String(otherCode)))) {
+                    throw new AssertionError("Wrong tickets: " + waiter.tickets);
+                }
+            }
+            System.out.println("Cluster forwarding OK");
+        } finally {
+            desktop.disconnect();
+            resolver.disconnect();
+            waiter.disconnect();
+            other.disconnect();
+        }
+    }
+
+    /**
+     * A link authenticating with another token is closed before it can open streams
+     */
+    static void wrongToken() throws Throwable {
+        try (Socket socket = new Socket("127.0.0.1", LINK_PORT)) {
+            socket.setSoTimeout(10_000);
+            byte[] token = "not-the-token".getBytes(StandardCharsets.UTF_8);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            // int32 length, int32 stream, int8 type 2, token
+            out.writeInt(5 + token.length);
+            out.writeInt(0);
+            out.writeByte(2);
+            out.write(token);
+            out.flush();
+            try {
+                if (socket.getInputStream().read() != -1) throw new AssertionError("Answered a link with a wrong token");
+            } catch (SocketTimeoutException e) {
+                throw new AssertionError("Link with a wrong token stayed open");
+            }
+        }
+        System.out.println("Wrong cluster token rejected");
+    }
+
+    /**
+     * Stops the last node, a client forwarding to it is disconnected instead of waiting for answers that are lost
+     */
+    static void lostOwner(List<String> links, Process owner) throws Throwable {
+        owner.destroy();
+        if (!owner.waitFor(10, TimeUnit.SECONDS)) throw new AssertionError("Node did not stop");
+        HashRing ring = new HashRing(links, 160);
+        byte[] code;
+        for (int i = 10_000_000; ; i++) {
+            code = String.valueOf(i).getBytes();
+            if (ring.owner(code) == NODES - 1) break;
+        }
+        Client client = new Client("LOST@0", 0);
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (client.connections == 0 && System.currentTimeMillis() < deadline) Thread.sleep(50L);
+            if (client.connections == 0) throw new AssertionError("Client not connected");
+            client.fetchProcessCodeInfo(code);
+            // Well before the probe of the owner times out
+            deadline = System.currentTimeMillis() + 5_000;
+            while (client.connections == 1 && System.currentTimeMillis() < deadline) Thread.sleep(50L);
+            if (client.connections == 1) throw new AssertionError("Client forwarding to a stopped node was not disconnected");
+        } finally {
+            client.disconnect();
+        }
+        System.out.println("Client of a stopped owner disconnected");
+    }
+}
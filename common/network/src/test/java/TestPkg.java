@@ -11,10 +11,12 @@ import com.kasukusakura.tcrs.network.PkgCodec;
 import com.kasukusakura.tcrs.network.packets.*;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.util.ReferenceCountUtil;
 
 import java.util.*;
+import java.util.zip.Deflater;
 
 public class TestPkg {
     public static byte[] random(Random random) {
@@ -25,11 +27,20 @@ public class TestPkg {
 
     private static class TestChannel extends EmbeddedChannel {
 
-        final ByteBuf ootbuf = alloc().ioBuffer();
+        ByteBuf ootbuf = alloc().ioBuffer();
+        int outboundBuffers;
+
+        // Bytes sent so far, later ones (such as answers to an inbound Hello) go to a new buffer
+        ByteBuf takeOutbound() {
+            ByteBuf rsp = ootbuf;
+            ootbuf = alloc().ioBuffer();
+            return rsp;
+        }
 
         @Override
         protected void handleOutboundMessage(Object msg) {
             try {
+                outboundBuffers++;
                 if (msg instanceof ByteBuf) {
                     System.out.println("  `- " + ByteBufUtil.hexDump((ByteBuf) msg));
                     ootbuf.writeBytes((ByteBuf) msg);
@@ -63,6 +74,20 @@ public class TestPkg {
         packets.add(PkgProcessCodeInfo.Response.response(random.nextInt() & 0xFFFF, null, random(random)));
         packets.add(PkgProcessCodeInfo.Query.query(random(random)));
         packets.add(PkgProcessCodeInfo.Refresh.refresh(random(random)));
+        packets.add(PkgQueryProcessCodeStatus.BatchReq.req(new byte[][]{random(random), random(random)}));
+        packets.add(PkgQueryProcessCodeStatus.BatchRsp.rsp(new PkgQueryProcessCodeStatus.Rsp[]{
+                PkgQueryProcessCodeStatus.Rsp.rsp(random(random), random(random)),
+                PkgQueryProcessCodeStatus.Rsp.rsp(random(random), null),
+        }));
+        packets.add(PkgProcessCodeInfo.BatchRefresh.refresh(new byte[][]{random(random)}));
+        packets.add(PkgQueryProcessCodeStatus.Subscribe.subscribe(random(random)));
+        packets.add(PkgQueryProcessCodeStatus.LongPoll.poll(random(random), random.nextInt()));
+        packets.add(PkgKeepAlive.Hello.hello(random.nextInt()));
+        packets.add(PkgProcessCodeInfo.ConditionalUpdate.update(random.nextInt() & 0xFFFF, random(random), random(random)));
+        packets.add(PkgProcessCodeInfo.UpdateRequired.required(random(random)));
+        packets.add(PkgProcessCodeInfo.UpdateRejected.rejected(random(random)));
+        packets.add(PkgProcessCodeInfo.VersionedQuery.query(random(random), random.nextInt()));
+        packets.add(PkgProcessCodeInfo.Version.version(random.nextInt(), random.nextBoolean(), random(random)));
 
         PkgCodec codec = new PkgCodec();
         TestChannel testChannel = new TestChannel();
@@ -79,9 +104,315 @@ public class TestPkg {
         System.out.println(testChannel.ootbuf);
         System.out.println(ByteBufUtil.hexDump(testChannel.ootbuf));
 
-        testChannel.writeOneInbound(testChannel.ootbuf);
+        ByteBuf encoded = testChannel.ootbuf.copy();
+        int v1Size = encoded.readableBytes();
+        testChannel.writeOneInbound(testChannel.takeOutbound());
+        assertDecoded(packets, testChannel.inboundMessages());
+
+        System.out.println("==========================");
+        System.out.println("Fragmented read");
+
+        TestChannel fragmentedChannel = new TestChannel();
+        fragmentedChannel.pipeline().addLast(codec.getDecoder()).addLast(codec.getEncoder());
+        while (encoded.isReadable()) {
+            int len = Math.min(encoded.readableBytes(), 1 + random.nextInt(7));
+            fragmentedChannel.writeOneInbound(encoded.readRetainedSlice(len));
+        }
+        encoded.release();
+        fragmentedChannel.checkException();
+        assertDecoded(packets, fragmentedChannel.inboundMessages());
+
+        System.out.println("==========================");
+        System.out.println("Aggregated writes");
+
+        PkgCodec aggregatingCodec = new PkgCodec().setAggregateWrites(PkgCodec.DEFAULT_AGGREGATE_BYTES);
+        TestChannel aggregatingChannel = new TestChannel();
+        aggregatingChannel.pipeline().addLast(aggregatingCodec.getDecoder()).addLast(aggregatingCodec.getEncoder());
+        for (Packet pkg : packets) {
+            aggregatingChannel.write(pkg);
+        }
+        aggregatingChannel.flush();
+        aggregatingChannel.checkException();
+        if (aggregatingChannel.outboundBuffers != 1) {
+            throw new RuntimeException("Expected one aggregated buffer but got " + aggregatingChannel.outboundBuffers);
+        }
+        aggregatingChannel.writeOneInbound(aggregatingChannel.takeOutbound());
+        assertDecoded(packets, aggregatingChannel.inboundMessages());
+
+        System.out.println("==========================");
+        System.out.println("Retained payloads");
+
+        List<Packet> bufPackets = new ArrayList<>();
+        bufPackets.add(PkgNewProcessCode.CompleteBuf.complete(Unpooled.wrappedBuffer(random(random)), Unpooled.wrappedBuffer(random(random))));
+        bufPackets.add(PkgQueryProcessCodeStatus.RspBuf.rsp(Unpooled.wrappedBuffer(random(random)), Unpooled.wrappedBuffer(random(random))));
+        bufPackets.add(PkgQueryProcessCodeStatus.RspBuf.rsp(Unpooled.wrappedBuffer(random(random)), null));
+        bufPackets.add(PkgProcessCodeInfo.UpdateBuf.update(random.nextInt() & 0xFFFF, Unpooled.wrappedBuffer(random(random)), Unpooled.wrappedBuffer(random(random))));
+        bufPackets.add(PkgProcessCodeInfo.ResponseBuf.response(random.nextInt() & 0xFFFF, Unpooled.wrappedBuffer(random(random)), Unpooled.wrappedBuffer(random(random))));
+        bufPackets.add(PkgProcessCodeInfo.ResponseBuf.response(random.nextInt() & 0xFFFF, null, Unpooled.wrappedBuffer(random(random))));
+
+        PkgCodec retainedCodec = new PkgCodec().setRetainedPayloads(true);
+        TestChannel retainedChannel = new TestChannel();
+        retainedChannel.pipeline().addLast(retainedCodec.getDecoder()).addLast(retainedCodec.getEncoder());
+        for (Packet pkg : bufPackets) {
+            // The encoder releases what it writes, keep the originals for comparing
+            retainedChannel.writeAndFlush(ReferenceCountUtil.retain(pkg));
+        }
+        retainedChannel.checkException();
+        retainedChannel.writeOneInbound(retainedChannel.takeOutbound());
+        assertDecoded(bufPackets, retainedChannel.inboundMessages());
+        for (Object msg : retainedChannel.inboundMessages()) {
+            if (!ReferenceCountUtil.release(msg)) throw new RuntimeException("Leaked " + msg);
+        }
+        bufPackets.forEach(ReferenceCountUtil::release);
+
+        System.out.println("==========================");
+        System.out.println("Direct captcha data");
+
+        byte[] largeData = new byte[PkgCodec.DIRECT_PAYLOAD_BYTES * 2];
+        random.nextBytes(largeData);
+        PkgCodec directCodec = new PkgCodec().setRetainedPayloads(true).setAggregateWrites(PkgCodec.DEFAULT_AGGREGATE_BYTES);
+        TestChannel directChannel = new TestChannel();
+        directChannel.pipeline().addLast(directCodec.getDecoder()).addLast(directCodec.getEncoder());
+        List<Packet> directPackets = new ArrayList<>();
+        directPackets.add(PkgKeepAlive.INSTANCE);
+        ByteBuf directData = Unpooled.directBuffer(largeData.length).writeBytes(largeData);
+        directPackets.add(PkgProcessCodeInfo.ResponseBuf.response(7, directData, Unpooled.wrappedBuffer(random(random))));
+        directPackets.add(PkgKeepAlive.INSTANCE);
+        for (Packet pkg : directPackets) {
+            directChannel.write(ReferenceCountUtil.retain(pkg));
+        }
+        directChannel.flush();
+        directChannel.checkException();
+        if (directData.refCnt() != 1) throw new RuntimeException("Captcha data not released by the encoder: " + directData.refCnt());
+        // Keep alive, wrapped response, keep alive
+        if (directChannel.outboundBuffers != 3) throw new RuntimeException("Expected 3 buffers but got " + directChannel.outboundBuffers);
+        directChannel.writeOneInbound(directChannel.takeOutbound());
+        assertDecoded(directPackets, directChannel.inboundMessages());
+        for (Object msg : directChannel.inboundMessages()) {
+            ReferenceCountUtil.release(msg);
+        }
+        directPackets.forEach(ReferenceCountUtil::release);
+
+        System.out.println("==========================");
+        System.out.println("Pooled packets");
+
+        byte[] pooledFastcode = random(random);
+        List<Packet> pollPackets = new ArrayList<>();
+        pollPackets.add(PkgQueryProcessCodeStatus.Req.req(pooledFastcode));
+        pollPackets.add(PkgQueryProcessCodeStatus.Rsp.rsp(pooledFastcode, random(random)));
+        pollPackets.add(PkgQueryProcessCodeStatus.Rsp.rsp(pooledFastcode, null));
+        pollPackets.add(PkgProcessCodeInfo.Refresh.refresh(pooledFastcode));
+        pollPackets.add(PkgProcessCodeInfo.Query.query(pooledFastcode));
+        pollPackets.add(PkgProcessCodeInfo.VersionedQuery.query(pooledFastcode, random.nextInt()));
+
+        PkgCodec pooledCodec = new PkgCodec().setPooledPackets(true);
+        TestChannel pooledChannel = new TestChannel();
+        pooledChannel.pipeline().addLast(pooledCodec.getDecoder()).addLast(pooledCodec.getEncoder());
+        for (int round = 0; round < 2; round++) {
+            for (Packet pkg : pollPackets) {
+                pooledChannel.writeAndFlush(pkg);
+            }
+            pooledChannel.checkException();
+            pooledChannel.writeOneInbound(pooledChannel.takeOutbound());
+            assertDecoded(pollPackets, pooledChannel.inboundMessages());
+            Object req = pooledChannel.inboundMessages().peek();
+            byte[] reqFastcode = ((PkgQueryProcessCodeStatus.Req) req).fastcode;
+            Object msg;
+            while ((msg = pooledChannel.readInbound()) != null) {
+                if (!ReferenceCountUtil.release(msg)) throw new RuntimeException("Not recycled " + msg);
+            }
+            // The same thread gets the recycled instance back, with its array
+            pooledChannel.writeAndFlush(pollPackets.get(0));
+            pooledChannel.writeOneInbound(pooledChannel.takeOutbound());
+            PkgQueryProcessCodeStatus.Req reused = pooledChannel.readInbound();
+            if (reused != req || reused.fastcode != reqFastcode) throw new RuntimeException("Not reused: " + reused);
+            ReferenceCountUtil.release(reused);
+        }
+
+        System.out.println("==========================");
+        System.out.println("Compressed captcha data");
+
+        StringBuilder url = new StringBuilder("https://captcha.example/slider?aid=2033864629&protocol=https&accver=1&showtype=popup");
+        while (url.length() < 1024) url.append("&sess=").append(url.length());
+        byte[] captchaData = url.toString().getBytes();
+        byte[] incompressible = new byte[1024];
+        random.nextBytes(incompressible);
+
+        List<Packet> largePackets = new ArrayList<>();
+        largePackets.add(PkgProcessCodeInfo.Update.update(1, captchaData, random(random)));
+        largePackets.add(PkgProcessCodeInfo.Response.response(1, captchaData, random(random)));
+        largePackets.add(PkgProcessCodeInfo.Response.response(1, incompressible, random(random)));
+        largePackets.add(PkgProcessCodeInfo.Response.response(1, random(random), random(random)));
+
+        PkgCodec compressingCodec = new PkgCodec().setCompressionThreshold(PkgCodec.DEFAULT_COMPRESSION_THRESHOLD);
+        TestChannel compressingChannel = new TestChannel();
+        compressingChannel.pipeline().addLast(compressingCodec.getDecoder()).addLast(compressingCodec.getEncoder());
+        compressingChannel.writeOneInbound(compressingChannel.alloc().buffer().writeShort(0).writeShort(4).writeInt(compressingCodec.getCapabilities()));
+        if (PkgCodec.getPeerCapabilities(compressingChannel) != PkgKeepAlive.Hello.CAP_DEFLATE) {
+            throw new RuntimeException("Hello not recorded");
+        }
+        compressingChannel.inboundMessages().clear();
+        // Drop the answer to the Hello
+        compressingChannel.takeOutbound().release();
+        for (Packet pkg : largePackets) {
+            compressingChannel.writeAndFlush(pkg);
+        }
+        compressingChannel.checkException();
+        // Frame header, captcha type and length, captcha data, fastcode
+        int plainSize = 2 * (8 + captchaData.length + 8) + (8 + incompressible.length + 8) + (8 + 8 + 8);
+        System.out.println("Plain: " + plainSize + " bytes, sent: " + compressingChannel.ootbuf.readableBytes() + " bytes");
+        if (compressingChannel.ootbuf.readableBytes() >= plainSize - captchaData.length) {
+            throw new RuntimeException("Captcha data was not compressed");
+        }
+        compressingChannel.writeOneInbound(compressingChannel.takeOutbound());
+        assertDecoded(largePackets, compressingChannel.inboundMessages());
+        compressingChannel.inboundMessages().clear();
+
+        // Stored captcha data is sent from where it is, not copied and deflated for every answer
+        ByteBuf stored = Unpooled.directBuffer(captchaData.length).writeBytes(captchaData);
+        compressingChannel.writeAndFlush(PkgProcessCodeInfo.ResponseBuf.response(1, stored, Unpooled.wrappedBuffer(random(random))));
+        compressingChannel.checkException();
+        if (compressingChannel.ootbuf.readableBytes() < captchaData.length) throw new RuntimeException("Stored captcha data was deflated");
+        compressingChannel.writeOneInbound(compressingChannel.takeOutbound());
+        PkgProcessCodeInfo.Response storedResponse = compressingChannel.readInbound();
+        if (!Arrays.equals(storedResponse.captchaData, captchaData)) throw new RuntimeException("Stored captcha data differs");
+
+        // Streams ending before the announced length or followed by junk fail the frame instead of spinning
+        rejectDeflated(compressingCodec, deflate(Arrays.copyOf(captchaData, 100)), captchaData.length, new byte[]{1, 2, 3});
+        rejectDeflated(compressingCodec, deflate(captchaData), captchaData.length, new byte[]{1, 2, 3});
+
+        System.out.println("==========================");
+        System.out.println("Chunked transfers");
+
+        byte[] image = new byte[200 * 1024];
+        random.nextBytes(image);
+        Packet largeUpdate = PkgProcessCodeInfo.Update.update(2, image, random(random));
+        Packet largeResponse = PkgProcessCodeInfo.Response.response(2, Arrays.copyOf(image, 100 * 1024), random(random));
+        Packet query = PkgProcessCodeInfo.Query.query(random(random));
+        Packet refresh = PkgProcessCodeInfo.Refresh.refresh(random(random));
+
+        PkgCodec chunkingCodec = new PkgCodec().setChunkedTransfers(PkgCodec.DEFAULT_MAX_TRANSFER_BYTES);
+        TestChannel chunkingChannel = new TestChannel();
+        chunkingChannel.pipeline().addLast(chunkingCodec.getDecoder()).addLast(chunkingCodec.getEncoder());
+
+        if (chunkingChannel.writeAndFlush(largeUpdate).isSuccess()) {
+            throw new RuntimeException("Sent chunked transfer to a peer not accepting it");
+        }
+        chunkingChannel.attr(PkgCodec.PEER_CAPABILITIES).set(chunkingCodec.getCapabilities());
+
+        chunkingChannel.write(largeUpdate);
+        chunkingChannel.write(query);
+        chunkingChannel.write(largeResponse);
+        chunkingChannel.write(refresh);
+        // Remaining chunks follow as the channel becomes writable again
+        int written;
+        do {
+            written = chunkingChannel.outboundBuffers;
+            chunkingChannel.flush();
+            chunkingChannel.runPendingTasks();
+        } while (written != chunkingChannel.outboundBuffers);
+        chunkingChannel.checkException();
+        System.out.println("Sent " + chunkingChannel.outboundBuffers + " buffers, " + chunkingChannel.ootbuf.readableBytes() + " bytes");
+
+        chunkingChannel.writeOneInbound(chunkingChannel.takeOutbound());
+        // Small packets overtake the transfers, the shorter transfer completes first
+        assertDecoded(Arrays.asList(query, refresh, largeResponse, largeUpdate), chunkingChannel.inboundMessages());
+
+        System.out.println("==========================");
+        System.out.println("V2 framing");
+
+        PkgCodec v2Codec = new PkgCodec()
+                .setCompressionThreshold(PkgCodec.DEFAULT_COMPRESSION_THRESHOLD)
+                .setChunkedTransfers(PkgCodec.DEFAULT_MAX_TRANSFER_BYTES)
+                .setFramingV2(true);
+        int v2Caps = v2Codec.getCapabilities();
+        TestChannel client = new TestChannel();
+        client.pipeline().addLast(v2Codec.getDecoder()).addLast(v2Codec.getEncoder());
+        TestChannel server = new TestChannel();
+        server.pipeline().addLast(v2Codec.getDecoder()).addLast(v2Codec.getEncoder());
+
+        client.writeAndFlush(PkgKeepAlive.Hello.hello(v2Caps));
+        exchange(client, server);
+        assertDecoded(Collections.singletonList(PkgKeepAlive.Hello.reply(v2Caps, true)), client.inboundMessages());
+        assertDecoded(Arrays.asList(PkgKeepAlive.Hello.hello(v2Caps), PkgKeepAlive.Hello.reply(v2Caps, true)), server.inboundMessages());
+        client.inboundMessages().clear();
+        server.inboundMessages().clear();
+
+        // Another Hello would replace the capabilities the handshake recorded
+        List<Packet> v2Packets = new ArrayList<>(packets);
+        v2Packets.removeIf(pkg -> pkg instanceof PkgKeepAlive.Hello);
+        for (Packet pkg : v2Packets) {
+            client.write(pkg);
+        }
+        client.flush();
+        int v2Size = client.ootbuf.readableBytes();
+        System.out.println("v1: " + v1Size + " bytes, v2: " + v2Size + " bytes");
+        if (v2Size >= v1Size) {
+            throw new RuntimeException("v2 framing is not smaller");
+        }
+        exchange(client, server);
+        assertDecoded(v2Packets, server.inboundMessages());
+        server.inboundMessages().clear();
+
+        // Answers in the other direction, compressed and chunked
+        List<Packet> v2Large = new ArrayList<>(largePackets);
+        v2Large.add(largeResponse);
+        for (Packet pkg : v2Large) {
+            server.write(pkg);
+        }
+        exchange(client, server);
+        assertDecoded(v2Large, client.inboundMessages());
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[data.length + 64];
+        int len = deflater.deflate(buf);
+        deflater.end();
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * Sends a v1 ProcessCodeInfoQueryResponseDeflated of {@code deflated} and {@code junk}, announcing {@code rawLength}
+     */
+    private static void rejectDeflated(PkgCodec codec, byte[] deflated, int rawLength, byte[] junk) {
+        TestChannel channel = new TestChannel();
+        channel.pipeline().addLast(codec.getDecoder()).addLast(codec.getEncoder());
+        byte[] fastcode = "12345678".getBytes();
+        int payloadlen = 6 + deflated.length + junk.length + fastcode.length;
+        Throwable cause = channel.writeOneInbound(channel.alloc().buffer()
+                .writeShort(16).writeShort(payloadlen)
+                .writeShort(1).writeShort(rawLength).writeShort(deflated.length + junk.length)
+                .writeBytes(deflated).writeBytes(junk).writeBytes(fastcode)).cause();
+        if (cause == null || cause.getCause() == null || !cause.getCause().getMessage().startsWith("Deflated data")) {
+            throw new RuntimeException("Accepted deflated data not matching its length", cause);
+        }
+        System.out.println("Rejected: " + cause.getCause().getMessage());
+        if (!channel.inboundMessages().isEmpty()) throw new RuntimeException("Decoded " + channel.inboundMessages());
+        channel.finishAndReleaseAll();
+        channel.ootbuf.release();
+    }
+
+    /**
+     * Moves the bytes written by each channel to the other one until both are quiet
+     */
+    private static void exchange(TestChannel a, TestChannel b) {
+        while (true) {
+            a.flush();
+            b.flush();
+            a.runPendingTasks();
+            b.runPendingTasks();
+            a.checkException();
+            b.checkException();
+            if (!a.ootbuf.isReadable() && !b.ootbuf.isReadable()) return;
+            b.writeOneInbound(a.takeOutbound());
+            a.writeOneInbound(b.takeOutbound());
+        }
+    }
 
-        Queue<Object> inboundMessages = testChannel.inboundMessages();
+    private static void assertDecoded(List<Packet> packets, Queue<Object> inboundMessages) {
         {
             Iterator<?> parsed = inboundMessages.iterator(), source = packets.iterator();
             while (parsed.hasNext() && source.hasNext()) {
@@ -0,0 +1,630 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+import com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo;
+import com.kasukusakura.tcrs.server.ConcurrentMapSessionStore;
+import com.kasukusakura.tcrs.server.JournaledSessionStore;
+import com.kasukusakura.tcrs.server.SessionStore;
+import com.kasukusakura.tcrs.server.SlabAllocator;
+import com.kasukusakura.tcrs.server.SessionStoreFullException;
+import com.kasukusakura.tcrs.server.SlabSessionStore;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Conformance kit of {@link SessionStore}, every implementation must pass {@link #check(String, Supplier)}
+ */
+public class TestSessionStore {
+    public static void main(String[] args) throws Exception {
+        check("ConcurrentMapSessionStore", ConcurrentMapSessionStore::new);
+        check("SlabSessionStore", () -> new SlabSessionStore(64 * 1024 * 1024));
+        List<Path> journalDirs = new ArrayList<>();
+        try {
+            check("JournaledSessionStore", () -> journaled(new ConcurrentMapSessionStore(), tempDir(journalDirs), 64 * 1024, 128 * 1024));
+            slabBudget();
+            journalRecovery(tempDir(journalDirs));
+            journalConcurrentRecovery(tempDir(journalDirs));
+            journalCloseAfterFailure(tempDir(journalDirs));
+            journalSnapshotUnderLoad(tempDir(journalDirs));
+            journalReplayMillion(tempDir(journalDirs));
+        } finally {
+            for (Path dir : journalDirs) {
+                delete(dir);
+            }
+        }
+    }
+
+    public static void check(String name, Supplier<SessionStore> factory) throws Exception {
+        System.out.println("==========================");
+        System.out.println("SessionStore conformance: " + name);
+        try (SessionStore store = factory.get()) {
+            allocateAndLookup(store);
+        }
+        try (SessionStore store = factory.get()) {
+            updateVersions(store);
+        }
+        try (SessionStore store = factory.get()) {
+            refreshAndExpire(store);
+        }
+        try (SessionStore store = factory.get()) {
+            complete(store);
+        }
+        try (SessionStore store = factory.get()) {
+            iterate(store);
+        }
+        closeReleasesData(factory.get());
+        try (SessionStore store = factory.get()) {
+            concurrent(store);
+        }
+        try (SessionStore store = factory.get()) {
+            refreshRacingExpire(store);
+        }
+        System.out.println("Passed");
+    }
+
+    private static byte[] code(String code) {
+        return code.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    private static void allocateAndLookup(SessionStore store) {
+        byte[] fastcode = code("10000001");
+        check(store.lookup(fastcode, false) == null, "Lookup before allocate");
+        check(store.allocate(fastcode, 1000), "Allocate");
+        check(!store.allocate(code("10000001"), 2000), "Allocated a taken code");
+        check(store.size() == 1, "Size " + store.size());
+
+        // Callers may reuse their arrays
+        fastcode[0] = '2';
+        check(store.lookup(fastcode, false) == null, "Kept the array of the caller");
+        SessionStore.Session session = store.lookup(code("10000001"), true);
+        check(session != null, "Lookup after allocate");
+        check(!session.completed && session.ticket == null && store.ticket(code("10000001")) == null, "Ticket of a new session");
+        check(session.captchaData == null && !session.hasCaptchaData() && session.infoVersion == 0, "Captcha data of a new session");
+        check(session.lastUpdate == 1000, "Last update " + session.lastUpdate);
+    }
+
+    private static void updateVersions(SessionStore store) {
+        byte[] fastcode = code("10000002");
+        ByteBuf data = Unpooled.copiedBuffer("https://captcha.example/1", StandardCharsets.UTF_8);
+        check(!store.update(fastcode, 1, data, 1000), "Updated an unknown session");
+        check(data.refCnt() == 1 && data.readableBytes() == 25, "Unknown session update touched the data");
+        store.allocate(fastcode, 1000);
+
+        check(store.update(fastcode, 1, data, 2000), "Update");
+        check(data.refCnt() == 1 && data.readableBytes() == 25, "Update kept or consumed the data of the caller");
+        SessionStore.Session session = store.lookup(fastcode, false);
+        check(session.captchaData == null, "Data without asking for it");
+        check(session.hasCaptchaData() && session.captchaType == 1, "Captcha data after update");
+        check(session.captchaHash == PkgProcessCodeInfo.ConditionalUpdate.hash(data), "Captcha hash");
+        check(session.lastUpdate == 2000, "Update did not refresh");
+        int version = session.infoVersion;
+
+        // Changes of the caller's buffer after the call are not seen
+        ByteBuf reused = data.copy();
+        store.update(fastcode, 1, reused, 2000);
+        reused.setByte(0, 'X');
+        session = store.lookup(fastcode, true);
+        check(ByteBufUtil.equals(session.captchaData, data), "Captcha data " + session.captchaData.toString(StandardCharsets.UTF_8));
+        check(session.infoVersion == version, "Same data changed the version");
+        session.captchaData.release();
+        reused.release();
+
+        Set<Integer> versions = new HashSet<>();
+        versions.add(version);
+        store.update(fastcode, 2, data, 3000);
+        check(versions.add(store.lookup(fastcode, false).infoVersion), "Other type kept the version");
+        ByteBuf other = Unpooled.copiedBuffer("https://captcha.example/2", StandardCharsets.UTF_8);
+        store.update(fastcode, 2, other, 3000);
+        check(versions.add(store.lookup(fastcode, false).infoVersion), "Other data kept the version");
+        store.update(fastcode, 2, null, 3000);
+        session = store.lookup(fastcode, true);
+        check(session.infoVersion == 0 && !session.hasCaptchaData() && session.captchaData == null, "Data after clearing it");
+        store.update(fastcode, 1, data, 3000);
+        check(versions.add(store.lookup(fastcode, false).infoVersion), "Version reused after clearing the data");
+
+        // Versions are not reused by the sessions replacing this one
+        store.complete(fastcode, code("ticket"), 4000);
+        check(!store.lookup(fastcode, false).hasCaptchaData(), "Completing kept the data");
+        store.update(fastcode, 1, data, 4000);
+        check(versions.add(store.lookup(fastcode, false).infoVersion), "Version reused by a replacing session");
+        data.release();
+        other.release();
+    }
+
+    private static void refreshAndExpire(SessionStore store) {
+        byte[] fastcode = code("10000003");
+        check(!store.refresh(fastcode, 1000), "Refreshed an unknown session");
+        check(!store.expire(fastcode, 1000), "Expired an unknown session");
+        store.allocate(fastcode, 1000);
+        check(store.refresh(fastcode, 5000), "Refresh");
+        check(store.lookup(fastcode, false).lastUpdate == 5000, "Refresh did not move the last update");
+
+        check(!store.expire(fastcode, 1000), "Expired a session refreshed since");
+        check(store.lookup(fastcode, false) != null, "Lost a session refreshed since");
+        check(store.expire(fastcode, 5000), "Expire");
+        check(store.lookup(fastcode, false) == null && store.size() == 0, "Session left after expire");
+        check(store.allocate(fastcode, 6000), "Code not free after expire");
+
+        ByteBuf data = Unpooled.copiedBuffer("data", StandardCharsets.UTF_8);
+        store.update(fastcode, 1, data, 6000);
+        SessionStore.Session session = store.lookup(fastcode, true);
+        check(store.expire(fastcode, 6000), "Expire with data");
+        check(ByteBufUtil.equals(session.captchaData, data), "Looked up data changed by expire");
+        session.captchaData.release();
+        data.release();
+    }
+
+    private static void complete(SessionStore store) {
+        byte[] fastcode = code("10000004");
+        byte[] ticket = code("ticket-1");
+        check(!store.complete(fastcode, ticket, 1000), "Completing an unknown session replaced one");
+        ticket[0] = 'X';
+        SessionStore.Session session = store.lookup(fastcode, true);
+        check(session != null && session.completed && "ticket-1".equals(new String(session.ticket, StandardCharsets.ISO_8859_1)), "Ticket after complete");
+        check(session.lastUpdate == 1000, "Last update of a completed session");
+        check(store.lookup(fastcode, false).completed, "Completed without the ticket");
+        ByteBuf ticketView = store.ticket(fastcode);
+        check(ticketView != null && "ticket-1".equals(ticketView.toString(StandardCharsets.ISO_8859_1)), "Ticket view after complete");
+        check(!(store instanceof SlabSessionStore) || ticketView.isDirect(), "Ticket copied out of the slab");
+        ticketView.release();
+
+        store.allocate(code("10000005"), 1000);
+        check(store.complete(code("10000005"), code("ticket-2"), 2000), "Complete did not replace the session");
+        check(store.complete(code("10000005"), code("ticket-3"), 3000), "Complete did not replace the completed session");
+        session = store.lookup(code("10000005"), true);
+        check("ticket-3".equals(new String(session.ticket, StandardCharsets.ISO_8859_1)), "Ticket after second complete");
+        check(store.size() == 2, "Size " + store.size());
+        check(!store.expire(code("10000005"), 2000), "Expired a session completed since");
+    }
+
+    private static void iterate(SessionStore store) {
+        Set<String> codes = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String code = String.format("%08d", i);
+            codes.add(code);
+            store.allocate(code(code), 1000);
+        }
+        check(store.size() == 1000, "Size " + store.size());
+        Set<String> visited = new HashSet<>();
+        store.forEachFastcode(fastcode -> check(visited.add(new String(fastcode, StandardCharsets.ISO_8859_1)), "Visited twice"));
+        check(visited.equals(codes), "Visited " + visited.size() + " of " + codes.size());
+
+        // Expiring while iterating
+        store.forEachFastcode(fastcode -> store.expire(fastcode, 1000));
+        check(store.size() == 0, "Size after expiring all " + store.size());
+    }
+
+    private static void closeReleasesData(SessionStore store) {
+        ByteBuf data = Unpooled.copiedBuffer("data", StandardCharsets.UTF_8);
+        store.allocate(code("10000006"), 1000);
+        store.update(code("10000006"), 1, data, 1000);
+        ByteBuf looked = store.lookup(code("10000006"), true).captchaData;
+        store.close();
+        check(ByteBufUtil.equals(looked, data), "Looked up data changed by close");
+        looked.release();
+        check(looked.refCnt() == 0, "Close did not release the captcha data");
+        data.release();
+    }
+
+    private static void slabBudget() {
+        System.out.println("==========================");
+        System.out.println("SlabSessionStore budget");
+        SlabSessionStore store = new SlabSessionStore(2 * SlabAllocator.SLAB_BYTES);
+        SlabAllocator slabs = store.slabs();
+        ByteBuf data = Unpooled.directBuffer(20 * 1024).writeZero(20 * 1024);
+        int stored = 0, rejected = 0;
+        for (int i = 0; i < 100; i++) {
+            byte[] fastcode = code(String.format("%08d", i));
+            store.allocate(fastcode, 1000);
+            try {
+                if (store.update(fastcode, 1, data, 1000)) stored++;
+            } catch (SessionStoreFullException e) {
+                rejected++;
+            }
+        }
+        System.out.println(slabs);
+        // 32 KiB chunks, 32 per slab
+        check(stored == 64 && rejected == 36, "Stored " + stored + " blobs in 2 slabs, rejected " + rejected);
+        check(slabs.reservedBytes() == slabs.budgetBytes() && slabs.failedAllocations() == 36, "Slabs beyond the budget");
+        check(slabs.usedBytes() == 64 * 20 * 1024L, "Used bytes " + slabs.usedBytes());
+        ByteBuf large = Unpooled.directBuffer(200 * 1024).writeZero(200 * 1024);
+        try {
+            store.update(code("00000000"), 2, large, 1000);
+            check(false, "Large blob beyond the budget");
+        } catch (SessionStoreFullException expected) {
+        }
+        SessionStore.Session kept = store.lookup(code("00000000"), false);
+        check(kept.captchaType == 1 && kept.hasCaptchaData(), "Rejected update replaced the captcha data");
+        // Ticket stored on the heap instead
+        store.complete(code("00000099"), code("ticket"), 1000);
+        check(Arrays.equals(store.lookup(code("00000099"), true).ticket, code("ticket")), "Ticket beyond the budget");
+
+        SessionStore.Session session = store.lookup(code("00000000"), true);
+        check(session.captchaData.isDirect(), "Captcha data copied out of the slab");
+        store.forEachFastcode(fastcode -> store.expire(fastcode, 1000));
+        check(slabs.blobCount() == 1, "Blobs left " + slabs.blobCount());
+        session.captchaData.release();
+        check(slabs.blobCount() == 0 && slabs.usedBytes() == 0, "Blobs left " + slabs.blobCount() + ", used bytes " + slabs.usedBytes());
+        // One empty slab kept, the other one back to the budget
+        check(slabs.slabCount() == 1 && slabs.reservedBytes() == SlabAllocator.SLAB_BYTES, "Empty slabs: " + slabs);
+
+        // Freed chunks are reused, other size classes and large blobs get the budget of released slabs
+        store.allocate(code("10000000"), 2000);
+        check(store.update(code("10000000"), 1, data, 2000), "Chunk not reused");
+        check(slabs.slabCount() == 1, "Slabs " + slabs.slabCount());
+        store.allocate(code("10000001"), 2000);
+        check(store.update(code("10000001"), 1, Unpooled.wrappedBuffer(new byte[200]), 2000), "Size class beyond the released slab");
+        check(slabs.slabCount() == 2, "Slabs " + slabs.slabCount());
+        // Empty slabs kept by the size classes give way to blobs needing the budget
+        store.expire(code("10000000"), 2000);
+        store.expire(code("10000001"), 2000);
+        check(slabs.slabCount() == 2, "Slabs " + slabs.slabCount());
+        store.allocate(code("10000002"), 2000);
+        check(store.update(code("10000002"), 1, large, 2000), "Empty slabs kept beyond the budget");
+        check(slabs.slabCount() == 0 && slabs.largeBytes() == 200 * 1024, "Empty slabs not released: " + slabs);
+        store.close();
+        check(slabs.reservedBytes() == 0, "Reserved after close " + slabs.reservedBytes());
+        try (SlabSessionStore largeStore = new SlabSessionStore(SlabAllocator.SLAB_BYTES)) {
+            largeStore.allocate(code("10000000"), 2000);
+            check(largeStore.update(code("10000000"), 1, large, 2000), "Large blob within the budget");
+            check(largeStore.slabs().largeBytes() == 200 * 1024, "Large bytes " + largeStore.slabs().largeBytes());
+            ByteBuf looked = largeStore.lookup(code("10000000"), true).captchaData;
+            check(ByteBufUtil.equals(looked, large), "Large blob data");
+            looked.release();
+        }
+        data.release();
+        large.release();
+        System.out.println("Passed");
+    }
+
+    private static void concurrent(SessionStore store) throws Exception {
+        int threads = 8, codes = 64, rounds = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            futures.add(executor.submit(() -> {
+                Random random = new Random(seed);
+                ByteBuf data = Unpooled.copiedBuffer("https://captcha.example/concurrent", StandardCharsets.UTF_8);
+                for (int i = 0; i < rounds; i++) {
+                    byte[] fastcode = code(String.format("%08d", random.nextInt(codes)));
+                    long now = i;
+                    switch (random.nextInt(7)) {
+                        case 0:
+                            store.allocate(fastcode, now);
+                            break;
+                        case 1:
+                            store.update(fastcode, random.nextInt(3), data, now);
+                            break;
+                        case 2:
+                            store.refresh(fastcode, now);
+                            break;
+                        case 3:
+                            store.complete(fastcode, fastcode, now);
+                            break;
+                        case 4: {
+                            SessionStore.Session session = store.lookup(fastcode, true);
+                            if (session != null && session.captchaData != null) {
+                                check(ByteBufUtil.equals(session.captchaData, data), "Torn captcha data");
+                                session.captchaData.release();
+                            }
+                            break;
+                        }
+                        case 5: {
+                            SessionStore.Session session = store.lookup(fastcode, false);
+                            if (session != null) store.expire(fastcode, session.lastUpdate);
+                            break;
+                        }
+                        default:
+                            store.forEachFastcode(code -> check(code.length == 8, "Visited code " + Arrays.toString(code)));
+                    }
+                }
+                check(data.refCnt() == 1, "Data of the caller released");
+                data.release();
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        int[] visited = new int[1];
+        store.forEachFastcode($$$$ -> visited[0]++);
+        check(visited[0] == store.size() && store.size() <= codes, "Size " + store.size() + ", visited " + visited[0]);
+    }
+
+    /**
+     * A refresh after the idle time seen by {@code expire} either keeps the session or fails, never both succeed
+     */
+    private static void refreshRacingExpire(SessionStore store) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] fastcode = code("40000001");
+            for (int i = 0; i < 2000; i++) {
+                store.allocate(fastcode, 0);
+                CyclicBarrier barrier = new CyclicBarrier(2);
+                Future<Boolean> refreshed = executor.submit(() -> {
+                    barrier.await();
+                    return store.refresh(fastcode, 2);
+                });
+                barrier.await();
+                boolean expired = store.expire(fastcode, 1);
+                check(!(expired && refreshed.get()), "Refreshed session expired");
+                check(expired == (store.lookup(fastcode, false) == null), "Expired session still present");
+                store.expire(fastcode, Long.MAX_VALUE);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Path tempDir(List<Path> dirs) {
+        try {
+            Path dir = Files.createTempDirectory("tcrs-journal");
+            dirs.add(dir);
+            return dir;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static JournaledSessionStore journaled(SessionStore delegate, Path dir, int segmentBytes, long snapshotAfterBytes) {
+        try {
+            return new JournaledSessionStore(delegate, dir, segmentBytes, snapshotAfterBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the sessions of {@code store} without times and versions, which are not journaled
+     */
+    private static Map<String, String> contents(SessionStore store) {
+        Map<String, String> rsp = new HashMap<>();
+        store.forEachFastcode(fastcode -> {
+            SessionStore.Session session = store.lookup(fastcode, true);
+            if (session == null) return;
+            String data = session.captchaData == null ? "-" : ByteBufUtil.hexDump(session.captchaData);
+            if (session.captchaData != null) session.captchaData.release();
+            rsp.put(new String(fastcode, StandardCharsets.ISO_8859_1),
+                    (session.ticket == null ? "-" : new String(session.ticket, StandardCharsets.ISO_8859_1))
+                            + " " + (session.hasCaptchaData() ? session.captchaType + " " + data : "no data"));
+        });
+        return rsp;
+    }
+
+    private static void journalRecovery(Path dir) throws Exception {
+        System.out.println("==========================");
+        System.out.println("JournaledSessionStore recovery");
+        Map<String, String> expected;
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 256 * 1024)) {
+            Random random = new Random(0);
+            for (int i = 0; i < 2000; i++) {
+                byte[] fastcode = code(String.format("%08d", i));
+                store.allocate(fastcode, 1000);
+                byte[] data = new byte[random.nextInt(600)];
+                random.nextBytes(data);
+                switch (i % 5) {
+                    case 0:
+                        store.update(fastcode, 1, Unpooled.wrappedBuffer(data), 1000);
+                        break;
+                    case 1:
+                        store.update(fastcode, 1, Unpooled.wrappedBuffer(data), 1000);
+                        store.update(fastcode, 2, null, 1000);
+                        break;
+                    case 2:
+                        store.complete(fastcode, ("ticket-" + i).getBytes(StandardCharsets.ISO_8859_1), 2000);
+                        break;
+                    case 3:
+                        store.expire(fastcode, 1000);
+                        break;
+                    default:
+                        store.refresh(fastcode, 3000);
+                }
+            }
+            expected = contents(store);
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            check(files.anyMatch(file -> file.getFileName().toString().endsWith(".snap")), "No snapshot written");
+        }
+
+        long before = System.currentTimeMillis();
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 256 * 1024)) {
+            System.out.println(store);
+            check(contents(store).equals(expected), "Recovered sessions differ");
+            check(store.lookup(code("00000004"), false).lastUpdate >= before, "Recovered sessions keep their old time");
+            store.allocate(code("10000000"), 4000);
+            expected.put("10000000", "- no data");
+        }
+
+        // A torn record at the tail is dropped, the records before it are kept
+        Path last;
+        try (Stream<Path> files = Files.list(dir)) {
+            last = files.filter(file -> file.getFileName().toString().endsWith(".log")).max(Comparator.naturalOrder()).orElse(null);
+        }
+        check(last != null, "No journal segment");
+        try (FileChannel file = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            long position = 0;
+            while (true) {
+                header.clear();
+                if (file.read(header, position) < 8 || header.getInt(0) == 0) break;
+                position += 8 + header.getInt(0);
+            }
+            header.clear();
+            header.putInt(0, 100).putInt(4, 12345);
+            file.write(header, position);
+        }
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 256 * 1024)) {
+            check(contents(store).equals(expected), "Sessions recovered past a torn record differ");
+            for (int i = 0; i < 5; i++) {
+                store.allocate(code("2000000" + i), 4000);
+                expected.put("2000000" + i, "- no data");
+            }
+        }
+        // Changes after the torn record survive the next restart too
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 256 * 1024)) {
+            check(contents(store).equals(expected), "Sessions written after recovering a torn record lost");
+        }
+        System.out.println("Passed");
+    }
+
+    private static void journalConcurrentRecovery(Path dir) throws Exception {
+        System.out.println("==========================");
+        System.out.println("JournaledSessionStore concurrent recovery");
+        Map<String, String> expected;
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 128 * 1024)) {
+            concurrent(store);
+            expected = contents(store);
+        }
+        try (JournaledSessionStore store = journaled(new SlabSessionStore(64 * 1024 * 1024), dir, 64 * 1024, 128 * 1024)) {
+            System.out.println(store);
+            check(contents(store).equals(expected), "Recovered sessions differ from those of concurrent changes");
+        }
+        System.out.println("Passed");
+    }
+
+    private static void journalCloseAfterFailure(Path dir) throws Exception {
+        System.out.println("==========================");
+        System.out.println("JournaledSessionStore closed while writes fail");
+        JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 1024 * 1024 * 1024L);
+        // No new segment can be created from now on
+        delete(dir);
+        for (int i = 0; i < 10000; i++) {
+            store.allocate(code(String.format("%08d", i)), 1000);
+        }
+        ExecutorService closer = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> reported = closer.submit(() -> {
+                try {
+                    store.close();
+                    return false;
+                } catch (UncheckedIOException expected) {
+                    return true;
+                }
+            });
+            check(reported.get(30, TimeUnit.SECONDS), "Failed writes not reported by close");
+        } catch (TimeoutException e) {
+            check(false, "Close hangs while writes fail");
+        } finally {
+            closer.shutdownNow();
+            Files.createDirectories(dir);
+        }
+        System.out.println("Passed");
+    }
+
+    private static void journalSnapshotUnderLoad(Path dir) throws Exception {
+        System.out.println("==========================");
+        System.out.println("JournaledSessionStore snapshots under sustained load");
+        int threads = 4;
+        ExecutorService writers = Executors.newFixedThreadPool(threads);
+        AtomicBoolean stop = new AtomicBoolean();
+        try (JournaledSessionStore store = journaled(new ConcurrentMapSessionStore(), dir, 64 * 1024, 256 * 1024)) {
+            Path first;
+            try (Stream<Path> files = Files.list(dir)) {
+                first = files.filter(file -> file.getFileName().toString().endsWith(".log")).min(Comparator.naturalOrder()).orElse(null);
+            }
+            check(first != null, "No journal segment");
+            // Records keep arriving during every batch, the queue of the writer never runs empty
+            List<Future<?>> running = new ArrayList<>();
+            for (int w = 0; w < threads; w++) {
+                int writer = w;
+                running.add(writers.submit(() -> {
+                    byte[] data = new byte[4096];
+                    new Random(writer).nextBytes(data);
+                    for (int i = 0; !stop.get(); i++) {
+                        byte[] fastcode = code(String.format("%d%07d", writer, i % 1000));
+                        if (i < 1000) store.allocate(fastcode, 60_000);
+                        store.update(fastcode, 1, Unpooled.wrappedBuffer(data), 60_000);
+                    }
+                }));
+            }
+            long deadline = System.currentTimeMillis() + 20_000;
+            boolean snapshotted = false;
+            while (!snapshotted && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50L);
+                try (Stream<Path> files = Files.list(dir)) {
+                    snapshotted = !Files.exists(first) && files.anyMatch(file -> file.getFileName().toString().endsWith(".snap"));
+                }
+            }
+            stop.set(true);
+            for (Future<?> future : running) {
+                future.get();
+            }
+            check(snapshotted, "No snapshot nor deleted segment while records keep arriving");
+        } finally {
+            stop.set(true);
+            writers.shutdownNow();
+        }
+        System.out.println("Passed");
+    }
+
+    private static void journalReplayMillion(Path dir) throws Exception {
+        System.out.println("==========================");
+        System.out.println("JournaledSessionStore replay of a million sessions");
+        int sessions = 1_000_000;
+        ByteBuf data = Unpooled.copiedBuffer("https://captcha.example/show?aid=2100049389&sid=0123456789", StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        try (JournaledSessionStore store = journaled(new SlabSessionStore(256 * 1024 * 1024), dir,
+                JournaledSessionStore.DEFAULT_SEGMENT_BYTES, JournaledSessionStore.DEFAULT_SNAPSHOT_AFTER_BYTES)) {
+            for (int i = 0; i < sessions; i++) {
+                byte[] fastcode = code(String.format("%08d", i));
+                store.allocate(fastcode, 1000);
+                if (i % 2 == 0) {
+                    store.update(fastcode, 1, data, 1000);
+                } else {
+                    store.complete(fastcode, fastcode, 1000);
+                }
+            }
+            System.out.printf("Journaled %d sessions in %d ms%n", sessions, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        try (JournaledSessionStore store = journaled(new SlabSessionStore(256 * 1024 * 1024), dir,
+                JournaledSessionStore.DEFAULT_SEGMENT_BYTES, JournaledSessionStore.DEFAULT_SNAPSHOT_AFTER_BYTES)) {
+            System.out.println(store);
+            check(store.size() == sessions, "Recovered " + store.size() + " sessions");
+            SessionStore.Session session = store.lookup(code("00000000"), true);
+            check(ByteBufUtil.equals(session.captchaData, data), "Recovered captcha data");
+            session.captchaData.release();
+        }
+        data.release();
+        System.out.println("Passed");
+    }
+}
@@ -8,26 +8,42 @@
  */
 
 import com.kasukusakura.tcrs.client.AutoReconnectClientConnection;
+import com.kasukusakura.tcrs.network.PkgCodec;
+import com.kasukusakura.tcrs.network.Transport;
+import com.kasukusakura.tcrs.network.TransportOptions;
+import com.kasukusakura.tcrs.network.packets.PkgNewProcessCode;
 import com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo;
+import com.kasukusakura.tcrs.server.SlabAllocator;
+import com.kasukusakura.tcrs.server.SlabSessionStore;
 import com.kasukusakura.tcrs.server.TCRSServerChannelInitializer;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.embedded.EmbeddedChannel;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.function.Supplier;
 
 public class TestTmpServerX {
     public static void main(String[] args) throws Throwable {
-        EventLoopGroup eventLoopGroup = new NioEventLoopGroup();
+        pooledQueries();
+
+        Transport transport = Transport.best();
+        System.out.println("Transport: " + transport);
+        EventLoopGroup eventLoopGroup = transport.newEventLoopGroup(0);
         int port = 12445;
-        Channel serverChannel = new ServerBootstrap()
-                .channel(NioServerSocketChannel.class)
+        Channel serverChannel = transport.configure(new ServerBootstrap(), new TransportOptions().setTcpFastOpen(16).setTcpQuickAck(true))
                 .group(eventLoopGroup)
                 .childHandler(new TCRSServerChannelInitializer() {
+                    {
+                        completedSessionTtlMillis = 2000L;
+                        sessionStore = new SlabSessionStore(SlabAllocator.SLAB_BYTES + 512 * 1024);
+                    }
+
                     @Override
                     protected void debugMsg(ChannelHandlerContext ctx, Supplier<String> msg) {
                         System.out.println(ctx.channel() + " || " + msg.get());
@@ -40,6 +56,8 @@ public class TestTmpServerX {
         class MyConnection extends AutoReconnectClientConnection {
             byte[] myticket;
             byte[] mycode;
+            int infoVersion;
+            volatile boolean updateRejected;
 
             @Override
             protected void onFastCodeReceived(byte[] fastcode) {
@@ -55,7 +73,27 @@ public class TestTmpServerX {
 
             @Override
             protected void onReceivedProcessCodeInfo(PkgProcessCodeInfo.Response response) {
-                System.out.println("CLIENT: ProcessCodeInfo: type=" + response.captchaType + ", data=" + (response.captchaData != null ? new String(response.captchaData) : "<null>"));
+                String data = response.captchaData == null ? "<null>"
+                        : response.captchaData.length > 1024 ? "<" + response.captchaData.length + " bytes>"
+                        : new String(response.captchaData);
+                System.out.println("CLIENT: ProcessCodeInfo: type=" + response.captchaType + ", data=" + data);
+            }
+
+            @Override
+            protected void onProcessCodeInfoVersion(byte[] fastcode, int version, boolean modified) {
+                infoVersion = version;
+                System.out.println("CLIENT: ProcessCodeInfo version: " + version + ", modified=" + modified);
+            }
+
+            @Override
+            protected void onProcessCodeInfoUpdateRequired(byte[] fastcode) {
+                System.out.println("CLIENT: Update required: " + new String(fastcode));
+            }
+
+            @Override
+            protected void onProcessCodeInfoUpdateRejected(byte[] fastcode) {
+                updateRejected = true;
+                System.out.println("CLIENT: Update rejected: " + new String(fastcode));
             }
         }
 
@@ -64,13 +102,32 @@ public class TestTmpServerX {
 
         connection.sendNewFastCodeReq();
         Thread.sleep(1000L);
-        connection.sendProcessCodeInfoUpdate(50, null, connection.mycode);
+        byte[] captchaUrl = "https://captcha.example/slider?aid=2033864629&protocol=https&accver=1&showtype=popup&ua=TW96aWxsYS81LjAgKExpbnV4OyBBbmRyb2lkIDEyKQ%3D%3D&noheader=1&fb=1&enableDarkMode=0".getBytes();
+        connection.sendProcessCodeInfoUpdate(50, captchaUrl, connection.mycode);
+        connection.fetchProcessCodeInfo(connection.mycode);
+        connection.sendProcessCodeInfoConditionalUpdate(50, captchaUrl, connection.mycode);
+        connection.sendProcessCodeInfoConditionalUpdate(50, "https://captcha.example/changed".getBytes(), connection.mycode);
+        connection.fetchProcessCodeInfo(connection.mycode, 0);
+        Thread.sleep(500L);
+        connection.fetchProcessCodeInfo(connection.mycode, connection.infoVersion);
+        // Beyond the budget of the store while the slab of the url above is in use, the url is kept
+        connection.sendProcessCodeInfoUpdate(2, new byte[900 * 1024], connection.mycode);
+        connection.fetchProcessCodeInfo(connection.mycode, connection.infoVersion);
+        for (int i = 0; i < 100 && !connection.updateRejected; i++) {
+            Thread.sleep(100L);
+        }
+        // Picture captcha larger than a frame
+        connection.sendProcessCodeInfoUpdate(2, new byte[300 * 1024], connection.mycode);
         connection.fetchProcessCodeInfo(connection.mycode);
+        connection.fetchProcessCodeInfo(connection.mycode, connection.infoVersion);
         connection.sendTicketQueryRequest(connection.mycode);
         Thread.sleep(1000L);
         connection.sendTicketQueryRequest(connection.mycode);
         Thread.sleep(1000L);
         connection.sendTicketQueryRequest(connection.mycode);
+        connection.subscribeTicket(connection.mycode);
+        connection.sendTicketLongPoll(connection.mycode, 5000);
+        connection.sendTicketLongPoll("Some Unknown code".getBytes(), 5000);
         Thread.sleep(1000L);
 
 
@@ -78,9 +135,68 @@ public class TestTmpServerX {
         Thread.sleep(1000L);
         connection.sendTicketQueryRequest(connection.mycode);
         connection.sendTicketQueryRequest("Some Unknown code".getBytes());
+        connection.sendTicketQueryRequests(Arrays.asList(connection.mycode, "Some Unknown code".getBytes()));
+        connection.sendTicketLongPoll(connection.mycode, 5000);
+        Thread.sleep(1000L);
+
+        // Expired by now, answered as unknown
+        Thread.sleep(3000L);
+        connection.sendTicketQueryRequest(connection.mycode);
+        Thread.sleep(500L);
 
         connection.disconnect();
         serverChannel.close();
         eventLoopGroup.shutdownGracefully();
+        if (!connection.updateRejected) throw new AssertionError("Update beyond the budget of the store not rejected");
+    }
+
+    /**
+     * Two pooled queries read in one batch, the second reuses the fastcode array of the first before the answers are flushed
+     */
+    static void pooledQueries() {
+        EmbeddedChannel server = new EmbeddedChannel(new TCRSServerChannelInitializer());
+        PkgCodec codec = new PkgCodec();
+        EmbeddedChannel client = new EmbeddedChannel(codec.getDecoder(), codec.getEncoder());
+
+        client.writeOutbound(PkgNewProcessCode.Req.INSTANCE, PkgNewProcessCode.Req.INSTANCE);
+        transfer(client, server);
+        transfer(server, client);
+        byte[][] fastcodes = new byte[2][];
+        byte[][] data = new byte[2][];
+        Random random = new Random();
+        for (int i = 0; i < 2; i++) {
+            fastcodes[i] = ((PkgNewProcessCode.Rsp) client.readInbound()).fastcode;
+            // Stored in a direct buffer and wrapped by the frame of the answer
+            data[i] = new byte[PkgCodec.DIRECT_PAYLOAD_BYTES * 2];
+            random.nextBytes(data[i]);
+            client.writeOutbound(PkgProcessCodeInfo.Update.update(2, data[i], fastcodes[i]));
+        }
+        transfer(client, server);
+
+        client.writeOutbound(PkgProcessCodeInfo.Query.query(fastcodes[0]), PkgProcessCodeInfo.Query.query(fastcodes[1]));
+        transfer(client, server);
+        transfer(server, client);
+        for (int i = 0; i < 2; i++) {
+            PkgProcessCodeInfo.Response response = client.readInbound();
+            if (!Arrays.equals(response.fastcode, fastcodes[i]) || !Arrays.equals(response.captchaData, data[i])) {
+                throw new AssertionError("Answer " + i + " sent under " + new String(response.fastcode) + " instead of " + new String(fastcodes[i]));
+            }
+        }
+        System.out.println("Pooled queries answered under their own fast codes");
+        server.finishAndReleaseAll();
+        client.finishAndReleaseAll();
+    }
+
+    /**
+     * Passes each buffer {@code from} sent to {@code to} as a read of one batch, like a socket reading them in turn
+     */
+    private static void transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        ByteBuf buf;
+        while ((buf = from.readOutbound()) != null) {
+            to.pipeline().fireChannelRead(buf);
+        }
+        to.pipeline().fireChannelReadComplete();
+        to.runPendingTasks();
+        to.checkException();
     }
 }
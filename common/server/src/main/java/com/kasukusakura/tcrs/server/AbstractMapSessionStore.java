@@ -0,0 +1,243 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Sessions in a {@link ConcurrentHashMap}, subclasses decide where captcha data and tickets are kept
+ */
+public abstract class AbstractMapSessionStore implements SessionStore {
+    private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+    // Random start, versions clients still hold from before a restart must not match recovered sessions
+    private final AtomicInteger infoVersions = new AtomicInteger(ThreadLocalRandom.current().nextInt());
+
+    /**
+     * @return the copy of the readable bytes of {@code captchaData} kept by a session, {@code null} if there is no room,
+     * {@link #update} then throws {@link SessionStoreFullException}
+     */
+    protected abstract ByteBuf copyCaptchaData(ByteBuf captchaData);
+
+    /**
+     * @return the copy of {@code ticket} kept by a session
+     */
+    protected abstract ByteBuf copyTicket(byte[] ticket);
+
+    private static String key(byte[] fastcode) {
+        return new String(fastcode, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the bytes of {@code ticket}, heap tickets are handed out without a copy
+     */
+    private static byte[] bytes(ByteBuf ticket) {
+        if (ticket.hasArray() && ticket.arrayOffset() == 0 && ticket.readerIndex() == 0 && ticket.array().length == ticket.readableBytes()) {
+            return ticket.array();
+        }
+        return ByteBufUtil.getBytes(ticket);
+    }
+
+    private final class Entry {
+        final ByteBuf ticket;
+        volatile long lastUpdate;
+        private int captchaType;
+        private ByteBuf captchaData;
+        private long captchaHash;
+        private int infoVersion;
+        private boolean retired;
+
+        Entry(ByteBuf ticket, long now) {
+            this.ticket = ticket;
+            this.lastUpdate = now;
+        }
+
+        /**
+         * @return false if this entry left the map
+         */
+        synchronized boolean refresh(long now) {
+            if (retired) return false;
+            lastUpdate = now;
+            return true;
+        }
+
+        /**
+         * Retires this entry unless it was updated, refreshed or completed after {@code lastUpdate}.
+         * Checked and removed under the lock of the entry, so no update or refresh lands in between.
+         */
+        synchronized boolean expire(String key, long lastUpdate) {
+            if (retired || this.lastUpdate > lastUpdate) return false;
+            if (!sessions.remove(key, this)) return false;
+            retire();
+            return true;
+        }
+
+        /**
+         * @return false if this entry left the map, {@code data} is released then
+         */
+        synchronized boolean update(int type, ByteBuf data, long hash, long now) {
+            if (retired) {
+                if (data != null) data.release();
+                return false;
+            }
+            ByteBuf old = captchaData;
+            if ((old == null) != (data == null) || captchaType != type || captchaHash != hash) {
+                infoVersion = data == null ? 0 : nextInfoVersion();
+            }
+            captchaType = type;
+            captchaData = data;
+            captchaHash = hash;
+            lastUpdate = now;
+            if (old != null) old.release();
+            return true;
+        }
+
+        /**
+         * @return {@code null} if this entry left the map, its captcha data and ticket are gone
+         */
+        synchronized Session snapshot(boolean withData) {
+            if (retired) return null;
+            Session rsp = new Session();
+            rsp.completed = ticket != null;
+            if (withData && ticket != null) {
+                rsp.ticket = bytes(ticket);
+            }
+            rsp.captchaType = captchaType;
+            rsp.captchaHash = captchaHash;
+            rsp.infoVersion = infoVersion;
+            rsp.lastUpdate = lastUpdate;
+            if (withData && captchaData != null) {
+                rsp.captchaData = captchaData.retainedDuplicate();
+            }
+            return rsp;
+        }
+
+        /**
+         * @return {@code null} if this entry left the map, {@link Unpooled#EMPTY_BUFFER} if it holds no ticket
+         */
+        synchronized ByteBuf retainedTicket() {
+            if (retired) return null;
+            return ticket == null ? Unpooled.EMPTY_BUFFER : ticket.retainedDuplicate();
+        }
+
+        /**
+         * Releases the captcha data and ticket of an entry leaving the map
+         */
+        synchronized void retire() {
+            if (retired) return;
+            retired = true;
+            if (captchaData != null) {
+                captchaData.release();
+                captchaData = null;
+            }
+            if (ticket != null) ticket.release();
+        }
+    }
+
+    private int nextInfoVersion() {
+        int version;
+        do {
+            version = infoVersions.incrementAndGet();
+        } while (version == 0);
+        return version;
+    }
+
+    @Override
+    public boolean allocate(byte[] fastcode, long now) {
+        return sessions.putIfAbsent(key(fastcode), new Entry(null, now)) == null;
+    }
+
+    @Override
+    public boolean update(byte[] fastcode, int captchaType, ByteBuf captchaData, long now) {
+        Entry entry = sessions.get(key(fastcode));
+        if (entry == null) return false;
+        ByteBuf data = null;
+        if (captchaData != null) {
+            data = copyCaptchaData(captchaData);
+            if (data == null) throw new SessionStoreFullException("No room for " + captchaData.readableBytes() + " bytes of captcha data");
+        }
+        return entry.update(captchaType, data, PkgProcessCodeInfo.ConditionalUpdate.hash(captchaData), now);
+    }
+
+    @Override
+    public boolean refresh(byte[] fastcode, long now) {
+        Entry entry = sessions.get(key(fastcode));
+        return entry != null && entry.refresh(now);
+    }
+
+    @Override
+    public boolean complete(byte[] fastcode, byte[] ticket, long now) {
+        Entry old = sessions.put(key(fastcode), new Entry(copyTicket(ticket), now));
+        if (old == null) return false;
+        old.retire();
+        return true;
+    }
+
+    @Override
+    public Session lookup(byte[] fastcode, boolean withData) {
+        String key = key(fastcode);
+        while (true) {
+            Entry entry = sessions.get(key);
+            if (entry == null) return null;
+            Session rsp = entry.snapshot(withData);
+            // Otherwise replaced or expired since, look up its successor
+            if (rsp != null) return rsp;
+        }
+    }
+
+    @Override
+    public ByteBuf ticket(byte[] fastcode) {
+        String key = key(fastcode);
+        while (true) {
+            Entry entry = sessions.get(key);
+            if (entry == null) return null;
+            ByteBuf rsp = entry.retainedTicket();
+            if (rsp == Unpooled.EMPTY_BUFFER) return null;
+            if (rsp != null) return rsp;
+        }
+    }
+
+    @Override
+    public boolean expire(byte[] fastcode, long lastUpdate) {
+        String key = key(fastcode);
+        Entry entry = sessions.get(key);
+        return entry != null && entry.expire(key, lastUpdate);
+    }
+
+    @Override
+    public void forEachFastcode(Consumer<byte[]> action) {
+        for (String key : sessions.keySet()) {
+            action.accept(key.getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+        sessions.values().removeIf(entry -> {
+            entry.retire();
+            return true;
+        });
+    }
+}
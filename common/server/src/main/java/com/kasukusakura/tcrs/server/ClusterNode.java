@@ -0,0 +1,688 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import com.kasukusakura.tcrs.network.PkgCodec;
+import com.kasukusakura.tcrs.network.Transport;
+import com.kasukusakura.tcrs.network.TransportOptions;
+import com.kasukusakura.tcrs.network.packets.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * One node of a cluster splitting the fast process codes between its nodes by {@link HashRing}.
+ * <p>
+ * Packets for codes owned by another node are forwarded to it. A node keeps one TCP link to each other node and
+ * multiplexes a stream per client connection over it. The owner serves a stream with the pipeline of its
+ * {@link TCRSServerChannelInitializer}, as if the client were connected directly, so answers, pushed tickets and
+ * long polls travel back the same way. Both ends of a stream are {@link LocalChannel}s, the link only carries bytes.
+ * <p>
+ * Link frames are {@code int32 length, int32 stream, int8 type, byte data[length - 5]}, type 0 carries bytes
+ * of the stream, type 1 closes it. The node that connected the link opens its streams, after a first frame of
+ * type 2 carrying the UTF-8 shared token of the cluster; links sending another token or none are closed.
+ * Each batch of forwarded packets is followed by a KeepAlive, which the owner echoes once it handled them. A client
+ * whose owner did not echo within {@link #FORWARD_TIMEOUT_MILLIS}, or whose stream closed before the echo as the link
+ * to the owner is down, is disconnected, so it reconnects and retries rather than waiting on packets that were lost.
+ */
+public class ClusterNode implements AutoCloseable {
+    /**
+     * Points of each node on the ring
+     */
+    public static final int VIRTUAL_NODES = 160;
+    /**
+     * Time the owner has to handle forwarded packets, before their client is disconnected
+     */
+    public static final long FORWARD_TIMEOUT_MILLIS = 10_000;
+    private static final int MAX_LINK_FRAME = 1024 * 1024;
+    private static final int LINK_HEADER_BYTES = 9;
+    private static final byte DATA = 0, CLOSE = 1, AUTH = 2;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final AttributeKey<Stream[]> STREAMS = AttributeKey.valueOf(ClusterNode.class, "STREAMS");
+    private static final AttributeKey<Boolean> FORWARDED = AttributeKey.valueOf(ClusterNode.class, "FORWARDED");
+
+    private final List<String> nodes;
+    private final int self;
+    private final byte[] token;
+    private final HashRing ring;
+    private final TCRSServerChannelInitializer server;
+    private final EventLoopGroup group;
+    private final TransportOptions transportOptions;
+    private final Link[] links;
+    private final List<Channel> boundChannels = new ArrayList<>();
+    // Client side of the streams, announcing what the client side of the link can reassemble
+    private final PkgCodec codec = new PkgCodec()
+            .setRetainedPayloads(true)
+            .setPooledPackets(true)
+            .setChunkedTransfers(PkgCodec.DEFAULT_MAX_TRANSFER_BYTES)
+            .setFramingV2(true);
+    private LocalAddress serveAddress;
+    private volatile boolean closed;
+
+    /**
+     * @param nodes link addresses ({@code host:port}) of all nodes, the same on every node
+     * @param self  index of this node in {@code nodes}
+     * @param token shared by all nodes, authenticating their links
+     * @param group runs the links and streams, usually the worker group of {@code server}
+     */
+    public ClusterNode(List<String> nodes, int self, String token, TCRSServerChannelInitializer server, EventLoopGroup group, TransportOptions transportOptions) {
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("Node " + self + " is not one of the " + nodes.size() + " nodes");
+        }
+        this.nodes = new ArrayList<>(nodes);
+        this.self = self;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.ring = new HashRing(this.nodes, VIRTUAL_NODES);
+        this.server = server;
+        this.group = group;
+        this.transportOptions = transportOptions;
+        this.links = new Link[nodes.size()];
+        for (int node = 0; node < links.length; node++) {
+            if (node != self) links[node] = new Link(node);
+        }
+    }
+
+    static InetSocketAddress address(String node) {
+        int split = node.lastIndexOf(':');
+        if (split == -1) throw new IllegalArgumentException("No port in node address " + node);
+        String host = node.substring(0, split);
+        if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+        return new InetSocketAddress(host, Integer.parseInt(node.substring(split + 1)));
+    }
+
+    /**
+     * Binds the link listener of this node and connects to the others, retrying until they are up
+     */
+    public ClusterNode start() {
+        Channel serve = new ServerBootstrap()
+                .group(group)
+                .channel(LocalServerChannel.class)
+                .childAttr(FORWARDED, Boolean.TRUE)
+                .childHandler(server)
+                .bind(LocalAddress.ANY).syncUninterruptibly().channel();
+        boundChannels.add(serve);
+        serveAddress = (LocalAddress) serve.localAddress();
+        boundChannels.add(Transport.of(group).configure(new ServerBootstrap(), transportOptions)
+                .group(group)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(newFrameDecoder(), new ServedLink());
+                    }
+                })
+                .bind(address(nodes.get(self))).syncUninterruptibly().channel());
+        for (Link link : links) {
+            if (link != null) link.start();
+        }
+        return this;
+    }
+
+    /**
+     * @return whether {@code channel} is the server end of a stream forwarded by another node
+     */
+    static boolean isForwarded(Channel channel) {
+        return channel.hasAttr(FORWARDED);
+    }
+
+    public int self() {
+        return self;
+    }
+
+    public List<String> nodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public boolean owns(byte[] fastcode) {
+        return ring.owner(fastcode) == self;
+    }
+
+    /**
+     * @return whether the links to all other nodes are up
+     */
+    public boolean isConnected() {
+        for (Link link : links) {
+            if (link != null && (link.channel == null || !link.channel.isActive())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forwards {@code pkg}, read from {@code client}, to the owners of its fast process codes.
+     * Called on the event loop of {@code client}, the caller still releases {@code pkg}.
+     *
+     * @return the part of {@code pkg} this node serves itself, {@code null} if there is none
+     */
+    Packet forward(Channel client, Packet pkg) {
+        if (pkg instanceof PkgQueryProcessCodeStatus.BatchReq) {
+            return forwardBatch(client, pkg, ((PkgQueryProcessCodeStatus.BatchReq) pkg).fastcodes, PkgQueryProcessCodeStatus.BatchReq::req);
+        }
+        if (pkg instanceof PkgProcessCodeInfo.BatchRefresh) {
+            return forwardBatch(client, pkg, ((PkgProcessCodeInfo.BatchRefresh) pkg).fastcodes, PkgProcessCodeInfo.BatchRefresh::refresh);
+        }
+        byte[] fastcode = fastcode(pkg);
+        if (fastcode == null) return pkg;
+        int owner = ring.owner(fastcode);
+        if (owner == self) return pkg;
+        send(client, owner, pkg);
+        return null;
+    }
+
+    private Packet forwardBatch(Channel client, Packet pkg, byte[][] fastcodes, Function<byte[][], Packet> batch) {
+        List<List<byte[]>> parts = new ArrayList<>(Collections.<List<byte[]>>nCopies(nodes.size(), null));
+        for (byte[] fastcode : fastcodes) {
+            int owner = ring.owner(fastcode);
+            if (parts.get(owner) == null) parts.set(owner, new ArrayList<>());
+            parts.get(owner).add(fastcode);
+        }
+        Packet local = null;
+        for (int node = 0; node < parts.size(); node++) {
+            List<byte[]> owned = parts.get(node);
+            if (owned == null) continue;
+            Packet part = owned.size() == fastcodes.length ? pkg : batch.apply(owned.toArray(new byte[0][]));
+            if (node == self) {
+                local = part;
+            } else {
+                send(client, node, part);
+            }
+        }
+        return local;
+    }
+
+    /**
+     * @return the fast process code {@code pkg} is about, {@code null} if it is about none
+     */
+    private static byte[] fastcode(Packet pkg) {
+        if (pkg instanceof PkgNewProcessCode.Complete) return ((PkgNewProcessCode.Complete) pkg).fastcode;
+        if (pkg instanceof PkgNewProcessCode.CompleteBuf) return ByteBufUtil.getBytes(((PkgNewProcessCode.CompleteBuf) pkg).fastcode);
+        if (pkg instanceof PkgQueryProcessCodeStatus.Req) return ((PkgQueryProcessCodeStatus.Req) pkg).fastcode;
+        if (pkg instanceof PkgQueryProcessCodeStatus.Subscribe) return ((PkgQueryProcessCodeStatus.Subscribe) pkg).fastcode;
+        if (pkg instanceof PkgQueryProcessCodeStatus.LongPoll) return ((PkgQueryProcessCodeStatus.LongPoll) pkg).fastcode;
+        if (pkg instanceof PkgProcessCodeInfo.Update) return ((PkgProcessCodeInfo.Update) pkg).fastcode;
+        if (pkg instanceof PkgProcessCodeInfo.UpdateBuf) return ByteBufUtil.getBytes(((PkgProcessCodeInfo.UpdateBuf) pkg).fastcode);
+        if (pkg instanceof PkgProcessCodeInfo.ConditionalUpdate) return ((PkgProcessCodeInfo.ConditionalUpdate) pkg).fastcode;
+        if (pkg instanceof PkgProcessCodeInfo.Refresh) return ((PkgProcessCodeInfo.Refresh) pkg).fastcode;
+        if (pkg instanceof PkgProcessCodeInfo.VersionedQuery) return ((PkgProcessCodeInfo.VersionedQuery) pkg).fastcode;
+        if (pkg instanceof PkgProcessCodeInfo.Query) return ((PkgProcessCodeInfo.Query) pkg).fastcode;
+        return null;
+    }
+
+    private void send(Channel client, int owner, Packet pkg) {
+        Stream[] streams = client.attr(STREAMS).get();
+        if (streams == null) {
+            Stream[] created = streams = new Stream[nodes.size()];
+            client.attr(STREAMS).set(created);
+            client.closeFuture().addListener($$$$ -> {
+                for (Stream stream : created) {
+                    if (stream != null) stream.channel.close();
+                }
+            });
+        }
+        Stream stream = streams[owner];
+        if (stream == null) {
+            stream = streams[owner] = new Stream(client, streams, owner);
+        }
+        // Released by the encoder of the stream, the reference of the caller stays with the caller
+        stream.write(ReferenceCountUtil.retain(pkg));
+    }
+
+    private static LengthFieldBasedFrameDecoder newFrameDecoder() {
+        return new LengthFieldBasedFrameDecoder(MAX_LINK_FRAME, 0, 4, 0, 4);
+    }
+
+    /**
+     * Writes {@code data} to {@code link} as frames of {@code stream}, without flushing
+     */
+    private static void writeFrames(Channel link, int stream, byte type, ByteBuf data) {
+        do {
+            ByteBuf part = data.readRetainedSlice(Math.min(data.readableBytes(), MAX_LINK_FRAME - LINK_HEADER_BYTES));
+            ByteBuf header = link.alloc().buffer(LINK_HEADER_BYTES)
+                    .writeInt(5 + part.readableBytes())
+                    .writeInt(stream)
+                    .writeByte(type);
+            link.write(Unpooled.wrappedUnmodifiableBuffer(header, part));
+        } while (data.isReadable());
+        data.release();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Channel channel : boundChannels) {
+            channel.close();
+        }
+        for (Link link : links) {
+            if (link != null && link.channel != null) link.channel.close();
+        }
+    }
+
+    /**
+     * Client end of a stream, on the event loop of its client. Turns forwarded packets into bytes for the link
+     * and writes the decoded answers to the client.
+     */
+    private final class Stream extends ChannelInboundHandlerAdapter {
+        final Channel client;
+        final Channel channel;
+        // Packets written before the owner answered the Hello of the stream
+        private List<Object> pending = new ArrayList<>();
+        // Running while a probe of the owner is unanswered, unprobed if packets were forwarded after that probe
+        private ScheduledFuture<?> deadline;
+        private boolean unprobed;
+        private ChannelHandlerContext ctx;
+
+        Stream(Channel client, Stream[] streams, int owner) {
+            this.client = client;
+            this.channel = new Bootstrap()
+                    .group(client.eventLoop())
+                    .channel(LocalChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(codec.getEncoder(), codec.getDecoder(), Stream.this);
+                        }
+                    })
+                    .connect(links[owner].uplinkAddress)
+                    .channel();
+            channel.closeFuture().addListener($$$$ -> {
+                if (streams[owner] == this) streams[owner] = null;
+                boolean unanswered = deadline != null || pending != null && !pending.isEmpty();
+                if (deadline != null) {
+                    deadline.cancel(false);
+                    deadline = null;
+                }
+                if (pending != null) {
+                    pending.forEach(ReferenceCountUtil::release);
+                    pending = null;
+                }
+                if (unanswered && client.isOpen()) {
+                    // Closed with the link to the owner or as it never came up, the forwarded packets are lost
+                    if (ctx != null) server.debugMsg(ctx, () -> "Stream to node " + owner + " closed before it answered, closing " + client);
+                    client.close();
+                }
+            });
+        }
+
+        void write(Packet pkg) {
+            queue(pkg);
+            if (deadline == null) {
+                probe();
+            } else {
+                unprobed = true;
+            }
+            if (pending == null) channel.flush();
+        }
+
+        private void queue(Object pkg) {
+            if (pending != null) {
+                pending.add(pkg);
+            } else {
+                channel.write(pkg);
+            }
+        }
+
+        private void probe() {
+            queue(PkgKeepAlive.INSTANCE);
+            deadline = client.eventLoop().schedule(this::expired, FORWARD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private void expired() {
+            deadline = null;
+            if (!channel.isOpen()) return;
+            server.debugMsg(ctx, () -> "Owner did not handle forwarded packets within " + FORWARD_TIMEOUT_MILLIS + "ms, closing " + client);
+            channel.close();
+            client.close();
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.writeAndFlush(PkgKeepAlive.Hello.hello(codec.getCapabilities()));
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof PkgKeepAlive.Hello || msg == PkgKeepAlive.INSTANCE) {
+                // Between this node and the owner
+                ReferenceCountUtil.release(msg);
+                if (msg == PkgKeepAlive.INSTANCE && deadline != null) {
+                    // Echo of the probe, the owner handled the packets before it
+                    deadline.cancel(false);
+                    deadline = null;
+                    if (unprobed) {
+                        unprobed = false;
+                        probe();
+                        ctx.flush();
+                    }
+                    return;
+                }
+                if (pending != null && msg instanceof PkgKeepAlive.Hello) {
+                    // The capabilities of the owner are known, packets larger than a frame can be chunked
+                    for (Object pkg : pending) {
+                        ctx.write(pkg);
+                    }
+                    pending = null;
+                    ctx.flush();
+                }
+                return;
+            }
+            client.write(msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            client.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            server.logError(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Link to the owner {@code node}, connected by this node. Its streams are the server ends of the local
+     * connections of {@link Stream}s.
+     */
+    @ChannelHandler.Sharable
+    private final class Link extends ChannelInboundHandlerAdapter {
+        final int node;
+        final Map<Integer, Channel> streams = new ConcurrentHashMap<>();
+        final AtomicInteger nextStream = new AtomicInteger();
+        LocalAddress uplinkAddress;
+        volatile Channel channel;
+        // Streams written to while reading from the link, event loop of the link only
+        private final Set<Channel> unflushed = new HashSet<>();
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        void start() {
+            Channel uplink = new ServerBootstrap()
+                    .group(group)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new Uplink(Link.this));
+                        }
+                    })
+                    .bind(LocalAddress.ANY).syncUninterruptibly().channel();
+            boundChannels.add(uplink);
+            uplinkAddress = (LocalAddress) uplink.localAddress();
+            connect();
+        }
+
+        void connect() {
+            if (closed) return;
+            Transport.of(group).configure(new Bootstrap(), transportOptions)
+                    .group(group)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(newFrameDecoder(), Link.this);
+                        }
+                    })
+                    .connect(address(nodes.get(node)))
+                    .addListener((ChannelFutureListener) future -> {
+                        if (!future.isSuccess()) {
+                            group.schedule(this::connect, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+                        }
+                    });
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            // Ahead of the frames of any stream, which are only written once the channel is set
+            writeFrames(ctx.channel(), 0, AUTH, Unpooled.wrappedBuffer(token));
+            ctx.flush();
+            channel = ctx.channel();
+            server.debugMsg(ctx, () -> "Cluster link to node " + node + " (" + nodes.get(node) + ") connected");
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            channel = null;
+            for (Channel stream : streams.values()) {
+                stream.close();
+            }
+            streams.clear();
+            server.debugMsg(ctx, () -> "Cluster link to node " + node + " (" + nodes.get(node) + ") lost");
+            group.schedule(this::connect, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf frame = (ByteBuf) msg;
+            int id = frame.readInt();
+            byte type = frame.readByte();
+            Channel stream = streams.get(id);
+            if (stream == null || type == CLOSE) {
+                frame.release();
+                if (stream != null) stream.close();
+                return;
+            }
+            stream.write(frame);
+            unflushed.add(stream);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            for (Channel stream : unflushed) {
+                stream.flush();
+            }
+            unflushed.clear();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            server.logError(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Server end of the local connection of a {@link Stream}, sends its bytes over the link
+     */
+    private static final class Uplink extends ChannelInboundHandlerAdapter {
+        private final Link link;
+        private Channel channel;
+        private int id;
+
+        Uplink(Link link) {
+            this.link = link;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            channel = link.channel;
+            if (channel == null || !channel.isActive()) {
+                ctx.close();
+                return;
+            }
+            id = link.nextStream.incrementAndGet();
+            link.streams.put(id, ctx.channel());
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!channel.isActive()) {
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+                return;
+            }
+            writeFrames(channel, id, DATA, (ByteBuf) msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            channel.flush();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (channel != null && link.streams.remove(id, ctx.channel())) {
+                writeFrames(channel, id, CLOSE, Unpooled.EMPTY_BUFFER);
+                channel.flush();
+            }
+            ctx.fireChannelInactive();
+        }
+    }
+
+    /**
+     * Link connected by another node, serving the streams it opens
+     */
+    private final class ServedLink extends ChannelInboundHandlerAdapter {
+        // Event loop of the link only
+        private final Map<Integer, Served> streams = new HashMap<>();
+        private final Set<Served> unflushed = new HashSet<>();
+        private boolean authenticated;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ByteBuf frame = (ByteBuf) msg;
+            int id = frame.readInt();
+            byte type = frame.readByte();
+            if (!authenticated) {
+                authenticated = type == AUTH && MessageDigest.isEqual(token, ByteBufUtil.getBytes(frame));
+                frame.release();
+                if (!authenticated) {
+                    server.debugMsg(ctx, () -> "Cluster link rejected, wrong token");
+                    ctx.close();
+                }
+                return;
+            }
+            Served stream = streams.get(id);
+            if (type == CLOSE) {
+                frame.release();
+                if (stream != null) stream.channel.close();
+                return;
+            }
+            if (stream == null) {
+                streams.put(id, stream = new Served(ctx.channel(), id, this));
+            }
+            stream.write(frame);
+            unflushed.add(stream);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            for (Served stream : unflushed) {
+                if (stream.pending == null) stream.channel.flush();
+            }
+            unflushed.clear();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            for (Served stream : new ArrayList<>(streams.values())) {
+                stream.channel.close();
+            }
+            streams.clear();
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            server.logError(cause);
+            ctx.close();
+        }
+    }
+
+    /**
+     * Client end of a local connection to the server of this node, carrying a stream of a served link
+     */
+    private final class Served extends ChannelInboundHandlerAdapter {
+        final Channel link;
+        final int id;
+        final ServedLink served;
+        final Channel channel;
+        // Bytes received before the local connection is up
+        List<ByteBuf> pending = new ArrayList<>();
+
+        Served(Channel link, int id, ServedLink served) {
+            this.link = link;
+            this.id = id;
+            this.served = served;
+            this.channel = new Bootstrap()
+                    .group(link.eventLoop())
+                    .channel(LocalChannel.class)
+                    .handler(this)
+                    .connect(serveAddress)
+                    .channel();
+            channel.closeFuture().addListener($$$$ -> {
+                if (pending != null) {
+                    pending.forEach(ByteBuf::release);
+                    pending = null;
+                }
+                if (served.streams.remove(id, this) && link.isActive()) {
+                    writeFrames(link, id, CLOSE, Unpooled.EMPTY_BUFFER);
+                    link.flush();
+                }
+            });
+        }
+
+        void write(ByteBuf data) {
+            if (pending != null) {
+                pending.add(data);
+            } else {
+                channel.write(data);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            for (ByteBuf data : pending) {
+                ctx.write(data);
+            }
+            pending = null;
+            ctx.flush();
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            writeFrames(link, id, DATA, (ByteBuf) msg);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            link.flush();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Default store, sessions are heap objects in a {@link java.util.concurrent.ConcurrentHashMap} and captcha data is kept in buffers
+ * of {@code alloc}
+ */
+public class ConcurrentMapSessionStore extends AbstractMapSessionStore {
+    private final ByteBufAllocator alloc;
+
+    public ConcurrentMapSessionStore() {
+        this(ByteBufAllocator.DEFAULT);
+    }
+
+    public ConcurrentMapSessionStore(ByteBufAllocator alloc) {
+        this.alloc = alloc;
+    }
+
+    @Override
+    protected ByteBuf copyCaptchaData(ByteBuf captchaData) {
+        // Exact-size copy, a retained slice would pin the whole read buffer for the lifetime of the session
+        int len = captchaData.readableBytes();
+        return alloc.directBuffer(len, len).writeBytes(captchaData, captchaData.readerIndex(), len);
+    }
+
+    @Override
+    protected ByteBuf copyTicket(byte[] ticket) {
+        return Unpooled.wrappedBuffer(ticket.clone());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of fast process codes onto cluster nodes.
+ * <p>
+ * Each node is placed on the ring at {@code virtualNodes} points derived from its name, a code belongs to the
+ * node of the first point at or after its hash. Nodes agree on the owners as long as they list the same names,
+ * in any order, and adding or removing a node only moves the codes of its own points.
+ */
+public final class HashRing {
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param nodes owners are reported as indexes into this list
+     */
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) throw new IllegalArgumentException("No nodes");
+        TreeMap<Long, Integer> ring = new TreeMap<>();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash((nodes.get(node) + "#" + i).getBytes(StandardCharsets.UTF_8)), node);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new int[ring.size()];
+        int index = 0;
+        for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+            points[index] = point.getKey();
+            owners[index++] = point.getValue();
+        }
+    }
+
+    /**
+     * @return index of the node owning {@code fastcode}
+     */
+    public int owner(byte[] fastcode) {
+        int index = binarySearch(hash(fastcode));
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * @return index of the first point at or after {@code hash}, {@code points.length} if there is none
+     */
+    private int binarySearch(long hash) {
+        int low = 0, high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < hash) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * FNV-1a followed by the finalizer of MurmurHash3, short codes differing in one digit land far apart
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the sessions of another store and journals their changes to disk, so a restarted server recovers
+ * pending fast process codes, captcha data and undelivered tickets.
+ * <p>
+ * Changes are appended to memory-mapped segments by a writer thread that forces each batch to disk at once,
+ * callers never wait for the disk: a change is lost if the process dies within a batch (at most 10ms) of it.
+ * Once the segments since the last snapshot exceed {@code snapshotAfterBytes} a snapshot of the store is written
+ * in the background and older segments are deleted, recovery replays the snapshot and the segments after it.
+ * <p>
+ * Refreshes are not journaled: recovered sessions count as updated at recovery time, as their clients
+ * could not refresh them while the server was down. The server must arm their expiry,
+ * see {@link TCRSServerChannelInitializer#scheduleExpiryOfAll()}.
+ */
+public class JournaledSessionStore implements SessionStore {
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_SNAPSHOT_AFTER_BYTES = 256L * 1024 * 1024;
+
+    private static final byte ALLOCATE = 1, UPDATE = 2, COMPLETE = 3, EXPIRE = 4;
+
+    private final SessionStore delegate;
+    private final SessionJournal journal;
+    // A change and its record are ordered under the same lock, so replaying yields the order the store saw
+    private final Object[] locks = new Object[64];
+    private final long recoveredAt;
+    private final long recoveredRecords;
+    private final long recoveryMillis;
+
+    public JournaledSessionStore(SessionStore delegate, Path directory) throws IOException {
+        this(delegate, directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SNAPSHOT_AFTER_BYTES);
+    }
+
+    /**
+     * Recovers the sessions journaled in {@code directory} into {@code delegate}, which should be empty
+     */
+    public JournaledSessionStore(SessionStore delegate, Path directory, int segmentBytes, long snapshotAfterBytes) throws IOException {
+        this.delegate = delegate;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        long start = System.nanoTime();
+        recoveredAt = System.currentTimeMillis();
+        journal = new SessionJournal(directory, segmentBytes, snapshotAfterBytes);
+        recoveredRecords = journal.recover(this::replay, JournaledSessionStore::partition, this::snapshot, System.err::println);
+        recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private Object lock(byte[] fastcode) {
+        return locks[Arrays.hashCode(fastcode) & (locks.length - 1)];
+    }
+
+    private static ByteBuffer record(byte type, byte[] fastcode, int extraBytes) {
+        return ByteBuffer.wrap(new byte[5 + fastcode.length + extraBytes])
+                .put(type).putInt(fastcode.length).put(fastcode);
+    }
+
+    private static byte[] updateRecord(byte[] fastcode, int captchaType, ByteBuf captchaData) {
+        int len = captchaData == null ? 0 : captchaData.readableBytes();
+        ByteBuffer record = record(UPDATE, fastcode, 8 + len).putInt(captchaType).putInt(captchaData == null ? -1 : len);
+        if (captchaData != null) {
+            captchaData.getBytes(captchaData.readerIndex(), record.array(), record.position(), len);
+        }
+        return record.array();
+    }
+
+    private static byte[] completeRecord(byte[] fastcode, byte[] ticket) {
+        return record(COMPLETE, fastcode, 4 + ticket.length).putInt(ticket.length).put(ticket).array();
+    }
+
+    /**
+     * @return hash of the fast process code of {@code record}, the changes of a session are replayed in order
+     */
+    private static int partition(ByteBuffer record) {
+        int hash = 1;
+        for (int i = 5, end = 5 + record.getInt(1); i < end; i++) {
+            hash = 31 * hash + record.get(i);
+        }
+        return hash;
+    }
+
+    private void replay(ByteBuffer record) {
+        byte type = record.get();
+        byte[] fastcode = new byte[record.getInt()];
+        record.get(fastcode);
+        switch (type) {
+            case ALLOCATE:
+                delegate.allocate(fastcode, recoveredAt);
+                break;
+            case UPDATE: {
+                int captchaType = record.getInt();
+                int len = record.getInt();
+                ByteBuf captchaData = null;
+                if (len >= 0) {
+                    ByteBuffer data = record.slice();
+                    data.limit(len);
+                    captchaData = Unpooled.wrappedBuffer(data);
+                }
+                try {
+                    delegate.update(fastcode, captchaType, captchaData, recoveredAt);
+                } catch (SessionStoreFullException ignored) {
+                    // Smaller budget than before the restart, the session keeps the data recovered so far, as live updates would
+                } finally {
+                    if (captchaData != null) captchaData.release();
+                }
+                break;
+            }
+            case COMPLETE: {
+                byte[] ticket = new byte[record.getInt()];
+                record.get(ticket);
+                delegate.complete(fastcode, ticket, recoveredAt);
+                break;
+            }
+            case EXPIRE:
+                delegate.expire(fastcode, Long.MAX_VALUE);
+                break;
+            default:
+                throw new IllegalStateException("Unknown journal record " + type);
+        }
+    }
+
+    /**
+     * Writes each session as the records recreating it
+     */
+    private void snapshot(Consumer<byte[]> out) {
+        delegate.forEachFastcode(fastcode -> {
+            Session session = delegate.lookup(fastcode, true);
+            if (session == null) return;
+            try {
+                if (session.ticket != null) {
+                    out.accept(completeRecord(fastcode, session.ticket));
+                } else {
+                    out.accept(record(ALLOCATE, fastcode, 0).array());
+                }
+                if (session.hasCaptchaData()) {
+                    out.accept(updateRecord(fastcode, session.captchaType, session.captchaData));
+                }
+            } finally {
+                if (session.captchaData != null) session.captchaData.release();
+            }
+        });
+    }
+
+    @Override
+    public boolean allocate(byte[] fastcode, long now) {
+        byte[] record = record(ALLOCATE, fastcode, 0).array();
+        synchronized (lock(fastcode)) {
+            if (!delegate.allocate(fastcode, now)) return false;
+            journal.append(record);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean update(byte[] fastcode, int captchaType, ByteBuf captchaData, long now) {
+        byte[] record = updateRecord(fastcode, captchaType, captchaData);
+        synchronized (lock(fastcode)) {
+            if (!delegate.update(fastcode, captchaType, captchaData, now)) return false;
+            journal.append(record);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean refresh(byte[] fastcode, long now) {
+        return delegate.refresh(fastcode, now);
+    }
+
+    @Override
+    public boolean complete(byte[] fastcode, byte[] ticket, long now) {
+        byte[] record = completeRecord(fastcode, ticket);
+        synchronized (lock(fastcode)) {
+            boolean replaced = delegate.complete(fastcode, ticket, now);
+            journal.append(record);
+            return replaced;
+        }
+    }
+
+    @Override
+    public Session lookup(byte[] fastcode, boolean withData) {
+        return delegate.lookup(fastcode, withData);
+    }
+
+    @Override
+    public ByteBuf ticket(byte[] fastcode) {
+        return delegate.ticket(fastcode);
+    }
+
+    @Override
+    public boolean expire(byte[] fastcode, long lastUpdate) {
+        synchronized (lock(fastcode)) {
+            if (!delegate.expire(fastcode, lastUpdate)) return false;
+            journal.append(record(EXPIRE, fastcode, 0).array());
+        }
+        return true;
+    }
+
+    @Override
+    public void forEachFastcode(Consumer<byte[]> action) {
+        delegate.forEachFastcode(action);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    public SessionStore delegate() {
+        return delegate;
+    }
+
+    /**
+     * @return records replayed when this store was created
+     */
+    public long recoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public long recoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * @return bytes of changes not yet on disk
+     */
+    public long pendingBytes() {
+        return journal.pendingBytes();
+    }
+
+    /**
+     * Writes the pending changes, then releases the sessions
+     */
+    @Override
+    public void close() {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            delegate.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "recovered " + recoveredRecords + " records in " + recoveryMillis + "ms, "
+                + journal.commits() + " commits, " + pendingBytes() + " bytes pending";
+    }
+}
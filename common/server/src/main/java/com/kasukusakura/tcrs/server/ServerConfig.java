@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import com.kasukusakura.tcrs.network.TransportOptions;
+import io.netty.handler.flush.FlushConsolidationHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Settings of {@link ServerMain}, read from the properties file named by {@code -Dtcrs.config}
+ * and overridden by system properties of the same name.
+ * <pre>
+ * tcrs.port=12445
+ * tcrs.address=0.0.0.0
+ * tcrs.listeners=1       server channels bound to the port, more than one needs tcrs.reusePort=true
+ * tcrs.bossThreads=0     accepting threads, 0 for one per listener
+ * tcrs.workerThreads=0   threads serving connections, 0 for Netty's default
+ * tcrs.flushConsolidationLimit=256  flushes of a read batch sent together, 0 flushes each response
+ * tcrs.pendingSessionTtlMillis=60000    sessions without captcha data nor ticket
+ * tcrs.infoSessionTtlMillis=60000       sessions holding captcha data
+ * tcrs.completedSessionTtlMillis=60000  sessions holding a ticket
+ * tcrs.sessionStore=map  map keeps sessions on the heap, slab keeps captcha data and tickets off-heap
+ * tcrs.slabBudgetMB=256  direct memory of the slab store
+ * tcrs.journalDir=       directory journaling the sessions across restarts, none if empty
+ * tcrs.journalSegmentMB=64   size of the journal segments
+ * tcrs.snapshotAfterMB=256   journal written before the sessions are snapshotted and older segments deleted
+ * tcrs.clusterNodes=     host:port of the cluster links of all nodes, the same list on every node, none if empty
+ * tcrs.clusterNode=-1    index of this server in tcrs.clusterNodes
+ * tcrs.clusterToken=     secret shared by all nodes, required with tcrs.clusterNodes
+ * </pre>
+ * Socket options are those of {@link TransportOptions#fromProperties(Properties)}.
+ */
+public class ServerConfig {
+    public static final String FILE_PROPERTY = "tcrs.config";
+
+    public int port = -1;
+    public String address;
+    public int listeners = 1;
+    public int bossThreads;
+    public int workerThreads;
+    public int flushConsolidationLimit = FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
+    public long pendingSessionTtlMillis = 60_000L;
+    public long infoSessionTtlMillis = 60_000L;
+    public long completedSessionTtlMillis = 60_000L;
+    public String sessionStore = "map";
+    public long slabBudgetMB = 256;
+    public String journalDir;
+    public int journalSegmentMB = 64;
+    public long snapshotAfterMB = 256;
+    public List<String> clusterNodes = Collections.emptyList();
+    public int clusterNode = -1;
+    public String clusterToken = "";
+    public TransportOptions transportOptions = new TransportOptions();
+
+    public static ServerConfig load() throws IOException {
+        Properties properties = new Properties();
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file != null) {
+            try (InputStream stream = Files.newInputStream(Paths.get(file))) {
+                properties.load(stream);
+            }
+        }
+        properties.putAll(System.getProperties());
+        return fromProperties(properties);
+    }
+
+    public static ServerConfig fromProperties(Properties properties) {
+        ServerConfig config = new ServerConfig();
+        config.port = intProperty(properties, "tcrs.port", config.port);
+        config.address = properties.getProperty("tcrs.address");
+        config.listeners = intProperty(properties, "tcrs.listeners", config.listeners);
+        config.bossThreads = intProperty(properties, "tcrs.bossThreads", config.bossThreads);
+        config.workerThreads = intProperty(properties, "tcrs.workerThreads", config.workerThreads);
+        config.flushConsolidationLimit = intProperty(properties, "tcrs.flushConsolidationLimit", config.flushConsolidationLimit);
+        config.pendingSessionTtlMillis = longProperty(properties, "tcrs.pendingSessionTtlMillis", config.pendingSessionTtlMillis);
+        config.infoSessionTtlMillis = longProperty(properties, "tcrs.infoSessionTtlMillis", config.infoSessionTtlMillis);
+        config.completedSessionTtlMillis = longProperty(properties, "tcrs.completedSessionTtlMillis", config.completedSessionTtlMillis);
+        config.sessionStore = properties.getProperty("tcrs.sessionStore", config.sessionStore).trim();
+        config.slabBudgetMB = longProperty(properties, "tcrs.slabBudgetMB", config.slabBudgetMB);
+        String journalDir = properties.getProperty("tcrs.journalDir", "").trim();
+        config.journalDir = journalDir.isEmpty() ? null : journalDir;
+        config.journalSegmentMB = intProperty(properties, "tcrs.journalSegmentMB", config.journalSegmentMB);
+        config.snapshotAfterMB = longProperty(properties, "tcrs.snapshotAfterMB", config.snapshotAfterMB);
+        String clusterNodes = properties.getProperty("tcrs.clusterNodes", "").trim();
+        if (!clusterNodes.isEmpty()) {
+            config.clusterNodes = new ArrayList<>();
+            for (String node : clusterNodes.split(",")) {
+                config.clusterNodes.add(node.trim());
+            }
+        }
+        config.clusterNode = intProperty(properties, "tcrs.clusterNode", config.clusterNode);
+        config.clusterToken = properties.getProperty("tcrs.clusterToken", config.clusterToken);
+        config.transportOptions = TransportOptions.fromProperties(properties);
+        if (!config.sessionStore.equals("map") && !config.sessionStore.equals("slab")) {
+            throw new IllegalArgumentException("Unknown tcrs.sessionStore: " + config.sessionStore);
+        }
+        if (config.listeners < 1) {
+            throw new IllegalArgumentException("tcrs.listeners must be at least 1: " + config.listeners);
+        }
+        if (!config.clusterNodes.isEmpty() && (config.clusterNode < 0 || config.clusterNode >= config.clusterNodes.size())) {
+            throw new IllegalArgumentException("tcrs.clusterNode must be an index of tcrs.clusterNodes: " + config.clusterNode);
+        }
+        if (!config.clusterNodes.isEmpty() && config.clusterToken.isEmpty()) {
+            throw new IllegalArgumentException("tcrs.clusterToken is required with tcrs.clusterNodes");
+        }
+        return config;
+    }
+
+    /**
+     * @return the configured store, holding the sessions recovered from {@link #journalDir} if set
+     */
+    public SessionStore newSessionStore() throws IOException {
+        SessionStore store = sessionStore.equals("slab") ? new SlabSessionStore(slabBudgetMB * 1024 * 1024) : new ConcurrentMapSessionStore();
+        if (journalDir == null) return store;
+        return new JournaledSessionStore(store, Paths.get(journalDir), Math.multiplyExact(journalSegmentMB, 1024 * 1024), snapshotAfterMB * 1024 * 1024);
+    }
+
+    private static int intProperty(Properties properties, String key, int def) {
+        return Math.toIntExact(longProperty(properties, key, def));
+    }
+
+    private static long longProperty(Properties properties, String key, long def) {
+        String value = properties.getProperty(key);
+        if (value == null) return def;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+        }
+    }
+}
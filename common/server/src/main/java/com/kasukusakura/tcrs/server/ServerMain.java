@@ -7,46 +7,106 @@
  * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
  */
 
+
 package com.kasukusakura.tcrs.server;
 
+import com.kasukusakura.tcrs.network.Transport;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.EventLoopGroup;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public class ServerMain {
-    public static void main(String[] args) {
-        if (args.length < 1) {
-            System.err.println("java -jar txcaptcha-resolver-server.jar <port> [addr]");
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.load();
+        if (args.length >= 1) {
+            config.port = Integer.parseInt(args[0]);
+        }
+        if (args.length >= 2) {
+            config.address = args[1];
+        }
+        if (config.port < 0) {
+            System.err.println("java [-Dtcrs.config=server.properties] -jar txcaptcha-resolver-server.jar <port> [addr]");
             System.exit(1);
         }
-        int port = Integer.parseInt(args[0]);
 
-        ServerBootstrap bootstrap = new ServerBootstrap()
-                .channel(NioServerSocketChannel.class)
-                .group(new NioEventLoopGroup())
-                .childHandler(new TCRSServerChannelInitializer() {
-                    @Override
-                    protected void debugMsg(ChannelHandlerContext ctx, Supplier<String> msg) {
-                        System.out.println(ctx.channel() + " || " + msg.get());
-                    }
-                });
+        Transport transport = Transport.best();
+        int listeners = config.listeners;
+        if (listeners > 1) {
+            if (transport.supportsReusePort()) {
+                config.transportOptions.setReusePort(true);
+            } else {
+                System.err.println("SO_REUSEPORT is not supported by the " + transport + " transport, binding a single listener");
+                listeners = 1;
+            }
+        }
+        int bossThreads = config.bossThreads > 0 ? config.bossThreads : listeners;
+        SessionStore store = config.newSessionStore();
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(config.workerThreads);
+        JournaledSessionStore journaled = store instanceof JournaledSessionStore ? (JournaledSessionStore) store : null;
+        SessionStore sessions = journaled != null ? journaled.delegate() : store;
+        if (journaled != null) {
+            System.out.println("Session journal " + config.journalDir + ": " + store.size() + " sessions, " + journaled);
+        }
+        if (sessions instanceof SlabSessionStore || journaled != null) {
+            SlabAllocator slabs = sessions instanceof SlabSessionStore ? ((SlabSessionStore) sessions).slabs() : null;
+            workerGroup.scheduleAtFixedRate(() -> System.out.println("Session store: " + store.size() + " sessions"
+                    + (slabs != null ? ", " + slabs : "") + (journaled != null ? ", journal " + journaled : "")), 1, 1, TimeUnit.MINUTES);
+        }
+
+        TCRSServerChannelInitializer initializer = new TCRSServerChannelInitializer() {
+            {
+                sessionStore = store;
+                pendingSessionTtlMillis = config.pendingSessionTtlMillis;
+                infoSessionTtlMillis = config.infoSessionTtlMillis;
+                completedSessionTtlMillis = config.completedSessionTtlMillis;
+                flushConsolidationLimit = config.flushConsolidationLimit;
+            }
 
-        ChannelFuture bootstrapFuture;
-        if (args.length >= 2) {
-            bootstrapFuture = bootstrap.bind(args[0], port);
-        } else {
-            bootstrapFuture = bootstrap.bind(port);
+            @Override
+            protected void debugMsg(ChannelHandlerContext ctx, Supplier<String> msg) {
+                System.out.println(ctx.channel() + " || " + msg.get());
+            }
+        };
+        initializer.scheduleExpiryOfAll();
+        if (!config.clusterNodes.isEmpty()) {
+            ClusterNode cluster = new ClusterNode(config.clusterNodes, config.clusterNode, config.clusterToken, initializer, workerGroup, config.transportOptions);
+            // Links and forwarded streams are served before the first client connects
+            initializer.cluster = cluster.start();
+            System.out.println("Cluster node " + config.clusterNode + " of " + config.clusterNodes);
         }
-        bootstrapFuture.awaitUninterruptibly();
-        if (!bootstrapFuture.isSuccess()) {
-            bootstrapFuture.cause().printStackTrace(System.err);
-            System.exit(1);
-        } else {
-            System.out.println("Server started on " + bootstrapFuture.channel().localAddress());
+        if (journaled != null) {
+            // Flushes the journal on a clean shutdown, so nothing is lost
+            Runtime.getRuntime().addShutdownHook(new Thread(journaled::close, "tcrs-journal-close"));
+        }
+
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap(), config.transportOptions)
+                .group(transport.newEventLoopGroup(bossThreads), workerGroup)
+                .childHandler(initializer);
+
+        // Each bind registers its server channel on the next boss event loop
+        List<ChannelFuture> bindFutures = new ArrayList<>(listeners);
+        for (int i = 0; i < listeners; i++) {
+            if (config.address != null) {
+                bindFutures.add(bootstrap.bind(config.address, config.port));
+            } else {
+                bindFutures.add(bootstrap.bind(config.port));
+            }
+        }
+        for (ChannelFuture bindFuture : bindFutures) {
+            bindFuture.awaitUninterruptibly();
+            if (!bindFuture.isSuccess()) {
+                bindFuture.cause().printStackTrace(System.err);
+                System.exit(1);
+            }
         }
+        System.out.println("Server started on " + bindFutures.get(0).channel().localAddress() + " with " + transport + " transport, "
+                + listeners + " listeners, " + bossThreads + " boss threads, "
+                + (config.workerThreads > 0 ? config.workerThreads : "default") + " worker threads, " + config.sessionStore + " session store");
     }
 }
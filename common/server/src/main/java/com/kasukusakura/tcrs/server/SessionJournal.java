@@ -0,0 +1,435 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link JournaledSessionStore}, memory-mapped segments of records plus snapshots.
+ * <p>
+ * A record is {@code int length, int crc32, byte[length] payload}, a zero length ends a segment.
+ * {@code snapshot-N.snap} holds the state when segment {@code journal-N.log} was started, recovery replays it
+ * and the segments from {@code N} on. Replaying records applied before the snapshot was taken must be harmless.
+ * An unreadable record ends the journal, recovery cuts its segment there and deletes the later segments.
+ * <p>
+ * Appends only queue the record. A writer thread copies queued records into the current segment and
+ * forces them to disk once per batch, snapshots are written by another thread.
+ */
+final class SessionJournal implements AutoCloseable {
+    private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-", SNAPSHOT_SUFFIX = ".snap";
+    private static final int HEADER_BYTES = 8;
+    // Upper bounds of a group commit
+    private static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long snapshotAfterBytes;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final ExecutorService snapshots = Executors.newSingleThreadExecutor(new DefaultThreadFactory("tcrs-journal-snapshot", true));
+    private Consumer<Consumer<byte[]>> snapshotSource;
+    private Consumer<String> onFailure;
+    private Thread writer;
+    private volatile boolean closed;
+    private volatile boolean snapshotRunning;
+    private volatile Throwable failure;
+
+    // Owned by the writer thread once started
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long bytesSinceSnapshot;
+    private final CRC32 crc = new CRC32();
+
+    SessionJournal(Path directory, int segmentBytes, long snapshotAfterBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+        this.snapshotAfterBytes = snapshotAfterBytes;
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    private Path snapshotPath(long sequence) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * @return sequences of the files named {@code prefix<sequence>suffix}, ascending
+     */
+    private long[] list(String prefix, String suffix) throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return sequences.stream().mapToLong(Long::longValue).sorted().toArray();
+    }
+
+    /**
+     * Replays the latest snapshot and the segments after it, then starts the writer.
+     * Records of the same partition are applied in order, those of different partitions concurrently.
+     *
+     * @param apply     called with the payload of each record
+     * @param partition partition of a record payload, any int
+     * @param snapshot  writes the current state as records, each passed to its argument
+     * @param onFailure told about unreadable records and failed writes
+     * @return replayed records
+     */
+    long recover(Consumer<ByteBuffer> apply, ToIntFunction<ByteBuffer> partition,
+                 Consumer<Consumer<byte[]>> snapshot, Consumer<String> onFailure) throws IOException {
+        this.snapshotSource = snapshot;
+        this.onFailure = onFailure;
+        long[] snapshotSequences = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long base = snapshotSequences.length == 0 ? 0 : snapshotSequences[snapshotSequences.length - 1];
+        long next = base;
+        Replay replay = new Replay(apply, partition, Runtime.getRuntime().availableProcessors());
+        try {
+            if (snapshotSequences.length != 0) {
+                replay.file(snapshotPath(base));
+                // Unlike segments, snapshots are fully written before they are renamed into place
+                replay.intact = true;
+                replay.bytes = 0;
+            }
+            for (long sequence : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+                if (sequence < base) continue;
+                if (replay.intact) {
+                    replay.file(segmentPath(sequence));
+                    if (!replay.intact) {
+                        // Cut at the last readable record, the next recovery reads on into the segments written from now on
+                        try (FileChannel file = FileChannel.open(segmentPath(sequence), StandardOpenOption.WRITE)) {
+                            file.truncate(replay.intactBytes);
+                            file.force(true);
+                        }
+                    }
+                } else {
+                    // Later segments miss the changes lost with the unreadable record, the next recovery must not apply them either
+                    onFailure.accept("Deleted " + segmentPath(sequence) + " after an unreadable record");
+                    Files.delete(segmentPath(sequence));
+                }
+                next = sequence + 1;
+            }
+        } finally {
+            replay.close();
+        }
+
+        sequence = next;
+        bytesSinceSnapshot = replay.bytes;
+        openSegment(HEADER_BYTES);
+        writer = new DefaultThreadFactory("tcrs-journal", true).newThread(this::run);
+        writer.start();
+        return replay.records;
+    }
+
+    private final class Replay {
+        private final Consumer<ByteBuffer> apply;
+        private final ToIntFunction<ByteBuffer> partition;
+        private final ExecutorService workers;
+        // Offset and length of the records of each partition, in the current file
+        private final int[][] offsets;
+        private final int[] counts;
+        private final CRC32 check = new CRC32();
+        long bytes;
+        boolean intact = true;
+        // Length of the readable records of the file that was not intact
+        long intactBytes;
+        long records;
+
+        Replay(Consumer<ByteBuffer> apply, ToIntFunction<ByteBuffer> partition, int parallelism) {
+            this.apply = apply;
+            this.partition = partition;
+            this.workers = parallelism > 1 ? Executors.newFixedThreadPool(parallelism, new DefaultThreadFactory("tcrs-journal-replay", true)) : null;
+            this.offsets = new int[parallelism][64];
+            this.counts = new int[parallelism];
+        }
+
+        void file(Path path) throws IOException {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = file.size();
+                if (size == 0) return;
+                MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                try {
+                    scan(path, buffer);
+                    applyAll(path, buffer);
+                } finally {
+                    PlatformDependent.freeDirectBuffer(buffer);
+                }
+            }
+        }
+
+        private void scan(Path path, MappedByteBuffer buffer) {
+            Arrays.fill(counts, 0);
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt();
+                if (length == 0) break;
+                int expected = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    onFailure.accept("Truncated record in " + path + " at " + (buffer.position() - HEADER_BYTES));
+                    intact = false;
+                    intactBytes = buffer.position() - HEADER_BYTES;
+                    return;
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                check.reset();
+                check.update(payload.duplicate());
+                if ((int) check.getValue() != expected) {
+                    onFailure.accept("Corrupted record in " + path + " at " + (buffer.position() - HEADER_BYTES));
+                    intact = false;
+                    intactBytes = buffer.position() - HEADER_BYTES;
+                    return;
+                }
+                int p = Math.floorMod(partition.applyAsInt(payload), counts.length);
+                int[] list = offsets[p];
+                if (counts[p] + 2 > list.length) {
+                    list = offsets[p] = Arrays.copyOf(list, list.length * 2);
+                }
+                list[counts[p]++] = buffer.position();
+                list[counts[p]++] = length;
+                buffer.position(buffer.position() + length);
+                bytes += HEADER_BYTES + length;
+                records++;
+            }
+        }
+
+        private void applyAll(Path path, MappedByteBuffer buffer) throws IOException {
+            if (workers == null) {
+                applyPartition(buffer, 0);
+                return;
+            }
+            List<Future<?>> futures = new ArrayList<>(counts.length);
+            for (int p = 0; p < counts.length; p++) {
+                int index = p;
+                futures.add(workers.submit(() -> applyPartition(buffer, index)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Replaying " + path);
+                } catch (ExecutionException e) {
+                    throw new IOException("Replaying " + path + " failed", e.getCause());
+                }
+            }
+        }
+
+        private void applyPartition(MappedByteBuffer buffer, int index) {
+            int[] list = offsets[index];
+            for (int i = 0, count = counts[index]; i < count; i += 2) {
+                ByteBuffer payload = buffer.duplicate();
+                payload.limit(list[i] + list[i + 1]).position(list[i]);
+                apply.accept(payload.slice());
+            }
+        }
+
+        void close() {
+            if (workers != null) workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues {@code record} for the writer, never blocks
+     */
+    void append(byte[] record) {
+        queue.add(record);
+        pendingBytes.addAndGet(record.length);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * @return bytes queued but not yet on disk
+     */
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * @return group commits so far
+     */
+    long commits() {
+        return commits.get();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                boolean stopping = closed;
+                boolean committed = commitBatch();
+                if (!committed && stopping) return;
+                // After every batch, under sustained load the queue never runs empty
+                maybeSnapshot();
+                if (!committed) LockSupport.parkNanos(this, MAX_BATCH_NANOS);
+            } catch (Throwable throwable) {
+                // The records of the failed batch are lost, a snapshot taken once writing works again covers them
+                if (failure == null) onFailure.accept("Journal write failed: " + throwable);
+                failure = throwable;
+                // Closing does not wait for the disk to come back, close() reports the failure
+                if (closed) return;
+                bytesSinceSnapshot = snapshotAfterBytes;
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * @return false if there was nothing to write
+     */
+    private boolean commitBatch() throws IOException {
+        byte[] record = queue.poll();
+        if (record == null) return false;
+        long start = System.nanoTime();
+        int batchBytes = 0;
+        do {
+            write(record);
+            pendingBytes.addAndGet(-record.length);
+            batchBytes += record.length;
+            if (batchBytes >= MAX_BATCH_BYTES || System.nanoTime() - start >= MAX_BATCH_NANOS) break;
+            record = queue.poll();
+        } while (record != null);
+        segment.force();
+        failure = null;
+        commits.incrementAndGet();
+        bytesSinceSnapshot += batchBytes;
+        return true;
+    }
+
+    private void write(byte[] record) throws IOException {
+        if (segment == null || segment.remaining() < HEADER_BYTES + record.length) {
+            rotate(HEADER_BYTES + record.length);
+        }
+        crc.reset();
+        crc.update(record, 0, record.length);
+        segment.putInt(record.length).putInt((int) crc.getValue()).put(record);
+    }
+
+    private void openSegment(int minBytes) throws IOException {
+        channel = FileChannel.open(segmentPath(sequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Mapping extends the file with zeros, which end the segment for the reader
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, minBytes));
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null) return;
+        int written = segment.position();
+        segment.force();
+        PlatformDependent.freeDirectBuffer(segment);
+        segment = null;
+        // Drops the unused zeros, the end of the file also ends the segment for the reader
+        channel.truncate(written);
+        channel.close();
+        if (written == 0) Files.deleteIfExists(segmentPath(sequence));
+    }
+
+    private void rotate(int minBytes) throws IOException {
+        closeSegment();
+        sequence++;
+        openSegment(minBytes);
+    }
+
+    private void maybeSnapshot() throws IOException {
+        if (snapshotRunning || bytesSinceSnapshot < snapshotAfterBytes) return;
+        // The snapshot covers everything before the new segment
+        rotate(HEADER_BYTES);
+        long base = sequence;
+        bytesSinceSnapshot = 0;
+        snapshotRunning = true;
+        snapshots.execute(() -> {
+            try {
+                writeSnapshot(base);
+            } catch (Throwable throwable) {
+                onFailure.accept("Snapshot " + base + " failed: " + throwable);
+            } finally {
+                snapshotRunning = false;
+            }
+        });
+    }
+
+    private void writeSnapshot(long base) throws IOException {
+        Path tmp = directory.resolve(SNAPSHOT_PREFIX + base + ".tmp");
+        CRC32 check = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1024 * 1024))) {
+            IOException[] error = new IOException[1];
+            snapshotSource.accept(record -> {
+                if (error[0] != null) return;
+                check.reset();
+                check.update(record, 0, record.length);
+                try {
+                    out.writeInt(record.length);
+                    out.writeInt((int) check.getValue());
+                    out.write(record);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            });
+            if (error[0] != null) throw error[0];
+            out.writeInt(0);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(tmp, snapshotPath(base), StandardCopyOption.ATOMIC_MOVE);
+        for (long sequence : list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (sequence < base) Files.deleteIfExists(segmentPath(sequence));
+        }
+        for (long sequence : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (sequence < base) Files.deleteIfExists(snapshotPath(sequence));
+        }
+    }
+
+    /**
+     * Writes the queued records and stops, waiting for a running snapshot
+     *
+     * @throws IOException if the last write failed, records queued since are lost
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+            snapshots.shutdown();
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSegment();
+        Throwable failed = failure;
+        if (failed != null) throw new IOException("Journal write failed", failed);
+    }
+}
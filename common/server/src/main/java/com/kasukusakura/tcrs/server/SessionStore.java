@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.function.Consumer;
+
+/**
+ * Storage of the sessions of {@link TCRSServerChannelInitializer}, keyed by fast process code.
+ * <p>
+ * Implementations are called from all event loops and the expiry timer at once. They copy the arrays and buffers
+ * they keep, callers may reuse them after the call returns. Times are {@link System#currentTimeMillis()}.
+ * <p>
+ * Expiry is driven by the server: it reads {@link Session#lastUpdate} and calls {@link #expire(byte[], long)}
+ * once the session outlived its TTL.
+ */
+public interface SessionStore extends AutoCloseable {
+    /**
+     * Creates a session without captcha data nor ticket
+     *
+     * @return false if {@code fastcode} is taken
+     */
+    boolean allocate(byte[] fastcode, long now);
+
+    /**
+     * Replaces the captcha data of a session, {@code captchaData} may be {@code null}
+     *
+     * @return false if there is no such session
+     * @throws SessionStoreFullException if the store has no room for the data, the session keeps its previous data
+     */
+    boolean update(byte[] fastcode, int captchaType, ByteBuf captchaData, long now);
+
+    /**
+     * Keeps a session alive without changing it
+     *
+     * @return false if there is no such session
+     */
+    boolean refresh(byte[] fastcode, long now);
+
+    /**
+     * Replaces the session of {@code fastcode}, if any, by a session holding {@code ticket}
+     *
+     * @return true if it replaced a session
+     */
+    boolean complete(byte[] fastcode, byte[] ticket, long now);
+
+    /**
+     * @param withData whether to fill {@link Session#captchaData}
+     * @return a snapshot of the session, {@code null} if there is none
+     */
+    Session lookup(byte[] fastcode, boolean withData);
+
+    /**
+     * Ticket of a completed session, stores keeping tickets off-heap hand out a view instead of a copy
+     *
+     * @return the ticket released by the caller, {@code null} if there is no completed session
+     */
+    default ByteBuf ticket(byte[] fastcode) {
+        Session session = lookup(fastcode, true);
+        if (session == null) return null;
+        if (session.captchaData != null) session.captchaData.release();
+        return session.ticket == null ? null : Unpooled.wrappedBuffer(session.ticket);
+    }
+
+    /**
+     * Removes the session of {@code fastcode} unless it was updated, refreshed or completed after {@code lastUpdate}
+     *
+     * @return true if it removed the session
+     */
+    boolean expire(byte[] fastcode, long lastUpdate);
+
+    /**
+     * Visits the fast process codes of all sessions, missing or repeating none that exist during the whole call
+     */
+    void forEachFastcode(Consumer<byte[]> action);
+
+    int size();
+
+    /**
+     * Releases all sessions
+     */
+    @Override
+    void close();
+
+    /**
+     * Snapshot of a session
+     */
+    final class Session {
+        public boolean completed;
+        /**
+         * Only filled by {@code lookup(fastcode, true)}. {@code null} until the session is completed.
+         */
+        public byte[] ticket;
+        public int captchaType;
+        /**
+         * Only filled by {@code lookup(fastcode, true)}, released by the caller. {@code null} if there is no data.
+         */
+        public ByteBuf captchaData;
+        /**
+         * {@link com.kasukusakura.tcrs.network.packets.PkgProcessCodeInfo.ConditionalUpdate#hash(ByteBuf)} of the captcha data
+         */
+        public long captchaHash;
+        /**
+         * Version of the captcha data, {@code 0} if there is none. Never reused by a later update in this store, even across sessions.
+         */
+        public int infoVersion;
+        public long lastUpdate;
+
+        public boolean hasCaptchaData() {
+            return infoVersion != 0;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+/**
+ * Thrown by {@link SessionStore#update} when the store has no room left for the captcha data
+ */
+public class SessionStoreFullException extends RuntimeException {
+    public SessionStoreFullException(String message) {
+        // Thrown for every update refused under memory pressure, the stack trace tells nothing
+        super(message, null, false, false);
+    }
+}
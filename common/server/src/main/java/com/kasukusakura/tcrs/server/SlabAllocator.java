@@ -0,0 +1,322 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Off-heap memory of {@link SlabSessionStore}, split into slabs of {@link #SLAB_BYTES} direct bytes.
+ * <p>
+ * Each slab serves one size class, powers of two from {@link #MIN_CHUNK_BYTES} to {@link #MAX_CHUNK_BYTES}. A slab whose
+ * last blob is released goes back to the budget, except one empty slab per size class kept for the next blobs until
+ * the budget runs out.
+ * Larger blobs get a direct buffer of their own. Slabs and large blobs together never exceed the budget.
+ * <p>
+ * Blobs are {@link ByteBuf}s of their chunk; the chunk is reused once the blob and all its derived buffers are released.
+ */
+public final class SlabAllocator {
+    public static final int SLAB_BYTES = 1024 * 1024;
+    public static final int MIN_CHUNK_BYTES = 64;
+    public static final int MAX_CHUNK_BYTES = 64 * 1024;
+
+    private final ByteBufAllocator alloc;
+    private final long budgetBytes;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong largeBytes = new AtomicLong();
+    private final LongAdder usedBytes = new LongAdder();
+    private final LongAdder blobs = new LongAdder();
+    private final LongAdder failedAllocations = new LongAdder();
+
+    /**
+     * @param alloc       allocator of the slabs and of the large blobs
+     * @param budgetBytes upper bound of the direct memory held by slabs and large blobs
+     */
+    public SlabAllocator(ByteBufAllocator alloc, long budgetBytes) {
+        this.alloc = alloc;
+        this.budgetBytes = budgetBytes;
+        List<SizeClass> classes = new ArrayList<>();
+        for (int size = MIN_CHUNK_BYTES; size <= MAX_CHUNK_BYTES; size <<= 1) {
+            classes.add(new SizeClass(size));
+        }
+        this.sizeClasses = classes.toArray(new SizeClass[0]);
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            long reserved = reservedBytes.get();
+            if (reserved + bytes > budgetBytes) return false;
+            if (reservedBytes.compareAndSet(reserved, reserved + bytes)) return true;
+        }
+    }
+
+    private SizeClass sizeClass(int length) {
+        int index = length <= MIN_CHUNK_BYTES ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_CHUNK_BYTES);
+        return index < sizeClasses.length ? sizeClasses[index] : null;
+    }
+
+    /**
+     * @return an off-heap copy of the readable bytes of {@code data}, {@code null} if the budget does not allow it
+     */
+    public ByteBuf copyOf(ByteBuf data) {
+        ByteBuf blob = allocate(data.readableBytes());
+        if (blob != null) blob.setBytes(0, data, data.readerIndex(), data.readableBytes());
+        return blob;
+    }
+
+    /**
+     * @return an off-heap copy of {@code data}, {@code null} if the budget does not allow it
+     */
+    public ByteBuf copyOf(byte[] data) {
+        ByteBuf blob = allocate(data.length);
+        if (blob != null) blob.setBytes(0, data);
+        return blob;
+    }
+
+    /**
+     * @return a blob of {@code length} readable bytes to fill, {@code null} if the budget does not allow it
+     */
+    private ByteBuf allocate(int length) {
+        SizeClass sizeClass = sizeClass(length);
+        ByteBuf blob;
+        if (sizeClass != null) {
+            blob = sizeClass.allocate(length);
+            if (blob == null && releaseEmptySlabs()) blob = sizeClass.allocate(length);
+        } else if (reserve(length) || releaseEmptySlabs() && reserve(length)) {
+            largeBytes.addAndGet(length);
+            ByteBuf buf = alloc.directBuffer(length, length);
+            blob = new Blob(buf.nioBuffer(0, length), length) {
+                @Override
+                void free() {
+                    buf.release();
+                    largeBytes.addAndGet(-length);
+                    reservedBytes.addAndGet(-length);
+                }
+            };
+        } else {
+            blob = null;
+        }
+        if (blob == null) {
+            failedAllocations.increment();
+            return null;
+        }
+        usedBytes.add(length);
+        blobs.increment();
+        return blob;
+    }
+
+    /**
+     * @return true if the empty slabs kept by the size classes gave some budget back
+     */
+    private boolean releaseEmptySlabs() {
+        boolean released = false;
+        // One size class at a time, never under the lock of another one
+        for (SizeClass sizeClass : sizeClasses) {
+            released |= sizeClass.releaseEmptySlab();
+        }
+        return released;
+    }
+
+    private abstract class Blob extends UnpooledDirectByteBuf {
+        private final int length;
+
+        Blob(ByteBuffer region, int length) {
+            super(alloc, region, length);
+            this.length = length;
+        }
+
+        abstract void free();
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            usedBytes.add(-length);
+            blobs.decrement();
+            free();
+        }
+    }
+
+    private final class SizeClass {
+        final int chunkBytes;
+        final int chunksPerSlab;
+        // null where a released slab left its index to the next one
+        private ByteBuf[] slabs = new ByteBuf[0];
+        // Live blobs of each slab
+        private int[] live = new int[0];
+        private int slabCount;
+        // Index of the empty slab kept, -1 if there is none
+        private int emptySlab = -1;
+        // Stack of free chunks, slab index * chunksPerSlab + chunk index
+        private int[] free = new int[0];
+        private int freeCount;
+        private boolean closed;
+
+        SizeClass(int chunkBytes) {
+            this.chunkBytes = chunkBytes;
+            this.chunksPerSlab = SLAB_BYTES / chunkBytes;
+        }
+
+        synchronized ByteBuf allocate(int length) {
+            if (closed || freeCount == 0 && !grow()) return null;
+            int chunk = free[--freeCount];
+            int index = chunk / chunksPerSlab;
+            if (live[index]++ == 0 && emptySlab == index) emptySlab = -1;
+            // Each blob holds its slab, a released slab is freed once its last blob is released
+            ByteBuf slab = slabs[index].retain();
+            return new Blob(slab.nioBuffer((chunk % chunksPerSlab) * chunkBytes, length), length) {
+                @Override
+                void free() {
+                    recycle(chunk);
+                    slab.release();
+                }
+            };
+        }
+
+        private boolean grow() {
+            if (!reserve(SLAB_BYTES)) return false;
+            int index = 0;
+            while (index < slabs.length && slabs[index] != null) index++;
+            if (index == slabs.length) {
+                slabs = Arrays.copyOf(slabs, index + 1);
+                live = Arrays.copyOf(live, index + 1);
+            }
+            slabs[index] = alloc.directBuffer(SLAB_BYTES, SLAB_BYTES);
+            slabCount++;
+            int first = index * chunksPerSlab;
+            // Only called with no free chunk left, there is nothing to keep
+            if (free.length < slabs.length * chunksPerSlab) {
+                free = new int[slabs.length * chunksPerSlab];
+            }
+            // Lowest chunks on top, blobs allocated together stay close
+            for (int i = chunksPerSlab - 1; i >= 0; i--) {
+                free[freeCount++] = first + i;
+            }
+            return true;
+        }
+
+        synchronized void recycle(int chunk) {
+            if (closed) return;
+            free[freeCount++] = chunk;
+            int index = chunk / chunksPerSlab;
+            if (--live[index] > 0) return;
+            // Keeping one empty slab, blobs coming and going at a slab boundary do not allocate it again each time
+            if (emptySlab == -1) {
+                emptySlab = index;
+            } else {
+                release(index);
+            }
+        }
+
+        /**
+         * Drops the chunks of an empty slab from the free ones and gives it back to the budget
+         */
+        private void release(int index) {
+            int kept = 0;
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] / chunksPerSlab != index) free[kept++] = free[i];
+            }
+            freeCount = kept;
+            slabs[index].release();
+            slabs[index] = null;
+            slabCount--;
+            reservedBytes.addAndGet(-SLAB_BYTES);
+        }
+
+        synchronized boolean releaseEmptySlab() {
+            if (closed || emptySlab == -1) return false;
+            release(emptySlab);
+            emptySlab = -1;
+            return true;
+        }
+
+        synchronized int slabCount() {
+            return slabCount;
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (ByteBuf slab : slabs) {
+                if (slab != null) slab.release();
+            }
+            reservedBytes.addAndGet(-(long) slabCount * SLAB_BYTES);
+            slabs = new ByteBuf[0];
+            slabCount = 0;
+            free = new int[0];
+            freeCount = 0;
+        }
+    }
+
+    public long budgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * @return direct bytes held by slabs and large blobs
+     */
+    public long reservedBytes() {
+        return reservedBytes.get();
+    }
+
+    /**
+     * @return bytes of the live blobs, the rest of {@link #reservedBytes()} is free chunks and rounding
+     */
+    public long usedBytes() {
+        return usedBytes.sum();
+    }
+
+    public long largeBytes() {
+        return largeBytes.get();
+    }
+
+    public long blobCount() {
+        return blobs.sum();
+    }
+
+    public int slabCount() {
+        int count = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            count += sizeClass.slabCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return allocations refused because of the budget
+     */
+    public long failedAllocations() {
+        return failedAllocations.sum();
+    }
+
+    /**
+     * Releases the slabs, those holding blobs still referenced are freed with their last blob
+     */
+    void close() {
+        for (SizeClass sizeClass : sizeClasses) {
+            sizeClass.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("slabs %d, large blobs %.1f MB, used %.1f of %.1f MB reserved, budget %.1f MB, blobs %d, failed allocations %d",
+                slabCount(), largeBytes() / 1048576.0, usedBytes() / 1048576.0, reservedBytes() / 1048576.0,
+                budgetBytes / 1048576.0, blobCount(), failedAllocations());
+    }
+}
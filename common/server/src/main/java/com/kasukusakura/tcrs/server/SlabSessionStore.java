@@ -0,0 +1,58 @@
+/*
+ * Copyright 2021-2022 KasukuSakura Technologies and contributors.
+ *
+ * 此源代码的使用受 GNU AFFERO GENERAL PUBLIC LICENSE version 3 许可证的约束, 可以在以下链接找到该许可证.
+ * Use of this source code is governed by the GNU AGPLv3 license that can be found through the following link.
+ *
+ * https://github.com/KasukuSakura/txcaptcha-resolver/blob/main/LICENSE
+ */
+
+
+package com.kasukusakura.tcrs.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Store keeping captcha data and tickets off-heap in the slabs of a {@link SlabAllocator}, the heap only holds
+ * the index and small handles. Looked up captcha data and {@link #ticket(byte[])} are views of the slab, responses are
+ * written from there.
+ * <p>
+ * Updates beyond the memory budget throw {@link SessionStoreFullException}. Tickets beyond it are kept on the heap.
+ */
+public class SlabSessionStore extends AbstractMapSessionStore {
+    private final SlabAllocator slabs;
+
+    public SlabSessionStore(long budgetBytes) {
+        this(ByteBufAllocator.DEFAULT, budgetBytes);
+    }
+
+    public SlabSessionStore(ByteBufAllocator alloc, long budgetBytes) {
+        this.slabs = new SlabAllocator(alloc, budgetBytes);
+    }
+
+    /**
+     * Memory usage of this store
+     */
+    public SlabAllocator slabs() {
+        return slabs;
+    }
+
+    @Override
+    protected ByteBuf copyCaptchaData(ByteBuf captchaData) {
+        return slabs.copyOf(captchaData);
+    }
+
+    @Override
+    protected ByteBuf copyTicket(byte[] ticket) {
+        ByteBuf blob = slabs.copyOf(ticket);
+        return blob != null ? blob : Unpooled.wrappedBuffer(ticket.clone());
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        slabs.close();
+    }
+}
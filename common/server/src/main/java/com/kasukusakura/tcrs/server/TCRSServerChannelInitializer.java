@@ -11,24 +11,56 @@ package com.kasukusakura.tcrs.server;
 
 import com.kasukusakura.tcrs.network.PkgCodec;
 import com.kasukusakura.tcrs.network.packets.*;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timer;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import io.netty.util.concurrent.ScheduledFuture;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.Random;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
-    protected PkgCodec codec = new PkgCodec();
+    protected PkgCodec codec = new PkgCodec()
+            .setRetainedPayloads(true)
+            .setPooledPackets(true)
+            .setAggregateWrites(PkgCodec.DEFAULT_AGGREGATE_BYTES)
+            .setCompressionThreshold(PkgCodec.DEFAULT_COMPRESSION_THRESHOLD)
+            .setChunkedTransfers(PkgCodec.DEFAULT_MAX_TRANSFER_BYTES)
+            .setFramingV2(true)
+            .addCapabilities(PkgKeepAlive.Hello.CAP_CONDITIONAL_UPDATE | PkgKeepAlive.Hello.CAP_VERSIONED_QUERY);
     protected Random random = new Random();
-    private final Map<String, CusPkgRsp> processes = new ConcurrentHashMap<>();
+    /**
+     * Set before the first channel is initialized
+     */
+    protected SessionStore sessionStore = new ConcurrentMapSessionStore();
+    /**
+     * Node of the cluster this server is part of, {@code null} when it serves all fast process codes.
+     * Set before the first channel is initialized.
+     */
+    protected ClusterNode cluster;
+    /**
+     * Channels waiting for the ticket of a session, by fast process code
+     */
+    private final Map<String, Set<TicketWaiter>> waiters = new ConcurrentHashMap<>();
+    /**
+     * Deadline of the expiry timeout armed for a session, by fast process code
+     */
+    private final Map<String, Long> expiryDeadlines = new ConcurrentHashMap<>();
     private static final byte[] KEYS = (""
             + "1234567890"
             + "3062154987"
@@ -36,6 +68,41 @@ public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
             + "0316258974"
     ).getBytes(StandardCharsets.ISO_8859_1);
 
+    /**
+     * Expires the sessions of all servers in this process. Refreshing a session only moves its deadline,
+     * which is checked when its timeout fires.
+     */
+    private static final Timer SESSION_EXPIRY = new HashedWheelTimer(
+            new DefaultThreadFactory("tcrs-session-expiry", true), 1, TimeUnit.SECONDS, 512
+    );
+
+    private static final AttributeKey<Set<LongPoll>> LONG_POLLS = AttributeKey.valueOf(TCRSServerChannelInitializer.class, "LONG_POLLS");
+    /**
+     * Subscriptions of a channel waiting for their ticket, by fast process code
+     */
+    private static final AttributeKey<Map<String, Subscription>> SUBSCRIPTIONS = AttributeKey.valueOf(TCRSServerChannelInitializer.class, "SUBSCRIPTIONS");
+    /**
+     * Upper bound for the wait time requested by long-polling clients
+     */
+    protected long maxLongPollMillis = 60_000L;
+    /**
+     * Lifetime of sessions without captcha data and ticket, counted from their last update or refresh
+     */
+    protected long pendingSessionTtlMillis = 60_000L;
+    /**
+     * Lifetime of sessions holding captcha data, counted from their last update or refresh
+     */
+    protected long infoSessionTtlMillis = 60_000L;
+    /**
+     * Lifetime of sessions holding a ticket, counted from their completion
+     */
+    protected long completedSessionTtlMillis = 60_000L;
+    /**
+     * Responses written while reading are flushed together at the end of the read,
+     * or after that many flushes. {@code 0} flushes every response on its own.
+     */
+    protected int flushConsolidationLimit = FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES;
+
     protected void debugMsg(ChannelHandlerContext ctx, Supplier<String> msg) {
     }
 
@@ -43,44 +110,223 @@ public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
         debugMsg(ctx, msg);
     }
 
-    private static class CusPkgRsp extends PkgQueryProcessCodeStatus.Rsp {
-        public long allocateTime;
-        public int captchaType;
-        public byte[] captchaData;
+    private abstract static class TicketWaiter {
+        final Channel channel;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        TicketWaiter(Channel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return true for the single caller allowed to answer this waiter
+         */
+        boolean finish() {
+            return finished.compareAndSet(false, true);
+        }
+
+        abstract void deliver(PkgQueryProcessCodeStatus.Rsp rsp);
     }
 
+    private static class Subscription extends TicketWaiter {
+        final String key;
+        final Map<String, Subscription> subscribed;
+
+        Subscription(Channel channel, String key, Map<String, Subscription> subscribed) {
+            super(channel);
+            this.key = key;
+            this.subscribed = subscribed;
+        }
+
+        @Override
+        void deliver(PkgQueryProcessCodeStatus.Rsp rsp) {
+            if (finish()) {
+                channel.writeAndFlush(rsp);
+                forget();
+            }
+        }
+
+        /**
+         * Drops this subscription from those of its channel
+         */
+        void forget() {
+            channel.eventLoop().execute(() -> {
+                if (subscribed.get(key) == this) subscribed.remove(key);
+            });
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Subscription && ((Subscription) o).channel == channel;
+        }
+
+        @Override
+        public int hashCode() {
+            return channel.hashCode();
+        }
+    }
+
+    private static class LongPoll extends TicketWaiter {
+        final String key;
+        final Set<LongPoll> pending;
+        ScheduledFuture<?> timeout;
+
+        LongPoll(Channel channel, String key, Set<LongPoll> pending) {
+            super(channel);
+            this.key = key;
+            this.pending = pending;
+        }
+
+        @Override
+        boolean finish() {
+            if (!super.finish()) return false;
+            if (timeout != null) timeout.cancel(false);
+            return true;
+        }
+
+        @Override
+        void deliver(PkgQueryProcessCodeStatus.Rsp rsp) {
+            if (finish()) {
+                channel.writeAndFlush(rsp);
+                channel.eventLoop().execute(() -> pending.remove(this));
+            }
+        }
+    }
+
+    private static String key(byte[] fastcode) {
+        return new String(fastcode, StandardCharsets.ISO_8859_1);
+    }
+
+    private long ttlMillis(SessionStore.Session session) {
+        if (session.completed) return completedSessionTtlMillis;
+        if (session.hasCaptchaData()) return infoSessionTtlMillis;
+        return pendingSessionTtlMillis;
+    }
+
+    /**
+     * @return the ticket of a completed session, {@code null} if there is none
+     */
+    private byte[] ticketBytes(byte[] fastcode) {
+        SessionStore.Session session = sessionStore.lookup(fastcode, true);
+        if (session == null) return null;
+        if (session.captchaData != null) session.captchaData.release();
+        return session.ticket;
+    }
+
+    /**
+     * Scheduled when a session is created, the timeout re-arms itself until the session expired.
+     * A session has one timeout, a new one is only armed for an earlier deadline.
+     */
+    private void scheduleExpiry(byte[] fastcode, long delayMillis) {
+        String key = key(fastcode);
+        long deadline = System.currentTimeMillis() + delayMillis;
+        if (expiryDeadlines.merge(key, deadline, Math::min) != deadline) return;
+        SESSION_EXPIRY.newTimeout($$$$ -> {
+            // Superseded by a timeout of an earlier deadline
+            if (!expiryDeadlines.remove(key, deadline)) return;
+            long remaining = expireIfIdle(fastcode, System.currentTimeMillis());
+            if (remaining > 0) scheduleExpiry(fastcode, remaining);
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return milliseconds until the session of {@code fastcode} may expire, {@code 0} if there is none left
+     */
+    private long expireIfIdle(byte[] fastcode, long now) {
+        while (true) {
+            SessionStore.Session session = sessionStore.lookup(fastcode, false);
+            if (session == null) return 0;
+            long remaining = session.lastUpdate + ttlMillis(session) - now;
+            if (remaining > 0) return remaining;
+            if (sessionStore.expire(fastcode, session.lastUpdate)) {
+                Set<TicketWaiter> waiting = waiters.remove(key(fastcode));
+                if (waiting != null) {
+                    for (TicketWaiter waiter : waiting) {
+                        if (waiter instanceof Subscription && waiter.finish()) ((Subscription) waiter).forget();
+                    }
+                }
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Removes all expired sessions now instead of when their timeouts fire
+     */
     public void clearInvalidatedCaches() {
         long now = System.currentTimeMillis();
-        processes.values().removeIf(rsp -> now - rsp.allocateTime > 60_000L);
+        sessionStore.forEachFastcode(fastcode -> expireIfIdle(fastcode, now));
+    }
+
+    /**
+     * Arms the expiry of sessions that were put in {@link #sessionStore} before it was handed to the server,
+     * e.g. those recovered by {@link JournaledSessionStore}
+     */
+    public void scheduleExpiryOfAll() {
+        long now = System.currentTimeMillis();
+        sessionStore.forEachFastcode(fastcode -> {
+            long remaining = expireIfIdle(fastcode, now);
+            if (remaining > 0) scheduleExpiry(fastcode, remaining);
+        });
+    }
+
+    private void addWaiter(String key, TicketWaiter waiter) {
+        waiters.compute(key, ($$$$, set) -> {
+            if (set == null) set = new HashSet<>();
+            set.add(waiter);
+            return set;
+        });
+    }
+
+    private void removeWaiter(String key, TicketWaiter waiter) {
+        waiters.computeIfPresent(key, ($$$$, set) -> {
+            set.remove(waiter);
+            return set.isEmpty() ? null : set;
+        });
     }
 
     @Override
     protected void initChannel(Channel ch) throws Exception {
+        ch.attr(LONG_POLLS).set(new HashSet<>());
+        ch.attr(SUBSCRIPTIONS).set(new HashMap<>());
+        if (!ClusterNode.isForwarded(ch)) {
+            // Streams forwarded by other nodes of the cluster live as long as their client connection
+            ch.pipeline().addLast("timeout", new ReadTimeoutHandler(10000, TimeUnit.MILLISECONDS));
+        }
+        ch.pipeline().addLast("encoder", codec.getEncoder());
+        if (flushConsolidationLimit > 0) {
+            // Behind the encoder, which aggregates the responses of a read until the consolidated flush.
+            // Long poll answers and other flushes outside of a read are not delayed.
+            ch.pipeline().addLast("flush", new FlushConsolidationHandler(flushConsolidationLimit, false));
+        }
         ch.pipeline()
-                .addLast("timeout", new ReadTimeoutHandler(10000, TimeUnit.MILLISECONDS))
-                .addLast("encoder", codec.getEncoder())
                 .addLast("decoder", codec.getDecoder())
                 .addLast("processor", new TCRSServerChannelHandler());
     }
 
     @SuppressWarnings("UnnecessaryReturnStatement")
     private void handlePacket(ChannelHandlerContext ctx, Packet pkg) {
+        if (pkg instanceof PkgKeepAlive.Hello) {
+            // Answered by the decoder
+            debugMsg(ctx, () -> "Peer capabilities: " + ((PkgKeepAlive.Hello) pkg).capabilities);
+            return;
+        }
         if (pkg == PkgKeepAlive.INSTANCE) {
             ctx.writeAndFlush(pkg);
             return;
         }
         if (pkg == PkgNewProcessCode.Req.INSTANCE) {
             byte[] tmp = new byte[8];
-            CusPkgRsp rsp = new CusPkgRsp();
-            rsp.fastcode = tmp;
-            rsp.allocateTime = System.currentTimeMillis();
+            long now = System.currentTimeMillis();
             do {
                 for (int i = 0; i < 8; i++) {
                     tmp[i] = KEYS[(random.nextInt() & 0xFFFFFF) % KEYS.length];
                 }
-                String key = new String(tmp, StandardCharsets.ISO_8859_1);
-                if (processes.putIfAbsent(key, rsp) == null) {
-                    debugMsg(ctx, () -> "Allocated new fast process code: " + key);
+                if (cluster != null && !cluster.owns(tmp)) continue;
+                if (sessionStore.allocate(tmp, now)) {
+                    // Checked again when it fires, the session may hold captcha data by then
+                    scheduleExpiry(tmp, Math.min(pendingSessionTtlMillis, infoSessionTtlMillis));
+                    debugMsg(ctx, () -> "Allocated new fast process code: " + key(tmp));
                     ctx.writeAndFlush(PkgNewProcessCode.Rsp.rsp(tmp));
                     return;
                 }
@@ -88,26 +334,27 @@ public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
         }
         if (pkg instanceof PkgNewProcessCode.Complete) {
             PkgNewProcessCode.Complete cp = (PkgNewProcessCode.Complete) pkg;
-            String key = new String(cp.fastcode, StandardCharsets.ISO_8859_1);
-            CusPkgRsp rsp = new CusPkgRsp();
-            rsp.ticket = cp.ticket;
-            rsp.fastcode = cp.fastcode;
-            rsp.allocateTime = System.currentTimeMillis();
-            processes.put(key, rsp);
-            debugMsg(ctx, () -> "Fast process code ticket updated: key=" + new String(rsp.fastcode) + ", ticket=" + new String(rsp.ticket));
+            handleComplete(ctx, cp.fastcode, cp.ticket);
+            return;
+        }
+        if (pkg instanceof PkgNewProcessCode.CompleteBuf) {
+            PkgNewProcessCode.CompleteBuf cp = (PkgNewProcessCode.CompleteBuf) pkg;
+            handleComplete(ctx, ByteBufUtil.getBytes(cp.fastcode), ByteBufUtil.getBytes(cp.ticket));
             return;
         }
         if (pkg instanceof PkgQueryProcessCodeStatus.Req) {
             PkgQueryProcessCodeStatus.Req req = (PkgQueryProcessCodeStatus.Req) pkg;
-            String key = new String(req.fastcode, StandardCharsets.ISO_8859_1);
-            CusPkgRsp rsp = processes.get(key);
-            if (rsp != null) {
+            String key = key(req.fastcode);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, false);
+            if (session != null) {
+                // Written from the store, the ticket is not copied for every poll
+                ByteBuf ticket = session.completed ? sessionStore.ticket(req.fastcode) : null;
                 debugMsgMayVerbose(
-                        rsp.ticket == null,
+                        ticket == null,
                         ctx,
-                        () -> "Process code query [" + key + "]: " + (rsp.ticket == null ? "<waiting>" : new String(rsp.ticket))
+                        () -> "Process code query [" + key + "]: " + (ticket == null ? "<waiting>" : ticket.toString(StandardCharsets.UTF_8))
                 );
-                ctx.write(rsp);
+                ctx.write(PkgQueryProcessCodeStatus.RspBuf.rsp(Unpooled.wrappedBuffer(req.fastcode), ticket));
             } else {
                 debugMsg(ctx, () -> "Process code query [" + key + "]: <unknown key>");
                 ctx.write(PkgQueryProcessCodeStatus.Rsp.rsp(req.fastcode, null));
@@ -115,50 +362,215 @@ public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
             ctx.flush();
             return;
         }
+        if (pkg instanceof PkgQueryProcessCodeStatus.Subscribe) {
+            PkgQueryProcessCodeStatus.Subscribe req = (PkgQueryProcessCodeStatus.Subscribe) pkg;
+            String key = key(req.fastcode);
+            Map<String, Subscription> subscribed = ctx.channel().attr(SUBSCRIPTIONS).get();
+            Subscription subscription = new Subscription(ctx.channel(), key, subscribed);
+            // Registered before the lookup, a ticket stored in between is delivered by one of both
+            addWaiter(key, subscription);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, false);
+            if (session == null) {
+                removeWaiter(key, subscription);
+                debugMsg(ctx, () -> "Process code subscribe [" + key + "]: <unknown key>");
+                ctx.writeAndFlush(PkgQueryProcessCodeStatus.Rsp.rsp(req.fastcode, null));
+                return;
+            }
+            if (session.completed) {
+                removeWaiter(key, subscription);
+                subscription.deliver(PkgQueryProcessCodeStatus.Rsp.rsp(req.fastcode, ticketBytes(req.fastcode)));
+                return;
+            }
+            subscribed.put(key, subscription);
+            debugMsg(ctx, () -> "Process code subscribe [" + key + "]: <waiting>");
+            return;
+        }
+        if (pkg instanceof PkgQueryProcessCodeStatus.LongPoll) {
+            PkgQueryProcessCodeStatus.LongPoll req = (PkgQueryProcessCodeStatus.LongPoll) pkg;
+            String key = key(req.fastcode);
+            Set<LongPoll> pending = ctx.channel().attr(LONG_POLLS).get();
+            LongPoll poll = new LongPoll(ctx.channel(), key, pending);
+            addWaiter(key, poll);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, false);
+            if (session == null) {
+                removeWaiter(key, poll);
+                debugMsg(ctx, () -> "Process code long poll [" + key + "]: <unknown key>");
+                ctx.writeAndFlush(PkgQueryProcessCodeStatus.Rsp.rsp(req.fastcode, null));
+                return;
+            }
+            if (session.completed || req.maxWaitMillis <= 0) {
+                removeWaiter(key, poll);
+                if (poll.finish()) {
+                    ByteBuf ticket = session.completed ? sessionStore.ticket(req.fastcode) : null;
+                    ctx.writeAndFlush(PkgQueryProcessCodeStatus.RspBuf.rsp(Unpooled.wrappedBuffer(req.fastcode), ticket));
+                }
+                return;
+            }
+            pending.add(poll);
+            poll.timeout = ctx.executor().schedule(() -> {
+                if (!poll.finish()) return;
+                pending.remove(poll);
+                removeWaiter(key, poll);
+                ctx.writeAndFlush(PkgQueryProcessCodeStatus.RspBuf.rsp(Unpooled.wrappedBuffer(req.fastcode), sessionStore.ticket(req.fastcode)));
+            }, Math.min(req.maxWaitMillis, maxLongPollMillis), TimeUnit.MILLISECONDS);
+            debugMsgVerbose(ctx, () -> "Process code long poll [" + key + "]: <waiting>");
+            return;
+        }
+        if (pkg instanceof PkgQueryProcessCodeStatus.BatchReq) {
+            PkgQueryProcessCodeStatus.BatchReq req = (PkgQueryProcessCodeStatus.BatchReq) pkg;
+            List<PkgQueryProcessCodeStatus.Rsp> entries = new ArrayList<>(req.fastcodes.length);
+            int size = 2, completed = 0;
+            for (byte[] fastcode : req.fastcodes) {
+                byte[] ticket = ticketBytes(fastcode);
+                if (ticket != null) {
+                    completed++;
+                }
+                PkgQueryProcessCodeStatus.Rsp entry = PkgQueryProcessCodeStatus.Rsp.rsp(fastcode, ticket);
+                int entrySize = PkgQueryProcessCodeStatus.BatchRsp.entrySize(entry);
+                if (size + entrySize > PkgQueryProcessCodeStatus.MAX_BATCH_PAYLOAD) {
+                    ctx.write(PkgQueryProcessCodeStatus.BatchRsp.rsp(entries.toArray(new PkgQueryProcessCodeStatus.Rsp[0])));
+                    entries.clear();
+                    size = 2;
+                }
+                entries.add(entry);
+                size += entrySize;
+            }
+            ctx.writeAndFlush(PkgQueryProcessCodeStatus.BatchRsp.rsp(entries.toArray(new PkgQueryProcessCodeStatus.Rsp[0])));
+            int completedCount = completed;
+            debugMsgMayVerbose(
+                    completedCount == 0,
+                    ctx,
+                    () -> "Batched process code query: " + req.fastcodes.length + " codes, " + completedCount + " completed"
+            );
+            return;
+        }
         if (pkg instanceof PkgProcessCodeInfo.Update) {
             PkgProcessCodeInfo.Update req = (PkgProcessCodeInfo.Update) pkg;
-            String key = new String(req.fastcode, StandardCharsets.ISO_8859_1);
-            CusPkgRsp session = processes.get(key);
+            ByteBuf data = req.captchaData == null ? null : Unpooled.wrappedBuffer(req.captchaData);
+            handleUpdate(ctx, req.fastcode, req.captchaType, data);
+            return;
+        }
+        if (pkg instanceof PkgProcessCodeInfo.UpdateBuf) {
+            PkgProcessCodeInfo.UpdateBuf req = (PkgProcessCodeInfo.UpdateBuf) pkg;
+            handleUpdate(ctx, ByteBufUtil.getBytes(req.fastcode), req.captchaType, req.captchaData);
+            return;
+        }
+        if (pkg instanceof PkgProcessCodeInfo.ConditionalUpdate) {
+            PkgProcessCodeInfo.ConditionalUpdate req = (PkgProcessCodeInfo.ConditionalUpdate) pkg;
+            String key = key(req.fastcode);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, false);
             if (session == null) {
-                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.Update because session[" + key + "] not found");
+                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.ConditionalUpdate because session[" + key + "] not found");
+                return;
+            }
+            if (session.hasCaptchaData() && session.captchaType == req.captchaType && session.captchaHash == req.hash) {
+                sessionStore.refresh(req.fastcode, System.currentTimeMillis());
                 return;
             }
-            session.allocateTime = System.currentTimeMillis();
-            session.captchaType = req.captchaType;
-            session.captchaData = req.captchaData;
-            debugMsg(ctx, () -> "Processed PkgProcessCodeInfo.Update[" + key + "] with captcha type [" + req.captchaType + "]");
+            debugMsg(ctx, () -> "PkgProcessCodeInfo.ConditionalUpdate[" + key + "] does not match, requesting full update");
+            ctx.writeAndFlush(PkgProcessCodeInfo.UpdateRequired.required(req.fastcode));
             return;
         }
         if (pkg instanceof PkgProcessCodeInfo.Refresh) {
             PkgProcessCodeInfo.Refresh req = (PkgProcessCodeInfo.Refresh) pkg;
-            String key = new String(req.fastcode, StandardCharsets.ISO_8859_1);
-            CusPkgRsp session = processes.get(key);
-            if (session == null) {
-                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.Refresh because session[" + key + "] not found");
+            if (!sessionStore.refresh(req.fastcode, System.currentTimeMillis())) {
+                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.Refresh because session[" + key(req.fastcode) + "] not found");
                 return;
             }
-            session.allocateTime = System.currentTimeMillis();
             // debugMsg(ctx, () -> "Processed PkgProcessCodeInfo.Refresh[" + key + "]");
             return;
         }
+        if (pkg instanceof PkgProcessCodeInfo.BatchRefresh) {
+            PkgProcessCodeInfo.BatchRefresh req = (PkgProcessCodeInfo.BatchRefresh) pkg;
+            long now = System.currentTimeMillis();
+            for (byte[] fastcode : req.fastcodes) {
+                sessionStore.refresh(fastcode, now);
+            }
+            return;
+        }
+        if (pkg instanceof PkgProcessCodeInfo.VersionedQuery) {
+            PkgProcessCodeInfo.VersionedQuery req = (PkgProcessCodeInfo.VersionedQuery) pkg;
+            String key = key(req.fastcode);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, false);
+            if (session == null) {
+                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.VersionedQuery because session[" + key + "] not found");
+                ctx.write(PkgProcessCodeInfo.Version.version(0, true, req.fastcode));
+                ctx.writeAndFlush(PkgProcessCodeInfo.Response.response(0, null, req.fastcode));
+                return;
+            }
+            sessionStore.refresh(req.fastcode, System.currentTimeMillis());
+            if (session.infoVersion != 0 && session.infoVersion == req.version) {
+                ctx.writeAndFlush(PkgProcessCodeInfo.Version.version(session.infoVersion, false, req.fastcode));
+                return;
+            }
+            // Data and version of the same snapshot
+            SessionStore.Session current = sessionStore.lookup(req.fastcode, true);
+            int version = current == null ? 0 : current.infoVersion;
+            ctx.write(PkgProcessCodeInfo.Version.version(version, true, req.fastcode));
+            ctx.writeAndFlush(response(current, req.fastcode));
+            debugMsg(ctx, () -> "Responded PkgProcessCodeInfo.VersionedQuery[" + key + "] with version [" + version + "]");
+            return;
+        }
         if (pkg instanceof PkgProcessCodeInfo.Query) {
             PkgProcessCodeInfo.Query req = (PkgProcessCodeInfo.Query) pkg;
-            String key = new String(req.fastcode, StandardCharsets.ISO_8859_1);
-            CusPkgRsp session = processes.get(key);
+            String key = key(req.fastcode);
+            SessionStore.Session session = sessionStore.lookup(req.fastcode, true);
             if (session == null) {
                 debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.Query because session[" + key + "] not found");
                 ctx.writeAndFlush(PkgProcessCodeInfo.Response.response(0, null, req.fastcode));
                 return;
             }
-            session.allocateTime = System.currentTimeMillis();
-            ctx.writeAndFlush(PkgProcessCodeInfo.Response.response(
-                    session.captchaType, session.captchaData, req.fastcode
-            ));
+            sessionStore.refresh(req.fastcode, System.currentTimeMillis());
+            ctx.writeAndFlush(response(session, req.fastcode));
             debugMsg(ctx, () -> "Responded PkgProcessCodeInfo.Query[" + key + "] with captcha type[" + session.captchaType + "]");
             return;
         }
     }
 
+    /**
+     * @param session looked up with data, its data is passed on to the response
+     */
+    private static PkgProcessCodeInfo.ResponseBuf response(SessionStore.Session session, byte[] fastcode) {
+        if (session == null) {
+            return PkgProcessCodeInfo.ResponseBuf.response(0, null, Unpooled.wrappedBuffer(fastcode));
+        }
+        return PkgProcessCodeInfo.ResponseBuf.response(session.captchaType, session.captchaData, Unpooled.wrappedBuffer(fastcode));
+    }
+
+    private void handleUpdate(ChannelHandlerContext ctx, byte[] fastcode, int captchaType, ByteBuf captchaData) {
+        String key = key(fastcode);
+        try {
+            if (!sessionStore.update(fastcode, captchaType, captchaData, System.currentTimeMillis())) {
+                debugMsg(ctx, () -> "Skipped PkgProcessCodeInfo.Update because session[" + key + "] not found");
+                return;
+            }
+        } catch (SessionStoreFullException e) {
+            debugMsg(ctx, () -> "Rejected PkgProcessCodeInfo.Update[" + key + "]: " + e.getMessage());
+            // Older clients do not know the packet, they see the session keep its data as before
+            if ((PkgCodec.getPeerCapabilities(ctx.channel()) & PkgKeepAlive.Hello.CAP_UPDATE_REJECTED) != 0) {
+                ctx.writeAndFlush(PkgProcessCodeInfo.UpdateRejected.rejected(fastcode));
+            }
+            return;
+        }
+        debugMsg(ctx, () -> "Processed PkgProcessCodeInfo.Update[" + key + "] with captcha type [" + captchaType + "]");
+    }
+
+    private void handleComplete(ChannelHandlerContext ctx, byte[] fastcode, byte[] ticket) {
+        String key = key(fastcode);
+        sessionStore.complete(fastcode, ticket, System.currentTimeMillis());
+        // Completing moves the deadline to the TTL of completed sessions, armed unless the armed timeout fires earlier
+        scheduleExpiry(fastcode, completedSessionTtlMillis);
+        debugMsg(ctx, () -> "Fast process code ticket updated: key=" + key + ", ticket=" + new String(ticket));
+        Set<TicketWaiter> waiting = waiters.remove(key);
+        if (waiting != null) {
+            PkgQueryProcessCodeStatus.Rsp rsp = PkgQueryProcessCodeStatus.Rsp.rsp(fastcode, ticket);
+            for (TicketWaiter waiter : waiting) {
+                waiter.deliver(rsp);
+                debugMsg(ctx, () -> "Pushed ticket of [" + key + "] to " + waiter.channel);
+            }
+        }
+    }
+
     private void debugMsgMayVerbose(boolean isVerbose, ChannelHandlerContext ctx, Supplier<String> msg) {
         if (isVerbose) debugMsgVerbose(ctx, msg);
         else debugMsg(ctx, msg);
@@ -178,21 +590,36 @@ public class TCRSServerChannelInitializer extends ChannelInitializer<Channel> {
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             if (msg instanceof Packet) {
-                handlePacket(ctx, (Packet) msg);
+                try {
+                    // Forwarded streams come from the node that received the packet, never forward them again
+                    Packet pkg = cluster == null || ClusterNode.isForwarded(ctx.channel()) ? (Packet) msg : cluster.forward(ctx.channel(), (Packet) msg);
+                    if (pkg != null) handlePacket(ctx, pkg);
+                } finally {
+                    ReferenceCountUtil.release(msg);
+                }
                 return;
             }
             super.channelRead(ctx, msg);
         }
 
         @Override
-        public void channelActive(ChannelHandlerContext ctx) throws Exception {
-            ScheduledFuture<?> scheduledFuture = ctx.channel().eventLoop().scheduleWithFixedDelay(
-                    TCRSServerChannelInitializer.this::clearInvalidatedCaches,
-                    1, 1, TimeUnit.MINUTES
-            );
-            ctx.channel().closeFuture().addListener($$$$ -> scheduledFuture.cancel(true));
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Set<LongPoll> pending = ctx.channel().attr(LONG_POLLS).get();
+            for (LongPoll poll : pending) {
+                if (poll.finish()) {
+                    removeWaiter(poll.key, poll);
+                }
+            }
+            pending.clear();
+            Map<String, Subscription> subscribed = ctx.channel().attr(SUBSCRIPTIONS).get();
+            for (Subscription subscription : subscribed.values()) {
+                if (subscription.finish()) {
+                    removeWaiter(subscription.key, subscription);
+                }
+            }
+            subscribed.clear();
 
-            ctx.fireChannelActive();
+            ctx.fireChannelInactive();
         }
     }
 }
@@ -13,6 +13,8 @@ import com.google.zxing.BarcodeFormat
 import com.google.zxing.client.j2se.MatrixToImageWriter
 import com.google.zxing.qrcode.QRCodeWriter
 import com.kasukusakura.tcrs.client.AutoReconnectClientConnection
+import com.kasukusakura.tcrs.network.Transport
+import com.kasukusakura.tcrs.network.TransportOptions
 import com.kasukusakura.tcrs.server.TCRSServerChannelInitializer
 import io.ktor.util.network.*
 import io.netty.bootstrap.ServerBootstrap
@@ -20,8 +22,6 @@ import io.netty.channel.Channel
 import io.netty.channel.ChannelFuture
 import io.netty.channel.ChannelHandlerContext
 import io.netty.channel.EventLoopGroup
-import io.netty.channel.nio.NioEventLoopGroup
-import io.netty.channel.socket.nio.NioServerSocketChannel
 import kotlinx.coroutines.*
 import net.mamoe.mirai.Bot
 import net.mamoe.mirai.network.CustomLoginFailedException
@@ -112,9 +112,9 @@ object TxCaptchaGUILoginSolver : LoginSolver() {
                     val remoteAddress: SocketAddress
                     val captchaExchangeServerResponse = CompletableDeferred<WindowResult>()
                     if (serverMode === selfHosted) {
-                        eventLoopGroup = NioEventLoopGroup()
-                        val serverChannel = ServerBootstrap()
-                            .channel(NioServerSocketChannel::class.java)
+                        val transport = Transport.best()
+                        eventLoopGroup = transport.newEventLoopGroup(0)
+                        val serverChannel = transport.configure(ServerBootstrap(), TransportOptions.fromSystemProperties())
                             .group(eventLoopGroup)
                             .childHandler(object : TCRSServerChannelInitializer() {
                                 override fun debugMsg(ctx: ChannelHandlerContext, msg: Supplier<String>) {
@@ -157,7 +157,7 @@ object TxCaptchaGUILoginSolver : LoginSolver() {
                             alertError(err.localizedMessage)
                             return@withActionBlocking
                         }
-                        eventLoopGroup = NioEventLoopGroup()
+                        eventLoopGroup = Transport.best().newEventLoopGroup(0)
                     }
 
                     openWindowCommon(
@@ -247,15 +247,27 @@ object TxCaptchaGUILoginSolver : LoginSolver() {
                                 sendProcessCodeInfoUpdate(CAPTCHA_TYPE_SLIDER, captchaUrl.toByteArray(), fastcode)
 
                                 eventLoopGroup.scheduleWithFixedDelay({
-                                    sendProcessCodeInfoUpdate(CAPTCHA_TYPE_SLIDER, captchaUrl.toByteArray(), fastcode)
+                                    sendProcessCodeInfoConditionalUpdate(CAPTCHA_TYPE_SLIDER, captchaUrl.toByteArray(), fastcode)
                                 }, 30, 30, TimeUnit.SECONDS)
                                 eventLoopGroup.scheduleWithFixedDelay({
                                     sendProcessCodeRefresh(fastcode)
                                 }, 10, 10, TimeUnit.SECONDS)
 
-                                eventLoopGroup.scheduleWithFixedDelay({
-                                    sendTicketQueryRequest(fastcode)
-                                }, 1, 1, TimeUnit.SECONDS)
+                                if (serverMode === selfHosted) {
+                                    // The hosted server pushes the ticket, polling only covers reconnects
+                                    subscribeTicket(fastcode)
+                                    eventLoopGroup.scheduleWithFixedDelay({
+                                        sendTicketQueryRequest(fastcode)
+                                    }, 10, 10, TimeUnit.SECONDS)
+                                } else {
+                                    eventLoopGroup.scheduleWithFixedDelay({
+                                        sendTicketQueryRequest(fastcode)
+                                    }, 1, 1, TimeUnit.SECONDS)
+                                }
+                            }
+
+                            override fun onProcessCodeInfoUpdateRequired(fastcode: ByteArray) {
+                                sendProcessCodeInfoUpdate(CAPTCHA_TYPE_SLIDER, captchaUrl.toByteArray(), fastcode)
                             }
 
                             override fun onTickReceived(ticket: ByteArray?, fastcode: ByteArray?) {